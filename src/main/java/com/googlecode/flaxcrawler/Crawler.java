@@ -10,7 +10,10 @@ import com.googlecode.flaxcrawler.model.Page;
 public interface Crawler {
 
     /**
-     * Crawls url from the {@link CrawlerTask}. Returns parsed {@link Page}.
+     * Crawls url from the {@link CrawlerTask}. Returns parsed {@link Page}. Page is released when it is processed
+     * by the crawler controller, page should not be kept after that: its content accessors throw
+     * {@link IllegalStateException}. If content is needed later - call {@link Page#getContent()} before the page
+     * is returned, it copies content so it is not released.
      * @param crawlerTask
      * @return
      * @throws Exception
@@ -18,7 +21,8 @@ public interface Crawler {
     Page crawl(CrawlerTask crawlerTask) throws Exception;
 
     /**
-     * Checks if this crawler should process next task
+     * Checks if this crawler should process next task. It is called by all crawler workers in parallel
+     * without locks, so implementation should be thread-safe.
      * @param crawlerTask
      * @param parent
      * @return
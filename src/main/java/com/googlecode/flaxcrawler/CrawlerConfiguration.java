@@ -1,9 +1,14 @@
 package com.googlecode.flaxcrawler;
 
+import com.googlecode.flaxcrawler.frontier.AdaptiveSequencePolicy;
+import com.googlecode.flaxcrawler.frontier.BackpressurePolicy;
+import com.googlecode.flaxcrawler.frontier.ShardedScheduler;
+import com.googlecode.flaxcrawler.utils.ScalableBloomFilter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import org.apache.log4j.Logger;
 
 /**
@@ -19,6 +24,17 @@ public class CrawlerConfiguration {
     private Map<Integer, Integer> maxHttpErrors = new HashMap<Integer, Integer>();
     private List<Crawler> crawlers = new ArrayList<Crawler>();
     private Map<String, DomainConstraints> domainConstraints = new HashMap<String, DomainConstraints>();
+    private int workersPerCrawler = 1;
+    private boolean virtualThreads;
+    private Executor workerExecutor;
+    private boolean durable;
+    private long checkpointPeriod = 300000;
+    private double urlsFilterFalsePositiveRate = ScalableBloomFilter.DEFAULT_FALSE_POSITIVE_RATE;
+    private long urlsFilterMaxMemory = ScalableBloomFilter.DEFAULT_MAX_MEMORY;
+    private int schedulerThreads = 1;
+    private int schedulerQueueCapacity = ShardedScheduler.DEFAULT_LANE_CAPACITY;
+    private BackpressurePolicy schedulerBackpressurePolicy = BackpressurePolicy.BLOCK;
+    private boolean adaptivePoliteness;
 
     public CrawlerConfiguration() {
     }
@@ -101,6 +117,14 @@ public class CrawlerConfiguration {
         this.maxHttpErrors.put(responseCode, count + 1);
     }
 
+    /**
+     * Returns specific constraints for domains
+     * @return
+     */
+    public Map<String, DomainConstraints> getDomainConstraints() {
+        return domainConstraints;
+    }
+
     /**
      * Sets specific constraints for some domains
      * @param domainConstraints
@@ -151,4 +175,197 @@ public class CrawlerConfiguration {
     public void addCrawler(Crawler crawler) {
         crawlers.add(crawler);
     }
+
+    /**
+     * Returns count of workers started for each crawler. By default - 1.
+     * @return
+     */
+    public int getWorkersPerCrawler() {
+        return workersPerCrawler;
+    }
+
+    /**
+     * Sets count of workers started for each crawler. By default - 1.
+     * If this value is greater than 1 - crawlers should be thread-safe.
+     * @param workersPerCrawler
+     */
+    public void setWorkersPerCrawler(int workersPerCrawler) {
+        this.workersPerCrawler = workersPerCrawler;
+    }
+
+    /**
+     * Returns {@code true} if crawler workers should run on virtual threads. By default - {@code false}.
+     * @return
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets if crawler workers should run on virtual threads (Java 21 or later, daemon threads are used otherwise).
+     * Crawlers and downloaders should not block inside {@code synchronized}, see
+     * {@link com.googlecode.flaxcrawler.concurrent.WorkerExecutors#newVirtualThreadExecutor()}.
+     * Ignored if worker executor is set. By default - {@code false}.
+     * @param virtualThreads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns executor used to run crawler workers. If {@code null} - each worker owns a thread.
+     * @return
+     */
+    public Executor getWorkerExecutor() {
+        return workerExecutor;
+    }
+
+    /**
+     * Sets executor used to run crawler workers. Executor should provide a separate thread for each worker.
+     * By default - {@code null}, each worker owns a daemon thread.
+     * @param workerExecutor
+     */
+    public void setWorkerExecutor(Executor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    /**
+     * Returns {@code true} if crawling can be resumed after restart. By default - {@code false}.
+     * @return
+     */
+    public boolean isDurable() {
+        return durable;
+    }
+
+    /**
+     * Sets if crawling can be resumed after restart. In durable mode task queue, crawled urls and domain
+     * statistics are kept on disk and periodic checkpoints are stored, crawler controller resumes from
+     * the last checkpoint on start. By default - {@code false}.
+     * @param durable
+     */
+    public void setDurable(boolean durable) {
+        this.durable = durable;
+    }
+
+    /**
+     * Returns period between two checkpoints (ms) in durable mode. By default - 300000 (5 minutes).
+     * @return
+     */
+    public long getCheckpointPeriod() {
+        return checkpointPeriod;
+    }
+
+    /**
+     * Sets period between two checkpoints (ms) in durable mode. 0 - checkpoint is stored on stop only.
+     * By default - 300000 (5 minutes).
+     * @param checkpointPeriod
+     */
+    public void setCheckpointPeriod(long checkpointPeriod) {
+        this.checkpointPeriod = checkpointPeriod;
+    }
+
+    /**
+     * Returns false positive rate of the crawled urls filter. By default - 0.01.
+     * @return
+     */
+    public double getUrlsFilterFalsePositiveRate() {
+        return urlsFilterFalsePositiveRate;
+    }
+
+    /**
+     * Sets false positive rate of the in-memory filter checked before the crawled urls index.
+     * Lower rate means less index lookups and more memory. By default - 0.01.
+     * @param urlsFilterFalsePositiveRate
+     */
+    public void setUrlsFilterFalsePositiveRate(double urlsFilterFalsePositiveRate) {
+        this.urlsFilterFalsePositiveRate = urlsFilterFalsePositiveRate;
+    }
+
+    /**
+     * Returns maximum memory (bytes) used by the crawled urls filter. By default - 64MB.
+     * @return
+     */
+    public long getUrlsFilterMaxMemory() {
+        return urlsFilterMaxMemory;
+    }
+
+    /**
+     * Sets maximum memory (bytes) used by the crawled urls filter. When it is exceeded filter stops growing
+     * and its false positive rate increases. By default - 64MB.
+     * @param urlsFilterMaxMemory
+     */
+    public void setUrlsFilterMaxMemory(long urlsFilterMaxMemory) {
+        this.urlsFilterMaxMemory = urlsFilterMaxMemory;
+    }
+
+    /**
+     * Returns count of scheduler threads. By default - 1.
+     * @return
+     */
+    public int getSchedulerThreads() {
+        return schedulerThreads;
+    }
+
+    /**
+     * Sets count of scheduler threads. If it is greater than 1 - urls are sharded between scheduler threads
+     * and crawled urls are partitioned the same way. Count of partitions of the durable crawl is not changed
+     * after restart. By default - 1.
+     * @param schedulerThreads
+     */
+    public void setSchedulerThreads(int schedulerThreads) {
+        this.schedulerThreads = schedulerThreads;
+    }
+
+    /**
+     * Returns maximum count of urls waiting in a scheduler thread queue. By default - 10000.
+     * @return
+     */
+    public int getSchedulerQueueCapacity() {
+        return schedulerQueueCapacity;
+    }
+
+    /**
+     * Sets maximum count of urls waiting in a scheduler thread queue. When the queue is full new urls are
+     * handled according to the scheduler backpressure policy. By default - 10000.
+     * @param schedulerQueueCapacity
+     */
+    public void setSchedulerQueueCapacity(int schedulerQueueCapacity) {
+        this.schedulerQueueCapacity = schedulerQueueCapacity;
+    }
+
+    /**
+     * Returns what scheduler does with new urls when its queue is full. By default - {@code BLOCK}.
+     * @return
+     */
+    public BackpressurePolicy getSchedulerBackpressurePolicy() {
+        return schedulerBackpressurePolicy;
+    }
+
+    /**
+     * Sets what scheduler does with new urls when its queue is full: crawler waits for free space,
+     * the deepest url is dropped or urls are spilled to disk. By default - {@code BLOCK}.
+     * @param schedulerBackpressurePolicy
+     */
+    public void setSchedulerBackpressurePolicy(BackpressurePolicy schedulerBackpressurePolicy) {
+        this.schedulerBackpressurePolicy = schedulerBackpressurePolicy;
+    }
+
+    /**
+     * Returns {@code true} if politeness is adapted to the domains responses. By default - {@code false}.
+     * @return
+     */
+    public boolean isAdaptivePoliteness() {
+        return adaptivePoliteness;
+    }
+
+    /**
+     * Sets if parallel requests count and delay between requests are adapted to the domain responses
+     * (see {@link AdaptiveSequencePolicy}). Domain is requested faster while it responds quickly and is slowed down
+     * on high response time, 429 and 503 responses. {@code maxParallelRequests} and {@code politenessPeriod}
+     * (or domain constraints) are used as bounds. By default - {@code false}.
+     * @param adaptivePoliteness
+     */
+    public void setAdaptivePoliteness(boolean adaptivePoliteness) {
+        this.adaptivePoliteness = adaptivePoliteness;
+    }
 }
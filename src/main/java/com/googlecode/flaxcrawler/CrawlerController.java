@@ -1,46 +1,80 @@
 package com.googlecode.flaxcrawler;
 
+import java.io.File;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import org.apache.log4j.Logger;
+import com.googlecode.flaxcrawler.concurrent.BaseTaskQueue;
 import com.googlecode.flaxcrawler.concurrent.BaseTaskQueueWorker;
 import com.googlecode.flaxcrawler.concurrent.BerkleyQueue;
 import com.googlecode.flaxcrawler.concurrent.Queue;
+import com.googlecode.flaxcrawler.concurrent.SequencePolicy;
+import com.googlecode.flaxcrawler.concurrent.SequenceTaskQueue;
 import com.googlecode.flaxcrawler.concurrent.Task;
 import com.googlecode.flaxcrawler.concurrent.TaskQueue;
-import com.googlecode.flaxcrawler.concurrent.TaskQueueImpl;
+import com.googlecode.flaxcrawler.concurrent.WorkerExecutors;
+import com.googlecode.flaxcrawler.frontier.AdaptiveSequencePolicy;
 import com.googlecode.flaxcrawler.frontier.DefaultScheduler;
 import com.googlecode.flaxcrawler.frontier.DefaultStatisticsService;
 import com.googlecode.flaxcrawler.frontier.DomainStatistics;
 import com.googlecode.flaxcrawler.frontier.Scheduler;
+import com.googlecode.flaxcrawler.frontier.SchedulerQueue;
+import com.googlecode.flaxcrawler.frontier.ShardedScheduler;
 import com.googlecode.flaxcrawler.frontier.StatisticsService;
 import com.googlecode.flaxcrawler.model.CrawlerTask;
+import com.googlecode.flaxcrawler.model.CrawlerTaskCodec;
 import com.googlecode.flaxcrawler.model.Page;
 
 /**
  * Manages crawler workers. {@link CrawlerConfiguration} should be passed to constructor.
- * Starts crawler threads (one thread for each crawler in {@link CrawlerConfiguration}).
+ * Starts crawler workers ({@code workersPerCrawler} workers for each crawler in {@link CrawlerConfiguration}).
  * Also makes crawlers satisfy constraints set in {@link CrawlerConfiguration} object ({@code maxParallelRequests},
  * {@code maxHttpErrors}, etc.).
+ * In durable mode (see {@link CrawlerConfiguration#setDurable}) checkpoints are stored periodically and on stop,
+ * {@code start} resumes crawling from the last checkpoint.
+ * Constraints are copied from {@link CrawlerConfiguration} on start, so workers check them without locks
+ * and changes made to the configuration after start are ignored.
  * @author ameshkov
  */
 public class CrawlerController {
 
     public final static String STATS_DB_DIR = "stats";
     public final static String QUEUE_DB_DIR = "queue";
+    public final static String SCHEDULER_SPILL_DIR = "scheduler";
     private Logger log = Logger.getLogger(this.getClass());
     private CrawlerConfiguration crawlerConfiguration;
     private StatisticsService statisticsService;
     private Scheduler scheduler;
     private List<URL> seeds = new ArrayList<URL>();
-    private TaskQueue taskQueue = new TaskQueueImpl();
+    private BaseTaskQueue taskQueue = new SequenceTaskQueue();
     private Queue queue;
+    private ExecutorService virtualThreadExecutor;
+    private Timer checkpointTimer;
     private boolean started = false;
     private boolean initialized = false;
     private final Object syncRoot = new Object();
-    private final Object workerSyncRoot = new Object();
+    /**
+     * Constraints copied from the configuration on init, never changed after that
+     */
+    private int maxLevel;
+    private int politenessPeriod;
+    private int maxParallelRequests;
+    private int[] maxHttpErrorsCodes;
+    private int[] maxHttpErrorsLimits;
+    private Map<String, DomainConstraints> domainConstraints;
+    /**
+     * {@code true} if politeness period is enforced by the task queue
+     */
+    private boolean queuePoliteness;
+    private AdaptiveSequencePolicy adaptivePolicy;
 
     public CrawlerController(CrawlerConfiguration crawlerConfiguration) {
         this.crawlerConfiguration = crawlerConfiguration;
@@ -51,25 +85,57 @@ public class CrawlerController {
      */
     private void init() throws CrawlerException {
         log.info("Initializing crawler controller");
+        initConstraints();
 
         try {
             log.info("Initializing statistics service");
-            statisticsService = new DefaultStatisticsService(STATS_DB_DIR);
+            statisticsService = new DefaultStatisticsService(STATS_DB_DIR, crawlerConfiguration.isDurable(),
+                    crawlerConfiguration.getUrlsFilterFalsePositiveRate(), crawlerConfiguration.getUrlsFilterMaxMemory(),
+                    crawlerConfiguration.getSchedulerThreads());
 
             log.info("Initializing task queue");
+            if (queue == null && crawlerConfiguration.isDurable()) {
+                BerkleyQueue berkleyQueue = new BerkleyQueue(QUEUE_DB_DIR, true);
+                berkleyQueue.setCodec(new CrawlerTaskCodec());
+                queue = berkleyQueue;
+            }
             if (queue != null) {
                 log.info("Queue is overriden, setting it instead of default inner task queue");
-                ((TaskQueueImpl) taskQueue).setQueue(queue);
-                ((TaskQueueImpl) taskQueue).setMaxParallelProcessingSequences(crawlerConfiguration.getMaxParallelRequests());
+                taskQueue.setQueue(queue);
+            }
+            taskQueue.setMaxParallelProcessingSequences(maxParallelRequests);
+            if (crawlerConfiguration.isAdaptivePoliteness()) {
+                adaptivePolicy = new AdaptiveSequencePolicy(new DomainSequencePolicy());
+                taskQueue.setSequencePolicy(adaptivePolicy);
+            } else {
+                taskQueue.setSequencePolicy(new DomainSequencePolicy());
             }
+            // Task queue delays domain after each request, so politeness period is not checked again by workers
+            queuePoliteness = taskQueue instanceof SequenceTaskQueue;
 
             log.info("Initializing scheduler");
-            scheduler = new DefaultScheduler(taskQueue, statisticsService);
+            if (crawlerConfiguration.getSchedulerThreads() > 1) {
+                SchedulerQueue[] laneQueues = new SchedulerQueue[crawlerConfiguration.getSchedulerThreads()];
+                for (int i = 0; i < laneQueues.length; i++) {
+                    laneQueues[i] = createSchedulerQueue(SCHEDULER_SPILL_DIR + File.separator + i);
+                }
+                scheduler = new ShardedScheduler(taskQueue, statisticsService, laneQueues);
+            } else {
+                scheduler = new DefaultScheduler(taskQueue, statisticsService, createSchedulerQueue(SCHEDULER_SPILL_DIR));
+            }
 
             log.info("Initializing crawler workers");
+            Executor workerExecutor = crawlerConfiguration.getWorkerExecutor();
+            if (workerExecutor == null && crawlerConfiguration.isVirtualThreads()) {
+                virtualThreadExecutor = WorkerExecutors.newVirtualThreadExecutor();
+                workerExecutor = virtualThreadExecutor;
+            }
+
             for (Crawler crawler : crawlerConfiguration.getCrawlers()) {
-                CrawlerWorker worker = new CrawlerWorker(crawler);
-                taskQueue.addWorker(worker);
+                for (int i = 0; i < crawlerConfiguration.getWorkersPerCrawler(); i++) {
+                    CrawlerWorker worker = new CrawlerWorker(crawler, workerExecutor);
+                    taskQueue.addWorker(worker);
+                }
             }
             log.info("Task queue initialized");
         } catch (Exception ex) {
@@ -80,6 +146,36 @@ public class CrawlerController {
         log.info("Crawler controller initialized");
     }
 
+    /**
+     * Copies crawling constraints from the configuration. Workers are started after this, so they see the copies.
+     */
+    private void initConstraints() {
+        maxLevel = crawlerConfiguration.getMaxLevel();
+        politenessPeriod = crawlerConfiguration.getPolitenessPeriod();
+        maxParallelRequests = crawlerConfiguration.getMaxParallelRequests();
+        domainConstraints = new HashMap<String, DomainConstraints>(crawlerConfiguration.getDomainConstraints());
+
+        Map<Integer, Integer> maxHttpErrors = crawlerConfiguration.getMaxHttpErrors();
+        maxHttpErrorsCodes = new int[maxHttpErrors.size()];
+        maxHttpErrorsLimits = new int[maxHttpErrors.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> entry : maxHttpErrors.entrySet()) {
+            maxHttpErrorsCodes[i] = entry.getKey();
+            maxHttpErrorsLimits[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    /**
+     * Creates scheduler queue with configured capacity and backpressure policy
+     * @param spillDirectory
+     * @return
+     */
+    private SchedulerQueue createSchedulerQueue(String spillDirectory) {
+        return new SchedulerQueue(crawlerConfiguration.getSchedulerQueueCapacity(),
+                crawlerConfiguration.getSchedulerBackpressurePolicy(), spillDirectory);
+    }
+
     /**
      * Starts crawling
      */
@@ -88,9 +184,9 @@ public class CrawlerController {
             try {
                 log.info("Starting crawling..");
 
-                if (seeds.isEmpty() && queue == null) {
+                if (seeds != null && seeds.isEmpty() && queue == null && !crawlerConfiguration.isDurable()) {
                     throw new CrawlerException("There's no crawler seeds");
-                } else if (seeds.isEmpty()) {
+                } else if (seeds != null && seeds.isEmpty()) {
                     log.warn("Crawler seeds are not set, but task queue was overriden");
                 }
 
@@ -98,9 +194,23 @@ public class CrawlerController {
                     init();
                     initialized = true;
 
+                    if (crawlerConfiguration.isDurable()) {
+                        log.info("Resuming crawling, " + taskQueue.size() + " tasks restored from the last checkpoint");
+                    }
+
                     for (URL url : seeds) {
                         CrawlerTask task = new CrawlerTask(url.toString(), 0);
-                        taskQueue.enqueue(task);
+
+                        if (crawlerConfiguration.isDurable()) {
+                            // Seeds crawled before restart are not scheduled again
+                            if (statisticsService.isCrawled(task.getUrl())) {
+                                continue;
+                            }
+                            taskQueue.enqueue(task);
+                            statisticsService.afterScheduling(task);
+                        } else {
+                            taskQueue.enqueue(task);
+                        }
                     }
 
                     // Removing seeds
@@ -110,6 +220,7 @@ public class CrawlerController {
                 if (!started) {
                     taskQueue.start();
                     started = true;
+                    startCheckpointTimer();
                 }
             } catch (Exception ex) {
                 log.error("Error starting crawler controller", ex);
@@ -127,8 +238,14 @@ public class CrawlerController {
                 log.info("Stopping crawling");
 
                 if (started) {
+                    if (checkpointTimer != null) {
+                        checkpointTimer.cancel();
+                        checkpointTimer = null;
+                    }
                     taskQueue.stop();
                     started = false;
+                    // Workers are stopped, so there are no tasks in progress
+                    checkpoint();
                 }
             } catch (Exception ex) {
                 log.error("Error stopping crawler controller", ex);
@@ -145,8 +262,15 @@ public class CrawlerController {
         synchronized (syncRoot) {
             try {
                 log.info("Disposing crawler controller");
+                stop();
+                if (scheduler != null) {
+                    scheduler.dispose();
+                }
                 taskQueue.dispose();
                 statisticsService.dispose();
+                if (virtualThreadExecutor != null) {
+                    virtualThreadExecutor.shutdown();
+                }
                 log.info("Crawler controller has been disposed");
             } catch (Exception ex) {
                 log.error("Error disposing crawler controller", ex);
@@ -155,6 +279,49 @@ public class CrawlerController {
         }
     }
 
+    /**
+     * Stores a checkpoint of the task queue and statistics (durable mode only). Crawling can be resumed
+     * from the last checkpoint after restart.
+     * @throws CrawlerException
+     */
+    public void checkpoint() throws CrawlerException {
+        if (!crawlerConfiguration.isDurable() || scheduler == null) {
+            return;
+        }
+
+        try {
+            log.info("Storing checkpoint");
+            scheduler.checkpoint();
+        } catch (Exception ex) {
+            log.error("Error storing checkpoint", ex);
+            throw new CrawlerException("Error storing checkpoint", ex);
+        }
+    }
+
+    /**
+     * Starts timer storing periodic checkpoints (durable mode only)
+     */
+    private void startCheckpointTimer() {
+        long period = crawlerConfiguration.getCheckpointPeriod();
+
+        if (!crawlerConfiguration.isDurable() || period <= 0) {
+            return;
+        }
+
+        checkpointTimer = new Timer("CrawlerCheckpoint", true);
+        checkpointTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (CrawlerException ex) {
+                    // Error is already logged, next checkpoint will be tried after period
+                }
+            }
+        }, period, period);
+    }
+
     /**
      * Joins crawler workers threads and waits for them to finish their work
      */
@@ -187,6 +354,15 @@ public class CrawlerController {
         this.queue = queue;
     }
 
+    /**
+     * Sets {@link TaskQueue} implementation. {@link SequenceTaskQueue} is used by default.
+     * Warning - this method works before crawler controller is started only.
+     * @param taskQueue
+     */
+    public void setTaskQueue(BaseTaskQueue taskQueue) {
+        this.taskQueue = taskQueue;
+    }
+
     /**
      * Count of crawler tasks
      * @return
@@ -195,6 +371,30 @@ public class CrawlerController {
         return taskQueue == null ? 0 : taskQueue.size();
     }
 
+    /**
+     * Returns count of urls waiting in the scheduler queue
+     * @return
+     */
+    public int getSchedulerQueueSize() {
+        return scheduler == null ? 0 : scheduler.getQueueSize();
+    }
+
+    /**
+     * Returns total time (ms) crawlers have been waiting for free space in the scheduler queue
+     * @return
+     */
+    public long getSchedulerBackpressureTime() {
+        return scheduler == null ? 0 : scheduler.getBackpressureTime();
+    }
+
+    /**
+     * Returns count of urls dropped because the scheduler queue was full
+     * @return
+     */
+    public long getSchedulerDroppedCount() {
+        return scheduler == null ? 0 : scheduler.getDroppedCount();
+    }
+
     /**
      * Gets domain statistics
      * @param domainName
@@ -218,57 +418,69 @@ public class CrawlerController {
      * @return
      */
     private boolean checkMaxHttpErrors(DomainStatistics statistics) {
-        synchronized (workerSyncRoot) {
-            for (Integer code : crawlerConfiguration.getMaxHttpErrors().keySet()) {
-                int limit = crawlerConfiguration.getMaxHttpErrors().get(code);
-                long errorsCount = statistics.getHttpErrors(code);
-
-                if (errorsCount >= limit) {
-                    log.debug("Errors limit for domain " + statistics.getDomainName() + " is exceeded, omitting task");
-                    return false;
-                }
-            }
+        for (int i = 0; i < maxHttpErrorsCodes.length; i++) {
+            long errorsCount = statistics.getHttpErrors(maxHttpErrorsCodes[i]);
 
-            return true;
+            if (errorsCount >= maxHttpErrorsLimits[i]) {
+                log.debug("Errors limit for domain " + statistics.getDomainName() + " is exceeded, omitting task");
+                return false;
+            }
         }
+
+        return true;
     }
 
     /**
-     * Checks politeness period
+     * Checks politeness period and reserves a fetch slot for the domain. Returns time (ms) left until
+     * the domain can be requested again, or 0 if it can be requested right now.
      * @param statistics
      * @return
      */
-    private boolean checkPolitenessPeriod(DomainStatistics statistics) {
-        synchronized (workerSyncRoot) {
-            // Searching for specific constraints
-            DomainConstraints domainConstraints = crawlerConfiguration.getDomainConstraints(statistics.getDomainName());
-            int politenessPeriod = domainConstraints == null ? crawlerConfiguration.getPolitenessPeriod() : domainConstraints.getPolitenessPeriod();
-
-            // Checking politeness period
-            if (politenessPeriod > 0
-                    && statistics.getLastTimeDownloaded() > 0
-                    && (System.currentTimeMillis() - statistics.getLastTimeDownloaded()) < crawlerConfiguration.getPolitenessPeriod()) {
-                return false;
-            }
+    private long checkPolitenessPeriod(DomainStatistics statistics) {
+        if (queuePoliteness) {
+            return 0;
+        }
+
+        // Searching for specific constraints
+        DomainConstraints constraints = domainConstraints.get(statistics.getDomainName());
+        int period = constraints == null ? politenessPeriod : constraints.getPolitenessPeriod();
+
+        // Slots are reserved atomically, so workers processing tasks of the same domain do not request it together
+        return period > 0 ? statistics.reserveFetchSlot(period) : 0;
+    }
+
+    /**
+     * Delays next requests to the domain if its download rate limit is exceeded
+     * @param crawlerTask
+     * @param page
+     */
+    private void checkDownloadRate(CrawlerTask crawlerTask, Page page) {
+        DomainConstraints constraints = domainConstraints.get(crawlerTask.getDomain());
+
+        if (constraints == null || constraints.getMaxBytesPerSecond() <= 0 || page.getContentLength() == 0) {
+            return;
+        }
 
-            return true;
+        // Time the page should have been downloaded at the limited rate
+        long delay = page.getContentLength() * 1000L / constraints.getMaxBytesPerSecond() - page.getResponseTime();
+        if (delay > 0) {
+            log.debug("Download rate limit for domain " + crawlerTask.getDomain() + " is exceeded, delaying it for " + delay + " ms");
+            taskQueue.delaySequence(crawlerTask.getSequenceName(), delay);
         }
     }
 
     /**
-     * Schedulles a crawler task
+     * Schedulles a crawler task. Called by all workers in parallel, so {@link Crawler#shouldCrawl} should be thread-safe.
      * @param crawler
      * @param task
      * @param parentTask
      * @return
      */
     private void scheduleTask(Crawler crawler, CrawlerTask task, CrawlerTask parentTask) {
-        synchronized (workerSyncRoot) {
-            if (crawler.shouldCrawl(task, parentTask)) {
-                scheduler.schedule(task);
-            } else {
-                log.debug("Igoring task " + task.getUrl() + " - crawler returned false from shouldCrawl method");
-            }
+        if (crawler.shouldCrawl(task, parentTask)) {
+            scheduler.schedule(task);
+        } else {
+            log.debug("Igoring task " + task.getUrl() + " - crawler returned false from shouldCrawl method");
         }
     }
 
@@ -287,15 +499,20 @@ public class CrawlerController {
     }
 
     /**
-     * Enqueues task into the queue, deferring its execution
-     * @param task
+     * Applies crawling constraints of specific domains to the task queue sequences (sequence name is a domain name)
      */
-    private void deferCrawlerTask(CrawlerTask task) {
-        try {
-            log.debug("Deferring task " + task.getUrl());
-            taskQueue.enqueue(task);
-        } catch (Exception ex) {
-            log.error("Error enqueuing task " + task.getUrl(), ex);
+    private class DomainSequencePolicy implements SequencePolicy {
+
+        public int getMaxParallelTasks(String sequenceName) {
+            DomainConstraints constraints = domainConstraints.get(sequenceName);
+            // 0 means the domain limit is not set, global limit is applied
+            return constraints == null || constraints.getMaxParallelRequests() == 0
+                    ? maxParallelRequests : constraints.getMaxParallelRequests();
+        }
+
+        public long getMinDelay(String sequenceName) {
+            DomainConstraints constraints = domainConstraints.get(sequenceName);
+            return constraints == null ? politenessPeriod : constraints.getPolitenessPeriod();
         }
     }
 
@@ -309,8 +526,10 @@ public class CrawlerController {
         /**
          * Creates an instance of the crawler worker
          * @param crawler
+         * @param executor Executor used to run worker loop, if {@code null} - worker owns a thread
          */
-        public CrawlerWorker(Crawler crawler) {
+        public CrawlerWorker(Crawler crawler, Executor executor) {
+            super(executor);
             this.crawler = crawler;
         }
 
@@ -332,16 +551,23 @@ public class CrawlerController {
                 return;
             }
 
-            if (!checkPolitenessPeriod(statistics)) {
-                log.debug("Waiting for politeness period for domain " + statistics.getDomainName());
-                deferCrawlerTask(crawlerTask);
+            long politenessWaitTime = checkPolitenessPeriod(statistics);
+            if (politenessWaitTime > 0) {
+                // Task is not dequeued again until domain's politeness period has passed
+                log.debug("Waiting " + politenessWaitTime + " ms for politeness period for domain " + statistics.getDomainName());
+                taskQueue.defer(crawlerTask, politenessWaitTime);
                 return;
             }
 
+            Page page = null;
             try {
-                Page page = crawler.crawl(crawlerTask);
+                page = crawler.crawl(crawlerTask);
                 processPage(page, crawlerTask);
             } finally {
+                if (page != null) {
+                    // Page is processed, its content buffer can be reused
+                    page.release();
+                }
                 log.debug("Stopping processing task " + crawlerTask.getUrl());
             }
         }
@@ -359,6 +585,14 @@ public class CrawlerController {
 
             // Page was downloaded, tracking statistics
             statisticsService.afterDownloading(crawlerTask, page);
+            checkDownloadRate(crawlerTask, page);
+            if (adaptivePolicy != null) {
+                long retryAfter = adaptivePolicy.update(crawlerTask.getSequenceName(), page);
+                if (retryAfter > 0) {
+                    log.debug("Domain " + crawlerTask.getDomain() + " asked to retry after " + retryAfter + " ms");
+                    taskQueue.delaySequence(crawlerTask.getSequenceName(), retryAfter);
+                }
+            }
 
             if (page.getResponseCode() == HttpURLConnection.HTTP_OK) {
                 log.debug(crawlerTask.getUrl() + " has been successfully crawled, schedulling tasks");
@@ -369,11 +603,11 @@ public class CrawlerController {
                 log.debug("Scheduling new tasks");
 
                 // Getting specific domain constraints
-                DomainConstraints domainConstraints = crawlerConfiguration.getDomainConstraints(crawlerTask.getDomain());
-                int maxLevel = domainConstraints == null ? crawlerConfiguration.getMaxLevel() : domainConstraints.getMaxLevel();
+                DomainConstraints constraints = domainConstraints.get(crawlerTask.getDomain());
+                int level = constraints == null ? maxLevel : constraints.getMaxLevel();
 
                 // Checking crawling depth
-                if (maxLevel > 0 && crawlerTask.getLevel() == maxLevel) {
+                if (level > 0 && crawlerTask.getLevel() == level) {
                     log.debug(crawlerTask.getUrl() + " has exceeded maximum depth limit");
                     return;
                 }
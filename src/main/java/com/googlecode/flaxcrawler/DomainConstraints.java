@@ -1,13 +1,15 @@
 package com.googlecode.flaxcrawler;
 
 /**
- * Represents crawler constraints for a single domain
+ * Represents crawler constraints for a single domain. Constraints override the ones set in {@link CrawlerConfiguration}.
  * @author ameshkov
  */
 public class DomainConstraints {
 
     private int maxLevel;
     private int politenessPeriod;
+    private int maxParallelRequests;
+    private long maxBytesPerSecond;
 
     /**
      * Returns maximum crawling depth limit. 0 - unlimited. By default - 0.
@@ -40,4 +42,37 @@ public class DomainConstraints {
     public void setPolitenessPeriod(int politenessPeriod) {
         this.politenessPeriod = politenessPeriod;
     }
+
+    /**
+     * Returns maximum parallel requests to the domain limit. 0 - limit set in {@link CrawlerConfiguration} is used. By default - 0.
+     * @return
+     */
+    public int getMaxParallelRequests() {
+        return maxParallelRequests;
+    }
+
+    /**
+     * Sets maximum parallel requests to the domain limit. 0 - limit set in {@link CrawlerConfiguration} is used. By default - 0.
+     * @param maxParallelRequests
+     */
+    public void setMaxParallelRequests(int maxParallelRequests) {
+        this.maxParallelRequests = maxParallelRequests;
+    }
+
+    /**
+     * Returns maximum download rate (bytes per second) from the domain. 0 - unlimited. By default - 0.
+     * @return
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * Sets maximum download rate (bytes per second) from the domain. After a page is downloaded domain
+     * is not requested until the rate is under limit. 0 - unlimited. By default - 0.
+     * @param maxBytesPerSecond
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
 }
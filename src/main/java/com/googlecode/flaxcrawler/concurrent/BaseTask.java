@@ -1,12 +1,16 @@
 package com.googlecode.flaxcrawler.concurrent;
 
 import com.sleepycat.persist.model.Persistent;
+import java.io.Serializable;
 
 /**
  *  abstract Task implementation. {@code getSequenceName} returns {@code null}.
+ *  Task is {@code Serializable}, so it can be stored with {@link SerializableTaskCodec}.
  */
 @Persistent
-public abstract class BaseTask implements Task {
+public abstract class BaseTask implements Task, Serializable {
+
+    private final static long serialVersionUID = 6327442054111945483L;
 
     public String getSequenceName() {
         return null;
@@ -0,0 +1,351 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Base task queue class. Manages task queue workers and inner {@link Queue}.
+ * Better inherit from this class neither from the interface.
+ */
+public abstract class BaseTaskQueue implements TaskQueue {
+
+    private Logger log = Logger.getLogger(this.getClass());
+    private Queue queue = new DefaultQueue();
+    private List<TaskQueueWorker> workers = new ArrayList<TaskQueueWorker>();
+    private boolean started;
+    private final Object syncRoot = new Object();
+    /**
+     * Workers wait for signals on a j.u.c. lock, so waiting virtual thread does not pin its carrier thread
+     */
+    private final ReentrantLock signalLock = new ReentrantLock();
+    private final Condition taskAvailable = signalLock.newCondition();
+    private volatile long signalsCount;
+    /**
+     * Worker waiting for tasks that become available without a signal (see {@code getMaxWaitTime}),
+     * other workers wait for signals only. Is guarded by {@code signalLock}.
+     */
+    private Thread leader;
+    private int maxParallelProcessingSequences;
+    private SequencePolicy sequencePolicy;
+    /**
+     * Count of tasks in the inner queue, waiting inside the task queue or being processed
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Sets maximum number of parallel thread processing tasks with the same sequence name.
+     * Default value - 0 (unlimited). Limit is ignored for tasks with sequence name equal to {@code null}.
+     * @param maxParallelProcessingSequences
+     */
+    public void setMaxParallelProcessingSequences(int maxParallelProcessingSequences) {
+        this.maxParallelProcessingSequences = maxParallelProcessingSequences;
+    }
+
+    /**
+     * Returns maximum number of parallel thread processing tasks with the same sequence name
+     * @return
+     */
+    public int getMaxParallelProcessingSequences() {
+        return maxParallelProcessingSequences;
+    }
+
+    /**
+     * Sets policy with limits for specific sequences. If it is set - {@code maxParallelProcessingSequences}
+     * is ignored. By default - {@code null}.
+     * @param sequencePolicy
+     */
+    public void setSequencePolicy(SequencePolicy sequencePolicy) {
+        this.sequencePolicy = sequencePolicy;
+    }
+
+    /**
+     * Returns policy with limits for specific sequences
+     * @return
+     */
+    public SequencePolicy getSequencePolicy() {
+        return sequencePolicy;
+    }
+
+    /**
+     * Returns maximum number of parallel threads processing tasks from the specified sequence. 0 - unlimited.
+     * @param sequenceName
+     * @return
+     */
+    protected int getMaxParallelTasks(String sequenceName) {
+        return sequencePolicy == null ? maxParallelProcessingSequences : sequencePolicy.getMaxParallelTasks(sequenceName);
+    }
+
+    /**
+     * Sets inner queue ({@link DefaultQueue} is used by default. Also you can use {@link BerkleyQueue} or {@link MappedLogQueue}.)
+     * @param queue
+     */
+    public void setQueue(Queue queue) {
+        this.queue = queue;
+        size.set(queue.size());
+        queue.setListener(new QueueListener() {
+
+            public void objectsAvailable() {
+                // Workers may have found the inner queue empty while objects were being loaded
+                signalAll();
+            }
+
+            public void objectsLost(int count) {
+                // Lost tasks will never be processed
+                addSize(-count);
+            }
+        });
+    }
+
+    /**
+     * Returns inner queue
+     * @return
+     */
+    protected Queue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public void start() throws TaskQueueException {
+        synchronized (syncRoot) {
+            if (!isStarted()) {
+                setStarted(true);
+                for (TaskQueueWorker worker : workers) {
+                    worker.start();
+                }
+            } else {
+                log.error("TaskQueue is already started");
+                throw new TaskQueueException("TaskQueue is already started");
+            }
+        }
+    }
+
+    @Override
+    public void stop() throws TaskQueueException {
+        synchronized (syncRoot) {
+            setStarted(false);
+            // Waking up all workers waiting for tasks
+            signalAll();
+            for (TaskQueueWorker worker : workers) {
+                worker.stop();
+            }
+        }
+    }
+
+    @Override
+    public void dispose() throws TaskQueueException {
+        synchronized (syncRoot) {
+            stop();
+            queue.dispose();
+        }
+    }
+
+    @Override
+    public void join() throws TaskQueueException {
+        for (TaskQueueWorker worker : workers) {
+            worker.join();
+        }
+    }
+
+    @Override
+    public void join(long timeout) throws TaskQueueException {
+        long workerTimeout = timeout / workers.size();
+
+        for (TaskQueueWorker worker : workers) {
+            worker.join(workerTimeout);
+        }
+    }
+
+    @Override
+    public void addWorker(TaskQueueWorker worker) throws TaskQueueException {
+        synchronized (syncRoot) {
+            if (!isStarted()) {
+                worker.setTaskQueue(this);
+                workers.add(worker);
+            } else {
+                String message = "Error while adding task queue worker. Task queue is already started.";
+                log.error(message);
+                throw new TaskQueueException(message);
+            }
+        }
+    }
+
+    @Override
+    public Task take(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            while (isStarted()) {
+                long signals = signalsCount;
+
+                Task task = dequeue();
+                if (task != null) {
+                    return task;
+                }
+
+                signalLock.lockInterruptibly();
+                try {
+                    long waitTime = deadline - System.currentTimeMillis();
+                    if (waitTime <= 0) {
+                        return null;
+                    }
+
+                    // Waiting only if nothing has changed since dequeue attempt
+                    if (signals == signalsCount && isStarted()) {
+                        await(waitTime);
+                    }
+                } finally {
+                    signalLock.unlock();
+                }
+            }
+
+            return null;
+        } finally {
+            signalNextLeader();
+        }
+    }
+
+    /**
+     * Returns count of tasks in the task queue (including tasks being processed). Task queue lock is not taken,
+     * the counter is updated by implementations with {@code addSize}.
+     * @return
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Changes count of tasks in the task queue. Should be called when a task is enqueued (or deferred) and processed.
+     * @param delta
+     */
+    protected void addSize(int delta) {
+        size.addAndGet(delta);
+    }
+
+    /**
+     * Waits until the inner queue can accept more tasks. Should be called after tasks are added, without
+     * holding the queue lock, so that workers are not blocked by a producer waiting for the inner queue.
+     */
+    protected void awaitQueueCapacity() {
+        try {
+            getQueue().awaitCapacity();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns time (ms) after which a task can become available without a signal (for instance, after a delay),
+     * {@code Long.MAX_VALUE} if there are no such tasks. Only one of the workers waiting in {@code take} (the leader)
+     * waits for this time, others wait for signals. Override it together with {@code signalMaxWaitTimeChanged}.
+     * @return
+     */
+    protected long getMaxWaitTime() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Wakes up one of the workers to become the leader instead of the current one. Should be called when
+     * {@code getMaxWaitTime} gets shorter than it was.
+     */
+    protected void signalMaxWaitTimeChanged() {
+        signalLock.lock();
+        try {
+            leader = null;
+            signalsCount++;
+            taskAvailable.signal();
+        } finally {
+            signalLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a signal. If a task can become available without a signal and there's no leader - this worker
+     * becomes the leader and waits not longer than {@code getMaxWaitTime}. Is called under the signal lock.
+     * @param waitTime
+     * @throws InterruptedException
+     */
+    private void await(long waitTime) throws InterruptedException {
+        long maxWaitTime = getMaxWaitTime();
+
+        if (maxWaitTime == Long.MAX_VALUE || leader != null) {
+            taskAvailable.awaitNanos(TimeUnit.MILLISECONDS.toNanos(waitTime));
+            return;
+        }
+
+        Thread thisThread = Thread.currentThread();
+        leader = thisThread;
+        try {
+            taskAvailable.awaitNanos(TimeUnit.MILLISECONDS.toNanos(Math.min(waitTime, Math.max(1, maxWaitTime))));
+        } finally {
+            if (leader == thisThread) {
+                leader = null;
+            }
+        }
+    }
+
+    /**
+     * Wakes up one of the waiting workers to become the next leader, if there's no leader and a task can become
+     * available without a signal
+     */
+    private void signalNextLeader() {
+        if (getMaxWaitTime() == Long.MAX_VALUE) {
+            return;
+        }
+
+        signalLock.lock();
+        try {
+            if (leader == null && signalLock.hasWaiters(taskAvailable)) {
+                taskAvailable.signal();
+            }
+        } finally {
+            signalLock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up one of the workers waiting in {@code take}. Should be called when a task can be dequeued.
+     */
+    protected void signalTaskAvailable() {
+        signalLock.lock();
+        try {
+            signalsCount++;
+            taskAvailable.signal();
+        } finally {
+            signalLock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up all workers waiting in {@code take}
+     */
+    protected void signalAll() {
+        signalLock.lock();
+        try {
+            signalsCount++;
+            taskAvailable.signalAll();
+        } finally {
+            signalLock.unlock();
+        }
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    protected void setStarted(boolean started) {
+        this.started = started;
+    }
+
+    /**
+     * Returns logger
+     * @return
+     */
+    protected Logger getLogger() {
+        return log;
+    }
+}
@@ -1,46 +1,76 @@
 package com.googlecode.flaxcrawler.concurrent;
 
-import java.util.logging.Level;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 
 /**
  * Base task queue worker class. Better inherit from this class neither from the interface.
+ * By default worker owns a daemon thread. If {@link Executor} is passed to the constructor - worker loop
+ * is executed by this executor instead (see {@link WorkerExecutors}).
  */
 public abstract class BaseTaskQueueWorker implements TaskQueueWorker {
 
-    private final static int DEFAULT_IDLE_TIMEOUT = 100;
+    /**
+     * Maximum time worker waits for a task before checking if it is still started
+     */
+    private final static int DEFAULT_IDLE_TIMEOUT = 1000;
     private final static int DEFAULT_STOP_TIMEOUT = 10000;
+    private final static AtomicInteger workersCount = new AtomicInteger();
     private Logger log = Logger.getLogger(this.getClass());
     private TaskQueue taskQueue;
+    private Executor executor;
     private Thread workerThread;
-    private boolean started;
+    private String name;
+    private volatile Thread runningThread;
+    private volatile boolean started;
+    private boolean launched;
+    private final CountDownLatch finished = new CountDownLatch(1);
     private final Object syncRoot = new Object();
 
+    /**
+     * Creates worker that owns a daemon thread
+     */
     public BaseTaskQueueWorker() {
-        workerThread = new Thread(new Runnable() {
+        this(null);
+    }
 
-            @Override
-            public void run() {
-                doWorkLoop();
-            }
-        });
+    /**
+     * Creates worker that runs its loop using the specified {@link Executor}.
+     * Executor should provide a separate thread for each worker. If {@code executor} is {@code null}
+     * worker owns a daemon thread.
+     * @param executor
+     */
+    public BaseTaskQueueWorker(Executor executor) {
+        this.executor = executor;
+        this.name = "TaskQueueWorker-" + workersCount.incrementAndGet();
 
-        workerThread.setDaemon(true);
+        if (executor == null) {
+            workerThread = new Thread(new WorkerLoop(), name);
+            workerThread.setDaemon(true);
+        }
     }
 
     @Override
     public void setTaskQueue(TaskQueue taskQueue) {
-        log.info(workerThread.getName() + " set task queue");
+        log.info(name + " set task queue");
         this.taskQueue = taskQueue;
     }
 
     @Override
     public void start() {
         synchronized (syncRoot) {
-            if (!started) {
+            if (!started && !launched) {
                 started = true;
-                log.info(workerThread.getName() + " is started");
-                workerThread.start();
+                launched = true;
+                log.info(name + " is started");
+                if (executor == null) {
+                    workerThread.start();
+                } else {
+                    executor.execute(new WorkerLoop());
+                }
             }
         }
     }
@@ -50,14 +80,19 @@ public abstract class BaseTaskQueueWorker implements TaskQueueWorker {
         synchronized (syncRoot) {
             try {
                 started = false;
-                log.info(workerThread.getName() + " is joined, waiting until it stops");
-                workerThread.join(DEFAULT_STOP_TIMEOUT);
-                if (workerThread.isAlive()) {
-                    log.warn(workerThread.getName() + " has not stopped for " + DEFAULT_STOP_TIMEOUT + " ms. Interrupting thread.");
-                    workerThread.interrupt();
-                    workerThread.join();
+                if (!launched) {
+                    return;
                 }
-                log.info(workerThread.getName() + " is stopped");
+                log.info(name + " is joined, waiting until it stops");
+                if (!finished.await(DEFAULT_STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    log.warn(name + " has not stopped for " + DEFAULT_STOP_TIMEOUT + " ms. Interrupting thread.");
+                    Thread thread = runningThread;
+                    if (thread != null) {
+                        thread.interrupt();
+                    }
+                    finished.await();
+                }
+                log.info(name + " is stopped");
             } catch (InterruptedException ex) {
                 // Ignoring
             }
@@ -66,17 +101,27 @@ public abstract class BaseTaskQueueWorker implements TaskQueueWorker {
 
     @Override
     public void join() {
-        try {
-            workerThread.join();
-        } catch (InterruptedException ex) {
-            // Ignoring
-        }
+        join(0);
     }
 
+    /**
+     * Joins worker loop or waits for timeout to exceed. Timeout of 0 means to wait forever.
+     * @param timeout
+     */
     @Override
     public void join(long timeout) {
+        synchronized (syncRoot) {
+            if (!launched) {
+                return;
+            }
+        }
+
         try {
-            workerThread.join(timeout);
+            if (timeout == 0) {
+                finished.await();
+            } else {
+                finished.await(timeout, TimeUnit.MILLISECONDS);
+            }
         } catch (InterruptedException ex) {
             // Ignoring
         }
@@ -93,36 +138,33 @@ public abstract class BaseTaskQueueWorker implements TaskQueueWorker {
      * Main worker loop
      */
     private void doWorkLoop() {
-        log.info(workerThread.getName() + " start do work loop");
-        Task task = null;
+        log.info(name + " start do work loop");
 
         while (started && getTaskQueue().isStarted()) {
+            Task task = null;
+
             try {
-                task = getTaskQueue().dequeue();
-                if (task != null) {
-                    doWork(task);
-                }
+                // Waiting for a task. Worker is woken up as soon as a task is enqueued or processed.
+                task = getTaskQueue().take(DEFAULT_IDLE_TIMEOUT);
+            } catch (InterruptedException ex) {
+                // Ignoring
+            }
+
+            if (task == null) {
+                continue;
+            }
 
-                // Switch context
-                Thread.yield();
+            try {
+                doWork(task);
             } catch (Exception ex) {
                 TaskQueueException e = new TaskQueueException("Exception in doWork", task, ex);
                 doWorkHandleException(task, e);
             } finally {
-                if (task != null) {
-                    getTaskQueue().taskProcessed(task);
-                } else {
-                    try {
-                        // Worker is idle (no tasks found), so waiting for IDLE timeout
-                        Thread.sleep(DEFAULT_IDLE_TIMEOUT);
-                    } catch (InterruptedException ex) {
-                        // Ignoring
-                    }
-                }
+                getTaskQueue().taskProcessed(task);
             }
         }
 
-        log.info(workerThread.getName() + " finished its work");
+        log.info(name + " finished its work");
     }
 
     /**
@@ -133,6 +175,23 @@ public abstract class BaseTaskQueueWorker implements TaskQueueWorker {
         log.error("Error in doWork", ex);
     }
 
+    /**
+     * Runs worker loop and signals when it is finished
+     */
+    private class WorkerLoop implements Runnable {
+
+        @Override
+        public void run() {
+            runningThread = Thread.currentThread();
+            try {
+                doWorkLoop();
+            } finally {
+                runningThread = null;
+                finished.countDown();
+            }
+        }
+    }
+
     /**
      * Returns logger
      * @return
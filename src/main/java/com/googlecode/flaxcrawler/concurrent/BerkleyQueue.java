@@ -3,54 +3,184 @@ package com.googlecode.flaxcrawler.concurrent;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.EntityStore;
 import com.sleepycat.persist.PrimaryIndex;
 import com.sleepycat.persist.StoreConfig;
 import com.sleepycat.persist.model.Entity;
 import com.sleepycat.persist.model.PrimaryKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.ObjectUtils;
 import org.apache.log4j.Logger;
 
 /**
- * Queue implementation using berkley db. {@link DefaultQueue} is used to store first {@code QUEUE_CAPACITY}
- * tasks. Berkley DB is used to store other tasks. When {@link DefaultQueue} size is less than {@code MIN_QUEUE_CAPACITY} -
- * tasks are loaded from the berkley db.
+ * Queue implementation using berkley db. In-memory queue is used to store first {@code QUEUE_CAPACITY}
+ * tasks. Berkley DB is used to store other tasks.
+ * Tasks are stored to the berkley db in chunks of {@code chunkSize} tasks. Chunks are loaded back with a single cursor
+ * range scan, so the number of berkley db operations does not depend on the number of tasks. Tasks are stored
+ * encoded with {@link TaskCodec} ({@link SerializableTaskCodec} by default).
+ * All berkley db operations are made by a background I/O thread: it stores full chunks and, when in-memory queue
+ * size is less than low watermark, loads chunks until its size reaches high watermark. {@code poll} never waits
+ * for berkley db, it returns {@code null} if the tasks are not loaded yet, listener is notified when they are loaded.
+ * {@code add} never waits either, producers are limited by {@code awaitCapacity} called outside the task queue lock.
+ * In durable mode queue is not cleaned on startup, it is restored from the last checkpoint (see {@code checkpoint}).
+ * Loaded chunks are deleted only when the next checkpoint is stored, so restoring takes the checkpoint head and
+ * the range of chunks stored by it.
  */
 public class BerkleyQueue implements Queue {
 
     public final static int DEFAULT_QUEUE_CAPACITY = 100000;
+    public final static int DEFAULT_CHUNK_SIZE = 1000;
+    public final static int DEFAULT_MAX_PENDING_CHUNKS = 16;
+    private final static int CHECKPOINT_ID = 1;
     private Logger log = Logger.getLogger(this.getClass());
     private Environment environment;
     private EntityStore berkleyQueueStore;
     private PrimaryIndex<Long, BerkleyQueueElement> berkleyQueueIndex;
-    private DefaultQueue innerQueue = new DefaultQueue();
+    private PrimaryIndex<Integer, BerkleyQueueCheckpoint> berkleyCheckpointIndex;
+    private LinkedList<Task> innerQueue = new LinkedList<Task>();
+    private boolean durable;
+    private TaskCodec codec = new SerializableTaskCodec();
     private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int lowWatermark;
+    private int highWatermark;
+    private int maxPendingChunks = DEFAULT_MAX_PENDING_CHUNKS;
     private boolean loadToBerkley = false;
     /**
-     * Pointer to the head of queue
+     * Tasks waiting to be stored to the berkley db as a single chunk
+     */
+    private ArrayList<Task> writeBuffer = new ArrayList<Task>();
+    /**
+     * Full chunks waiting for the I/O thread to store them
+     */
+    private LinkedList<BerkleyQueueElement> pendingChunks = new LinkedList<BerkleyQueueElement>();
+    /**
+     * Count of full chunks waiting to be stored. It is updated under the queue lock, {@code awaitCapacity} reads it
+     * without locking.
+     */
+    private volatile int pendingChunksCount;
+    /**
+     * Producers wait for the I/O thread on a j.u.c. lock, so they do not hold the queue lock (and do not pin
+     * a virtual thread carrier) while waiting
+     */
+    private final ReentrantLock capacityLock = new ReentrantLock();
+    private final Condition capacityAvailable = capacityLock.newCondition();
+    private volatile QueueListener listener;
+    /**
+     * Chunk being stored by the I/O thread
+     */
+    private BerkleyQueueElement flushingChunk;
+    /**
+     * Count of tasks in chunks (stored in the berkley db or waiting to be stored)
+     */
+    private int berkleyTasksCount;
+    /**
+     * Count of tasks in the queue. It is updated under the queue lock, {@code size} reads it without locking.
+     */
+    private volatile int size;
+    /**
+     * Pointer to the head chunk of queue
      */
     private long startId = 1;
     /**
-     * Pointer to the next free place in the queue
+     * Chunks with lesser keys are already stored to the berkley db
+     */
+    private long flushedId = 1;
+    /**
+     * Pointer to the next free place for a chunk in the queue
      */
     private long endId = 1;
+    /**
+     * Chunks with lesser keys are deleted from the berkley db (durable mode only)
+     */
+    private long deletedId = 1;
+    /**
+     * Checkpoint waiting for the I/O thread to store it
+     */
+    private FutureTask<Object> checkpointTask;
+    private Thread ioThread;
+    private boolean disposed;
 
     /**
-     * Sets inner {@link DefaultQueue} capacity. Other tasks stored in berkley db.
+     * Sets in-memory queue capacity. Other tasks stored in berkley db.
      * @param queueCapacity
      */
     public void setQueueCapacity(int queueCapacity) {
         this.queueCapacity = queueCapacity;
     }
 
+    /**
+     * Sets count of tasks stored to the berkley db as a single record. By default - {@code DEFAULT_CHUNK_SIZE}.
+     * @param chunkSize
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets inner queue size at which tasks start loading from the berkley db. By default - {@code queueCapacity/10}.
+     * @param lowWatermark
+     */
+    public void setLowWatermark(int lowWatermark) {
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * Sets inner queue size up to which tasks are loaded from the berkley db. By default - {@code queueCapacity}.
+     * @param highWatermark
+     */
+    public void setHighWatermark(int highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Sets codec used to store tasks. By default - {@link SerializableTaskCodec}.
+     * Warning - in durable mode the same codec should be used after restart.
+     * @param codec
+     */
+    public void setCodec(TaskCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Sets maximum count of full chunks waiting to be stored. When this limit is hit {@code awaitCapacity}
+     * waits for the I/O thread. By default - {@code DEFAULT_MAX_PENDING_CHUNKS}.
+     * @param maxPendingChunks
+     */
+    public void setMaxPendingChunks(int maxPendingChunks) {
+        this.maxPendingChunks = maxPendingChunks;
+    }
+
     /**
      * Creates an instance of the {@code BerkleyQueue}
      * @param environmentFile
      */
     public BerkleyQueue(String environmentFile) throws DatabaseException {
+        this(environmentFile, false);
+    }
+
+    /**
+     * Creates an instance of the {@code BerkleyQueue}
+     * @param environmentFile
+     * @param durable If {@code true} - queue is restored from the last checkpoint stored in {@code environmentFile}
+     */
+    public BerkleyQueue(String environmentFile, boolean durable) throws DatabaseException {
         log.info("Initializing queue repository");
+        this.durable = durable;
 
         EnvironmentConfig environmentConfig = new EnvironmentConfig();
         StoreConfig storeConfig = new StoreConfig();
@@ -62,10 +192,10 @@ public class BerkleyQueue implements Queue {
 
         storeConfig.setAllowCreate(true);
         storeConfig.setTransactional(false);
-        storeConfig.setTemporary(true);
+        storeConfig.setTemporary(!durable);
 
         File envFile = new File(environmentFile);
-        if (envFile.exists()) {
+        if (envFile.exists() && !durable) {
             log.info("Environment is already exists");
             try {
                 FileUtils.cleanDirectory(envFile);
@@ -82,13 +212,36 @@ public class BerkleyQueue implements Queue {
         berkleyQueueStore = new EntityStore(environment, "BerkleyQueueStore", storeConfig);
 
         berkleyQueueIndex = berkleyQueueStore.getPrimaryIndex(Long.class, BerkleyQueueElement.class);
+        berkleyCheckpointIndex = berkleyQueueStore.getPrimaryIndex(Integer.class, BerkleyQueueCheckpoint.class);
+
+        if (durable) {
+            restore();
+        }
+
+        ioThread = new Thread(new BerkleyQueueIO(), "BerkleyQueueIO");
+        ioThread.setDaemon(true);
+        ioThread.start();
+
         log.info("Environment successfully initialized");
     }
 
     /**
-     * Closes queue
+     * Stops I/O thread and closes queue. Checkpoint that is not stored yet is stored before closing.
      */
     public void dispose() {
+        synchronized (this) {
+            disposed = true;
+            notifyAll();
+        }
+        signalCapacity();
+
+        try {
+            ioThread.join();
+        } catch (InterruptedException ex) {
+            log.warn("Interrupted while waiting for the I/O thread");
+            Thread.currentThread().interrupt();
+        }
+
         try {
             berkleyQueueStore.close();
             environment.close();
@@ -101,10 +254,12 @@ public class BerkleyQueue implements Queue {
 
     @Override
     public synchronized void add(Object obj) {
-        if (loadToBerkley) {
+        if (loadToBerkley || hasBerkleyTasks() || !(obj instanceof Task)) {
+            // Older tasks are in the berkley db, new ones should go after them
             defer(obj);
         } else {
-            innerQueue.add(obj);
+            innerQueue.add((Task) obj);
+            updateSize();
 
             if (innerQueue.size() >= queueCapacity) {
                 log.info("Tasks count is greater than queue capacity, putting other tasks to berkley db");
@@ -118,54 +273,188 @@ public class BerkleyQueue implements Queue {
         putToBerkley(obj);
     }
 
+    /**
+     * Waits while there are more than {@code maxPendingChunks} full chunks waiting for the I/O thread
+     * @throws InterruptedException
+     */
+    @Override
+    public void awaitCapacity() throws InterruptedException {
+        if (pendingChunksCount <= maxPendingChunks) {
+            return;
+        }
+
+        capacityLock.lockInterruptibly();
+        try {
+            while (pendingChunksCount > maxPendingChunks && !disposed) {
+                capacityAvailable.await();
+            }
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    @Override
+    public void setListener(QueueListener listener) {
+        this.listener = listener;
+    }
+
     @Override
     public synchronized Object poll() {
+        if (innerQueue.size() <= getLowWatermark()) {
+            loadPendingTasks();
+        }
+
         Object obj = innerQueue.poll();
+        updateSize();
 
-        if (innerQueue.size() <= (queueCapacity / 10) && (endId > startId)) {
-            log.info("Tasks count is lesser than queueCapacity/10, loading tasks from berkley");
-            loadInnerQueueFromBerkley(queueCapacity - innerQueue.size());
-        } else if (loadToBerkley && innerQueue.size() <= (queueCapacity / 2)) {
+        if (loadToBerkley && !hasBerkleyTasks() && innerQueue.size() <= (queueCapacity / 2)) {
             log.info("Tasks count is lesser than queueCapacity/2, using in-memory queue now");
             loadToBerkley = false;
         }
 
+        if (needsPrefetch()) {
+            // Waking up the I/O thread
+            notifyAll();
+        }
+
         return obj;
     }
 
     /**
-     * Loads tasks from the berkley queue to the inner queue
+     * Stores a snapshot of the queue in durable mode. Snapshot consists of the {@code pending} tasks, in-memory tasks
+     * and the range of chunks. Chunks that are not stored yet (and the write buffer) are stored before the snapshot.
+     * @param pending
+     * @return
      */
-    private void loadInnerQueueFromBerkley(int count) {
-        log.info("Loading up to " + count + " tasks from the berkley queue to the inner queue");
+    public synchronized Future<?> checkpoint(Collection<?> pending) {
+        if (!durable) {
+            return new DefaultQueue().checkpoint(pending);
+        }
 
-        int loaded = 0;
-        for (int i = 0; i < count; i++) {
-            Object toLoad = pollFromBerkley();
+        try {
+            // Waiting for the previous checkpoint
+            while (checkpointTask != null) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
 
-            if (toLoad == null) {
-                break;
+        final ArrayList<Task> tasks = new ArrayList<Task>(pending.size() + innerQueue.size());
+        for (Object obj : pending) {
+            if (obj instanceof Task) {
+                tasks.add((Task) obj);
             }
+        }
+        tasks.addAll(innerQueue);
 
-            innerQueue.add(toLoad);
-            loaded++;
+        if (!writeBuffer.isEmpty()) {
+            pendingChunks.add(new BerkleyQueueElement(endId++, writeBuffer));
+            pendingChunksCount = pendingChunks.size();
+            berkleyTasksCount += writeBuffer.size();
+            writeBuffer = new ArrayList<Task>();
         }
 
-        log.info(loaded + " tasks loaded from the berkley queue to the inner queue");
+        final BerkleyQueueCheckpoint checkpoint = new BerkleyQueueCheckpoint(CHECKPOINT_ID, startId, endId, berkleyTasksCount, tasks);
+        checkpointTask = new FutureTask<Object>(new Runnable() {
+
+            public void run() {
+                storeCheckpoint(checkpoint);
+            }
+        }, null);
+
+        notifyAll();
+        return checkpointTask;
     }
 
     @Override
     public int size() {
+        return size;
+    }
+
+    /**
+     * Updates count of tasks in the queue. Should be called under the queue lock after tasks are added or removed.
+     */
+    private void updateSize() {
+        size = innerQueue.size() + berkleyTasksCount + writeBuffer.size();
+    }
+
+    /**
+     * Returns inner queue size at which tasks start loading from the berkley db
+     * @return
+     */
+    private int getLowWatermark() {
+        return lowWatermark > 0 ? lowWatermark : queueCapacity / 10;
+    }
+
+    /**
+     * Returns inner queue size up to which tasks are loaded from the berkley db
+     * @return
+     */
+    private int getHighWatermark() {
+        return highWatermark > 0 ? highWatermark : queueCapacity;
+    }
+
+    /**
+     * Checks if there are tasks stored in the berkley db or waiting to be stored
+     * @return
+     */
+    private boolean hasBerkleyTasks() {
+        return endId > startId || !writeBuffer.isEmpty();
+    }
+
+    /**
+     * Checks if the I/O thread should load stored chunks to the inner queue
+     * @return
+     */
+    private boolean needsPrefetch() {
+        return startId < flushedId && innerQueue.size() <= getLowWatermark();
+    }
+
+    /**
+     * When all stored chunks are loaded - moves chunks that are not stored yet (and then the write buffer)
+     * directly to the inner queue. Does not access the berkley db.
+     */
+    private void loadPendingTasks() {
+        // Chunks waiting for a checkpoint should be stored before they are loaded
+        while (innerQueue.size() < getHighWatermark() && startId == flushedId && flushingChunk == null && checkpointTask == null) {
+            BerkleyQueueElement chunk = pendingChunks.poll();
+            pendingChunksCount = pendingChunks.size();
+
+            if (chunk == null) {
+                for (Task task : writeBuffer) {
+                    innerQueue.add(task);
+                }
+                writeBuffer = new ArrayList<Task>();
+                return;
+            }
+
+            for (Task task : chunk.getTasks()) {
+                innerQueue.add(task);
+            }
+            berkleyTasksCount -= chunk.getTasksCount();
+            startId = chunk.getPrimaryKey() + 1;
+            flushedId = startId;
+            // Waking up producers waiting for pending chunks
+            signalCapacity();
+        }
+    }
+
+    /**
+     * Wakes up producers waiting in {@code awaitCapacity}
+     */
+    private void signalCapacity() {
+        capacityLock.lock();
         try {
-            return (int) berkleyQueueIndex.count() + innerQueue.size();
-        } catch (DatabaseException ex) {
-            log.warn("Error getting size of berkley db index", ex);
-            return innerQueue.size();
+            capacityAvailable.signalAll();
+        } finally {
+            capacityLock.unlock();
         }
     }
 
     /**
-     * Puts object to berkley db storage
+     * Puts object to the write buffer. Full write buffer is passed to the I/O thread as a single chunk.
+     * Does not wait for the I/O thread, see {@code awaitCapacity}.
      * @param obj
      * @throws TaskQueueException
      */
@@ -181,55 +470,336 @@ public class BerkleyQueue implements Queue {
         }
 
         synchronized (this) {
-            BerkleyQueueElement queueElement = new BerkleyQueueElement(endId, (Task) obj);
+            writeBuffer.add((Task) obj);
+            updateSize();
+
+            if (writeBuffer.size() >= chunkSize) {
+                pendingChunks.add(new BerkleyQueueElement(endId++, writeBuffer));
+                pendingChunksCount = pendingChunks.size();
+                berkleyTasksCount += writeBuffer.size();
+                writeBuffer = new ArrayList<Task>();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stores chunk to the berkley db. Called by the I/O thread.
+     * @param chunk
+     */
+    private void storeChunk(BerkleyQueueElement chunk) {
+        boolean stored = false;
+
+        try {
+            chunk.setData(encodeTasks(chunk.getTasks()));
+            berkleyQueueIndex.put(chunk);
+            stored = true;
+            log.debug("Put " + chunk.getTasksCount() + " tasks to berkley queue id = " + chunk.getPrimaryKey());
+        } catch (DatabaseException ex) {
+            log.error("Error inserting tasks to the repository, " + chunk.getTasksCount() + " tasks are lost", ex);
+        }
+
+        synchronized (this) {
+            flushingChunk = null;
+            flushedId = chunk.getPrimaryKey() + 1;
+            if (!stored) {
+                berkleyTasksCount -= chunk.getTasksCount();
+                updateSize();
+            }
+            notifyAll();
+        }
+        signalCapacity();
+
+        if (!stored) {
+            notifyLost(chunk.getTasksCount());
+        }
+    }
+
+    /**
+     * Notifies listener about tasks that will never be polled
+     * @param count
+     */
+    private void notifyLost(int count) {
+        QueueListener listener = this.listener;
+        if (count > 0 && listener != null) {
+            listener.objectsLost(count);
+        }
+    }
+
+    /**
+     * Loads chunks with keys from {@code fromId} (inclusive) to {@code toId} (exclusive) to the inner queue.
+     * Chunks are read and deleted with a single cursor, berkley db is accessed without holding the queue lock.
+     * Called by the I/O thread.
+     * @param fromId
+     * @param toId
+     * @param count
+     */
+    private void prefetch(long fromId, long toId, int count) {
+        log.info("Loading up to " + count + " tasks from the berkley queue to the inner queue");
+
+        List<BerkleyQueueElement> chunks = new ArrayList<BerkleyQueueElement>();
+        long nextId = fromId;
+        int loaded = 0;
+        EntityCursor<BerkleyQueueElement> cursor = null;
+
+        try {
+            cursor = berkleyQueueIndex.entities(fromId, true, toId, false);
+
+            BerkleyQueueElement element;
+            while (loaded < count && (element = cursor.next()) != null) {
+                if (!durable) {
+                    cursor.delete();
+                }
+                chunks.add(element);
+                nextId = element.getPrimaryKey() + 1;
+                loaded += element.getTasksCount();
+            }
+
+            if (loaded < count) {
+                // All chunks in range are read, skipping those that failed to be stored
+                nextId = toId;
+            }
+        } catch (DatabaseException ex) {
+            log.error("Error while loading tasks from repository", ex);
+        } finally {
+            closeCursor(cursor);
+        }
+
+        // Tasks that could not be encoded or decoded are lost
+        int lost = 0;
+        for (BerkleyQueueElement chunk : chunks) {
+            chunk.setTasks(decodeTasks(chunk.getData()));
+            lost += chunk.getTasksCount() - chunk.getTasks().size();
+        }
+
+        synchronized (this) {
+            for (BerkleyQueueElement chunk : chunks) {
+                for (Task task : chunk.getTasks()) {
+                    innerQueue.add(task);
+                }
+                berkleyTasksCount -= chunk.getTasksCount();
+            }
+            startId = nextId;
+            updateSize();
+        }
+
+        log.info(loaded + " tasks loaded from the berkley queue to the inner queue");
+        notifyLost(lost);
+
+        QueueListener listener = this.listener;
+        if (loaded > 0 && listener != null) {
+            // Workers could find the inner queue empty while tasks were being loaded
+            listener.objectsAvailable();
+        }
+    }
+
+    /**
+     * Stores checkpoint, deletes chunks loaded before it and syncs the environment. Called by the I/O thread.
+     * @param checkpoint
+     */
+    private void storeCheckpoint(BerkleyQueueCheckpoint checkpoint) {
+        try {
+            checkpoint.setData(encodeTasks(checkpoint.getTasks()));
+            berkleyCheckpointIndex.put(checkpoint);
+            deleteChunks(deletedId, checkpoint.getStartId());
+            deletedId = checkpoint.getStartId();
+            environment.sync();
+            log.info("Checkpoint with " + checkpoint.getTasks().size() + " head tasks and "
+                    + checkpoint.getTasksCount() + " stored tasks has been saved");
+        } catch (DatabaseException ex) {
+            log.error("Error while storing checkpoint", ex);
+            throw new RuntimeException("Error while storing checkpoint", ex);
+        }
+    }
+
+    /**
+     * Restores queue from the last checkpoint. Chunks stored after the checkpoint are deleted, tasks in them
+     * are scheduled again after restart.
+     */
+    private void restore() throws DatabaseException {
+        BerkleyQueueCheckpoint checkpoint = berkleyCheckpointIndex.get(CHECKPOINT_ID);
+
+        if (checkpoint != null) {
+            startId = checkpoint.getStartId();
+            deletedId = startId;
+            endId = checkpoint.getEndId();
+            flushedId = endId;
+            berkleyTasksCount = checkpoint.getTasksCount();
+            innerQueue.addAll(decodeTasks(checkpoint.getData()));
+            updateSize();
+        }
+
+        deleteChunks(0, startId);
+        deleteChunks(endId, Long.MAX_VALUE);
+        log.info("Queue restored from the checkpoint, " + size() + " tasks");
+    }
+
+    /**
+     * Encodes tasks as {@code [length][bytes]} records. Tasks that cannot be encoded are skipped.
+     * @param tasks
+     * @return
+     */
+    private byte[] encodeTasks(List<Task> tasks) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        for (Task task : tasks) {
             try {
-                berkleyQueueIndex.put(queueElement);
-                log.debug("Put task to berkley queue endId = " + endId++ + ", startId = " + startId);
-            } catch (DatabaseException ex) {
-                log.error("Error inserting task to the repository", ex);
+                byte[] data = codec.encode(task);
+                out.writeInt(data.length);
+                out.write(data);
+            } catch (IOException ex) {
+                log.error("Error encoding task, skipping it", ex);
             }
         }
+
+        return bytes.toByteArray();
     }
 
     /**
-     * Polls object from berkley db
+     * Decodes tasks encoded with {@code encodeTasks}. Tasks that cannot be decoded are skipped.
+     * @param data
      * @return
-     * @throws TaskQueueException
      */
-    private Object pollFromBerkley() {
+    private ArrayList<Task> decodeTasks(byte[] data) {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+
+        if (data == null) {
+            return tasks;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        try {
+            while (in.available() > 0) {
+                byte[] taskData = new byte[in.readInt()];
+                in.readFully(taskData);
+
+                try {
+                    tasks.add(codec.decode(taskData));
+                } catch (IOException ex) {
+                    log.error("Error decoding task, skipping it", ex);
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Error reading tasks chunk", ex);
+        }
+
+        return tasks;
+    }
+
+    /**
+     * Deletes chunks with keys from {@code fromId} (inclusive) to {@code toId} (exclusive)
+     * @param fromId
+     * @param toId
+     * @throws DatabaseException
+     */
+    private void deleteChunks(long fromId, long toId) throws DatabaseException {
+        if (fromId >= toId) {
+            return;
+        }
+
+        EntityCursor<BerkleyQueueElement> cursor = null;
+
         try {
-            synchronized (this) {
-                BerkleyQueueElement entityBerkleyQueueElement = berkleyQueueIndex.get(startId);
-                if (ObjectUtils.equals(entityBerkleyQueueElement, null)) {
-                    return null;
+            cursor = berkleyQueueIndex.entities(fromId, true, toId, false);
+            while (cursor.next() != null) {
+                cursor.delete();
+            }
+        } finally {
+            closeCursor(cursor);
+        }
+    }
+
+    /**
+     * Closes cursor
+     * @param cursor
+     */
+    private void closeCursor(EntityCursor<?> cursor) {
+        if (cursor != null) {
+            try {
+                cursor.close();
+            } catch (DatabaseException ex) {
+                log.warn("Error closing cursor", ex);
+            }
+        }
+    }
+
+    /**
+     * Background thread making all berkley db operations. Loading tasks has priority over storing them,
+     * checkpoint is stored after all chunks it refers to.
+     */
+    private class BerkleyQueueIO implements Runnable {
+
+        public void run() {
+            while (true) {
+                BerkleyQueueElement chunk = null;
+                FutureTask<Object> checkpoint = null;
+                long fromId = 0;
+                long toId = 0;
+                int count = 0;
+
+                synchronized (BerkleyQueue.this) {
+                    try {
+                        while (!disposed && !needsPrefetch() && pendingChunks.isEmpty() && checkpointTask == null) {
+                            BerkleyQueue.this.wait();
+                        }
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+
+                    if (disposed && checkpointTask == null) {
+                        return;
+                    }
+
+                    if (needsPrefetch() && !disposed) {
+                        fromId = startId;
+                        toId = flushedId;
+                        count = getHighWatermark() - innerQueue.size();
+                    } else if (!pendingChunks.isEmpty()) {
+                        chunk = pendingChunks.poll();
+                        pendingChunksCount = pendingChunks.size();
+                        flushingChunk = chunk;
+                    } else {
+                        checkpoint = checkpointTask;
+                    }
                 }
-                Task task = entityBerkleyQueueElement.getTask();
-                if (task != null) {
-                    berkleyQueueIndex.delete(startId);
-                    ++startId;
+
+                if (chunk != null) {
+                    storeChunk(chunk);
+                } else if (checkpoint != null) {
+                    checkpoint.run();
+
+                    synchronized (BerkleyQueue.this) {
+                        checkpointTask = null;
+                        BerkleyQueue.this.notifyAll();
+                    }
+                } else {
+                    prefetch(fromId, toId, count);
                 }
-                log.debug("Poll task from berkley queue, startId = " + startId);
-                return task;
             }
-        } catch (DatabaseException ex) {
-            log.error("Error while polling task from repository", ex);
-            return null;
         }
     }
 
+    /**
+     * Chunk of tasks stored in berkley db
+     */
     @Entity
     public static class BerkleyQueueElement {
 
         @PrimaryKey
         private long primaryKey;
-        private Task task;
+        private int tasksCount;
+        private byte[] data;
+        private transient ArrayList<Task> tasks;
 
         public BerkleyQueueElement() {
         }
 
-        public BerkleyQueueElement(long primaryKey, Task task) {
+        public BerkleyQueueElement(long primaryKey, ArrayList<Task> tasks) {
             this.primaryKey = primaryKey;
-            this.task = task;
+            this.tasks = tasks;
+            this.tasksCount = tasks.size();
         }
 
         /**
@@ -247,18 +817,113 @@ public class BerkleyQueue implements Queue {
         }
 
         /**
-         * @return the task
+         * @return count of tasks in the chunk
+         */
+        public int getTasksCount() {
+            return tasksCount;
+        }
+
+        /**
+         * @return encoded tasks
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @param data encoded tasks
          */
-        public Task getTask() {
-            return task;
+        public void setData(byte[] data) {
+            this.data = data;
         }
 
         /**
-         * @param task the task to set
+         * @return the tasks (not stored)
          */
-        public void setTask(Task task) {
-            this.task = task;
+        public ArrayList<Task> getTasks() {
+            return tasks;
+        }
+
+        /**
+         * @param tasks the tasks to set
+         */
+        public void setTasks(ArrayList<Task> tasks) {
+            this.tasks = tasks;
         }
     }
-}
 
+    /**
+     * Queue checkpoint stored in berkley db
+     */
+    @Entity
+    public static class BerkleyQueueCheckpoint {
+
+        @PrimaryKey
+        private int id;
+        private long startId;
+        private long endId;
+        private int tasksCount;
+        private byte[] data;
+        private transient ArrayList<Task> tasks;
+
+        public BerkleyQueueCheckpoint() {
+        }
+
+        public BerkleyQueueCheckpoint(int id, long startId, long endId, int tasksCount, ArrayList<Task> tasks) {
+            this.id = id;
+            this.startId = startId;
+            this.endId = endId;
+            this.tasksCount = tasksCount;
+            this.tasks = tasks;
+        }
+
+        /**
+         * @return the id
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return key of the first chunk
+         */
+        public long getStartId() {
+            return startId;
+        }
+
+        /**
+         * @return key next to the last chunk
+         */
+        public long getEndId() {
+            return endId;
+        }
+
+        /**
+         * @return count of tasks in chunks
+         */
+        public int getTasksCount() {
+            return tasksCount;
+        }
+
+        /**
+         * @return encoded tasks at the head of the queue
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @param data encoded tasks at the head of the queue
+         */
+        public void setData(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * @return tasks at the head of the queue (not stored)
+         */
+        public ArrayList<Task> getTasks() {
+            return tasks;
+        }
+    }
+}
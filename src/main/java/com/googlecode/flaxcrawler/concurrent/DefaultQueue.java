@@ -1,6 +1,9 @@
 package com.googlecode.flaxcrawler.concurrent;
 
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Default queue implementation
@@ -22,10 +25,29 @@ public class DefaultQueue implements Queue {
         return innerList.poll();
     }
 
+    public void awaitCapacity() {
+        // Queue is not limited
+    }
+
+    public void setListener(QueueListener listener) {
+        // Objects are available right after they are added
+    }
+
     public void dispose() {
         // Do nothing
     }
 
+    public Future<?> checkpoint(Collection<?> pending) {
+        // Nothing is stored, returning done future
+        FutureTask<Object> future = new FutureTask<Object>(new Runnable() {
+
+            public void run() {
+            }
+        }, null);
+        future.run();
+        return future;
+    }
+
     public int size() {
         return innerList.size();
     }
@@ -0,0 +1,366 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import com.googlecode.flaxcrawler.utils.MappedBuffers;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Queue implementation using append-only memory-mapped segment files. Tasks are encoded with {@link TaskCodec}
+ * and appended to the last segment as {@code [length][bytes]} records. Segments are read sequentially and
+ * deleted when they are consumed, so disk is never accessed randomly and OS page cache does the buffering.
+ * Segment is unmapped before it is deleted, so its memory and file are released right away (not when the buffer is collected).
+ * Queue is not durable, directory is cleaned on startup.
+ */
+public class MappedLogQueue implements Queue {
+
+    public final static int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /**
+     * Record length marking the end of the segment
+     */
+    private final static int END_OF_SEGMENT = -1;
+    private Logger log = Logger.getLogger(this.getClass());
+    private File directory;
+    private int segmentSize;
+    private TaskCodec codec = new SerializableTaskCodec();
+    private long writeSegmentId;
+    private MappedByteBuffer writeBuffer;
+    private long readSegmentId;
+    private ByteBuffer readBuffer;
+    /**
+     * Mapping of the read segment, {@code readBuffer} is its view (it is the same as {@code writeBuffer}
+     * if the segment being written is read)
+     */
+    private MappedByteBuffer readMapping;
+    /**
+     * Count of records, changed under the queue lock and read without it
+     */
+    private volatile int size;
+
+    /**
+     * Creates an instance of the {@code MappedLogQueue} with segments of {@code DEFAULT_SEGMENT_SIZE} bytes
+     * @param directory
+     * @throws IOException
+     */
+    public MappedLogQueue(String directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates an instance of the {@code MappedLogQueue}
+     * @param directory Directory for segment files
+     * @param segmentSize Segment file size (bytes)
+     * @throws IOException
+     */
+    public MappedLogQueue(String directory, int segmentSize) throws IOException {
+        log.info("Initializing queue segments directory");
+
+        this.directory = new File(directory);
+        this.segmentSize = segmentSize;
+
+        if (this.directory.exists()) {
+            log.info("Directory is already exists");
+            FileUtils.cleanDirectory(this.directory);
+        }
+        this.directory.mkdirs();
+
+        log.info("Segments directory is " + this.directory.getAbsolutePath());
+
+        writeBuffer = createSegment(writeSegmentId, segmentSize);
+        readMapping = writeBuffer;
+        readBuffer = writeBuffer.duplicate();
+    }
+
+    /**
+     * Sets codec used to store tasks. By default - {@link SerializableTaskCodec}.
+     * Warning - this method works before any task is added only.
+     * @param codec
+     */
+    public void setCodec(TaskCodec codec) {
+        this.codec = codec;
+    }
+
+    public void add(Object obj) {
+        if (!(obj instanceof Task)) {
+            log.error("Error adding task to the queue, object isn't instanse of task");
+            return;
+        }
+
+        byte[] data;
+        try {
+            data = codec.encode((Task) obj);
+        } catch (IOException ex) {
+            log.error("Error encoding task", ex);
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                append(data);
+            } catch (IOException ex) {
+                log.error("Error creating new queue segment", ex);
+            }
+        }
+    }
+
+    public void defer(Object obj) {
+        add(obj);
+    }
+
+    public Object poll() {
+        byte[] data;
+
+        synchronized (this) {
+            try {
+                data = read();
+            } catch (IOException ex) {
+                log.error("Error reading queue segment", ex);
+                return null;
+            }
+        }
+
+        if (data == null) {
+            return null;
+        }
+
+        try {
+            return codec.decode(data);
+        } catch (IOException ex) {
+            log.error("Error decoding task", ex);
+            return null;
+        }
+    }
+
+    public void awaitCapacity() {
+        // Records are appended to the mapped segment without waiting
+    }
+
+    public void setListener(QueueListener listener) {
+        // Objects are available right after they are added
+    }
+
+    /**
+     * Returns all tasks in the queue without removing them. Tasks that cannot be decoded are skipped.
+     * @return
+     */
+    public synchronized List<Task> snapshot() {
+        List<Task> tasks = new ArrayList<Task>(size);
+        ByteBuffer buffer = readBuffer.duplicate();
+        long segmentId = readSegmentId;
+        // Segments mapped for the snapshot only
+        MappedByteBuffer mapping = null;
+
+        try {
+            int count = 0;
+            while (count < size) {
+                int length = buffer.getInt();
+
+                if (length == END_OF_SEGMENT) {
+                    if (mapping != null) {
+                        MappedBuffers.unmap(mapping);
+                        mapping = null;
+                    }
+
+                    segmentId++;
+                    if (segmentId == writeSegmentId) {
+                        buffer = writeBuffer.duplicate();
+                        buffer.position(0);
+                    } else {
+                        mapping = mapSegment(segmentId);
+                        buffer = mapping;
+                    }
+                    continue;
+                }
+
+                byte[] data = new byte[length];
+                buffer.get(data);
+                count++;
+
+                try {
+                    tasks.add(codec.decode(data));
+                } catch (IOException ex) {
+                    log.error("Error decoding task", ex);
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Error reading queue segment", ex);
+        } finally {
+            if (mapping != null) {
+                MappedBuffers.unmap(mapping);
+            }
+        }
+
+        return tasks;
+    }
+
+    public Future<?> checkpoint(Collection<?> pending) {
+        // Queue is not durable
+        return new DefaultQueue().checkpoint(pending);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Deletes segment files
+     */
+    public synchronized void dispose() {
+        if (readMapping != null && readMapping != writeBuffer) {
+            MappedBuffers.unmap(readMapping);
+        }
+        if (writeBuffer != null) {
+            MappedBuffers.unmap(writeBuffer);
+        }
+        writeBuffer = null;
+        readBuffer = null;
+        readMapping = null;
+
+        try {
+            FileUtils.deleteDirectory(directory);
+            log.info("Queue segments deleted");
+        } catch (IOException ex) {
+            log.warn("Error deleting queue segments", ex);
+        }
+    }
+
+    /**
+     * Appends record to the write segment. New segment is created if there's not enough space.
+     * @param data
+     * @throws IOException
+     */
+    private void append(byte[] data) throws IOException {
+        int recordSize = 4 + data.length;
+
+        // Space for the end of segment mark is always reserved
+        if (writeBuffer.remaining() < recordSize + 4) {
+            // New segment is created first, so queue is left unchanged if it cannot be created
+            MappedByteBuffer newBuffer = createSegment(writeSegmentId + 1, Math.max(segmentSize, recordSize + 4));
+            writeBuffer.putInt(END_OF_SEGMENT);
+            if (writeBuffer != readMapping) {
+                // Segment is not read yet, it is mapped again when it is
+                MappedBuffers.unmap(writeBuffer);
+            }
+            writeSegmentId++;
+            writeBuffer = newBuffer;
+        }
+
+        writeBuffer.putInt(data.length);
+        writeBuffer.put(data);
+        size++;
+    }
+
+    /**
+     * Reads record from the read segment. Consumed segments are deleted.
+     * @return
+     * @throws IOException
+     */
+    private byte[] read() throws IOException {
+        while (size > 0) {
+            int length = readBuffer.getInt();
+
+            if (length == END_OF_SEGMENT) {
+                try {
+                    nextReadSegment();
+                } catch (IOException ex) {
+                    // End of segment mark is read again on the next attempt
+                    readBuffer.position(readBuffer.position() - 4);
+                    throw ex;
+                }
+                continue;
+            }
+
+            byte[] data = new byte[length];
+            readBuffer.get(data);
+            size--;
+
+            return data;
+        }
+
+        return null;
+    }
+
+    /**
+     * Deletes consumed segment and moves read cursor to the next one. If the next segment cannot be mapped -
+     * consumed segment is kept and read cursor is not moved.
+     * @throws IOException
+     */
+    private void nextReadSegment() throws IOException {
+        long nextSegmentId = readSegmentId + 1;
+        MappedByteBuffer nextMapping;
+        ByteBuffer nextBuffer;
+
+        if (nextSegmentId == writeSegmentId) {
+            // Segment being written is already mapped
+            nextMapping = writeBuffer;
+            nextBuffer = writeBuffer.duplicate();
+            nextBuffer.position(0);
+        } else {
+            nextMapping = mapSegment(nextSegmentId);
+            nextBuffer = nextMapping;
+        }
+
+        // Consumed segment is not the one being written, its mapping is not used anymore
+        MappedBuffers.unmap(readMapping);
+        File file = getSegmentFile(readSegmentId);
+        if (!file.delete()) {
+            log.warn("Cannot delete consumed segment " + file);
+            file.deleteOnExit();
+        }
+
+        readSegmentId = nextSegmentId;
+        readMapping = nextMapping;
+        readBuffer = nextBuffer;
+    }
+
+    /**
+     * Creates and maps segment file
+     * @param segmentId
+     * @param capacity
+     * @return
+     * @throws IOException
+     */
+    private MappedByteBuffer createSegment(long segmentId, int capacity) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(segmentId), "rw");
+
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps existing segment file for reading
+     * @param segmentId
+     * @return
+     * @throws IOException
+     */
+    private MappedByteBuffer mapSegment(long segmentId) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(segmentId), "r");
+
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns segment file
+     * @param segmentId
+     * @return
+     */
+    private File getSegmentFile(long segmentId) {
+        return new File(directory, String.format("%020d.log", segmentId));
+    }
+}
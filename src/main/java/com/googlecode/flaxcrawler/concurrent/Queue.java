@@ -1,5 +1,8 @@
 package com.googlecode.flaxcrawler.concurrent;
 
+import java.util.Collection;
+import java.util.concurrent.Future;
+
 /**
  * Represents simple Queue
  */
@@ -25,11 +28,35 @@ public interface Queue {
      */
     Object poll();
 
+    /**
+     * Waits until queue can accept more objects without growing its write backlog. Is called by the task
+     * queue after objects are added, without holding task queue lock. Queues that do not limit producers
+     * return immediately.
+     * @throws InterruptedException
+     */
+    void awaitCapacity() throws InterruptedException;
+
+    /**
+     * Sets listener notified when objects become available without being added, or are lost
+     * @param listener
+     */
+    void setListener(QueueListener listener);
+
     /**
      * Frees resources used by queue
      */
     void dispose();
 
+    /**
+     * Stores a snapshot of the queue, so it can be restored after restart. Objects from {@code pending}
+     * (taken from the queue but not processed yet) are stored at the head of the snapshot.
+     * Snapshot is taken before method returns, returned {@code Future} is done when snapshot is stored.
+     * Queues that are not durable do nothing.
+     * @param pending
+     * @return
+     */
+    Future<?> checkpoint(Collection<?> pending);
+
     /**
      * Queue size
      * @return
@@ -0,0 +1,20 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+/**
+ * Listener notified by a {@link Queue} when objects become available without being added
+ * (for instance, when they are loaded from disk in background), or are lost without being polled
+ */
+public interface QueueListener {
+
+    /**
+     * Method is called when objects become available for {@code poll}
+     */
+    void objectsAvailable();
+
+    /**
+     * Method is called when objects added to the queue are lost (for instance, when they cannot be stored to disk),
+     * they will never be returned by {@code poll}
+     * @param count Count of lost objects
+     */
+    void objectsLost(int count);
+}
@@ -0,0 +1,23 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+/**
+ * Limits of a single sequence (tasks with the same sequence name) applied by the task queue.
+ * Policy is asked every time a task from the sequence is dequeued, so limits can change while crawling.
+ * It should be fast and thread-safe.
+ */
+public interface SequencePolicy {
+
+    /**
+     * Returns maximum count of tasks from the sequence processed in parallel. 0 - unlimited.
+     * @param sequenceName
+     * @return
+     */
+    int getMaxParallelTasks(String sequenceName);
+
+    /**
+     * Returns minimum delay (ms) between two tasks from the sequence dequeued. 0 - no delay.
+     * @param sequenceName
+     * @return
+     */
+    long getMinDelay(String sequenceName);
+}
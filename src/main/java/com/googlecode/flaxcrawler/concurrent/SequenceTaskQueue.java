@@ -0,0 +1,459 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Task queue that keeps one FIFO per sequence name and a ready list of sequences which are under
+ * {@code maxParallelProcessingSequences} limit. Tasks are read from the inner {@link Queue} and distributed
+ * between sequences, so a task that cannot be processed yet is never put back to the inner queue.
+ * {@code dequeue} takes a task from the first ready sequence, so it does not depend on the number of
+ * tasks waiting for busy sequences.
+ * Sequence can be delayed (see {@code defer(Task, long)}), delayed sequences are kept in a {@link TimerWheel}
+ * and become ready only after the delay has passed. Wheel is advanced only when its next expiration time has passed,
+ * a single idle worker waits for this time (see {@link BaseTaskQueue#getMaxWaitTime()}).
+ * Limits of specific sequences are set with {@link SequencePolicy}: maximum parallel tasks and minimum delay
+ * between two tasks dequeued (sequence is delayed every time its task is dequeued).
+ */
+public class SequenceTaskQueue extends BaseTaskQueue {
+
+    public final static int DEFAULT_MAX_BUFFERED_TASKS = 100000;
+    private final Object queueSyncRoot = new Object();
+    private Map<String, Sequence> sequences = new HashMap<String, Sequence>();
+    private LinkedList<Sequence> readySequences = new LinkedList<Sequence>();
+    private Map<Task, Boolean> processingTasks = new IdentityHashMap<Task, Boolean>();
+    private volatile int processingTasksCount;
+    private volatile int bufferedTasksCount;
+    private int maxBufferedTasks = DEFAULT_MAX_BUFFERED_TASKS;
+    private TimerWheel<Sequence> delayedSequences = new TimerWheel<Sequence>(System.currentTimeMillis());
+    /**
+     * Time (ms) when the next delayed sequence can become ready, {@code Long.MAX_VALUE} if there are no delayed sequences
+     */
+    private volatile long nextDelayedTime = Long.MAX_VALUE;
+    /**
+     * Is set under the queue lock when {@code nextDelayedTime} gets earlier, the leader should be woken up then
+     */
+    private boolean nextDelayedTimeChanged;
+
+    /**
+     * Sets maximum count of tasks read from the inner queue and waiting for their sequences.
+     * When this limit is hit tasks are not read from the inner queue until some sequence is ready.
+     * Default value - {@code DEFAULT_MAX_BUFFERED_TASKS}.
+     * @param maxBufferedTasks
+     */
+    public void setMaxBufferedTasks(int maxBufferedTasks) {
+        this.maxBufferedTasks = maxBufferedTasks;
+    }
+
+    /**
+     * Returns count of tasks being processed by workers
+     * @return
+     */
+    public int getProcessingTasksCount() {
+        return processingTasksCount;
+    }
+
+    /**
+     * Returns count of tasks read from the inner queue and waiting for their sequences
+     * @return
+     */
+    public int getBufferedTasksCount() {
+        return bufferedTasksCount;
+    }
+
+    @Override
+    public void enqueue(Task task) throws TaskQueueException {
+        synchronized (queueSyncRoot) {
+            try {
+                getQueue().add(task);
+                addSize(1);
+            } catch (Exception ex) {
+                String message = "Cannot enqueue specified task";
+                getLogger().error(message);
+                throw new TaskQueueException(message, ex);
+            }
+        }
+
+        signalTaskAvailable();
+        awaitQueueCapacity();
+    }
+
+    @Override
+    public void enqueueAll(Collection<? extends Task> tasks) throws TaskQueueException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        synchronized (queueSyncRoot) {
+            try {
+                for (Task task : tasks) {
+                    getQueue().add(task);
+                    addSize(1);
+                }
+            } catch (Exception ex) {
+                String message = "Cannot enqueue specified tasks";
+                getLogger().error(message);
+                throw new TaskQueueException(message, ex);
+            }
+        }
+
+        if (tasks.size() == 1) {
+            signalTaskAvailable();
+        } else {
+            signalAll();
+        }
+        awaitQueueCapacity();
+    }
+
+    @Override
+    public void defer(Task task) {
+        synchronized (queueSyncRoot) {
+            getQueue().defer(task);
+            addSize(1);
+        }
+
+        signalTaskAvailable();
+        awaitQueueCapacity();
+    }
+
+    /**
+     * Puts task back to the head of its sequence and delays the whole sequence for {@code delay} ms.
+     * Tasks from this sequence are not dequeued until delay has passed.
+     * @param task
+     * @param delay
+     */
+    public void defer(Task task, long delay) {
+        if (task.getSequenceName() == null || delay <= 0) {
+            defer(task);
+            return;
+        }
+
+        boolean changed;
+
+        synchronized (queueSyncRoot) {
+            Sequence sequence = getSequence(task.getSequenceName());
+            sequence.tasks.addFirst(task);
+            bufferedTasksCount++;
+            addSize(1);
+            delaySequence(sequence, System.currentTimeMillis() + delay);
+            changed = takeNextDelayedTimeChanged();
+        }
+
+        if (changed) {
+            signalMaxWaitTimeChanged();
+        }
+    }
+
+    /**
+     * Delays the whole sequence for {@code delay} ms (e.g. when the server asked to slow down).
+     * Tasks from this sequence are not dequeued until delay has passed, delay is never shortened.
+     * @param sequenceName
+     * @param delay
+     */
+    @Override
+    public void delaySequence(String sequenceName, long delay) {
+        if (sequenceName == null || delay <= 0) {
+            return;
+        }
+
+        boolean changed;
+
+        synchronized (queueSyncRoot) {
+            delaySequence(getSequence(sequenceName), System.currentTimeMillis() + delay);
+            changed = takeNextDelayedTimeChanged();
+        }
+
+        if (changed) {
+            signalMaxWaitTimeChanged();
+        }
+    }
+
+    @Override
+    public Task dequeue() {
+        int ready;
+        Task task;
+        boolean changed;
+
+        synchronized (queueSyncRoot) {
+            ready = advanceDelayedSequences();
+            task = pollReadySequence();
+
+            if (task == null) {
+                task = pollQueue();
+            }
+
+            if (task != null) {
+                processingTasks.put(task, Boolean.TRUE);
+                processingTasksCount = processingTasks.size();
+            }
+            // Sequence of the task could be delayed
+            changed = takeNextDelayedTimeChanged();
+        }
+
+        if (changed) {
+            signalMaxWaitTimeChanged();
+        }
+
+        // Waking up other workers for the sequences that became ready
+        for (int i = 1; i < ready; i++) {
+            signalTaskAvailable();
+        }
+
+        return task;
+    }
+
+    @Override
+    public Future<?> checkpoint(Collection<? extends Task> tasks) {
+        synchronized (queueSyncRoot) {
+            List<Task> pending = new ArrayList<Task>(processingTasks.keySet());
+
+            for (Sequence sequence : sequences.values()) {
+                for (Task task : sequence.tasks) {
+                    // Deferred task is buffered before it is processed
+                    if (!processingTasks.containsKey(task)) {
+                        pending.add(task);
+                    }
+                }
+            }
+
+            pending.addAll(tasks);
+            return getQueue().checkpoint(pending);
+        }
+    }
+
+    /**
+     * Method is called by a worker after task is processed
+     * @param task
+     */
+    public void taskProcessed(Task task) {
+        boolean ready = false;
+
+        synchronized (queueSyncRoot) {
+            processingTasks.remove(task);
+            processingTasksCount = processingTasks.size();
+            addSize(-1);
+
+            Sequence sequence = task.getSequenceName() == null ? null : sequences.get(task.getSequenceName());
+
+            if (sequence != null) {
+                sequence.processing--;
+                ready = updateSequence(sequence);
+            }
+        }
+
+        if (ready) {
+            // Buffered task can be processed now
+            signalTaskAvailable();
+        }
+    }
+
+    @Override
+    protected long getMaxWaitTime() {
+        // Delayed sequences become ready without a signal
+        long time = nextDelayedTime;
+        return time == Long.MAX_VALUE ? super.getMaxWaitTime() : Math.max(0, time - System.currentTimeMillis());
+    }
+
+    /**
+     * Returns {@code true} if {@code nextDelayedTime} got earlier since the last call. Is called under the queue lock.
+     * @return
+     */
+    private boolean takeNextDelayedTimeChanged() {
+        boolean changed = nextDelayedTimeChanged;
+        nextDelayedTimeChanged = false;
+        return changed;
+    }
+
+    /**
+     * Delays sequence until the specified time
+     * @param sequence
+     * @param time
+     */
+    private void delaySequence(Sequence sequence, long time) {
+        if (time <= sequence.delayedUntil) {
+            return;
+        }
+
+        sequence.delayedUntil = time;
+
+        if (!sequence.delayed) {
+            sequence.delayed = true;
+            delayedSequences.schedule(sequence, time);
+
+            if (time < nextDelayedTime) {
+                nextDelayedTime = time;
+                nextDelayedTimeChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Moves sequences which delay has passed to the ready list. Returns count of sequences became ready.
+     * @return
+     */
+    private int advanceDelayedSequences() {
+        long now = System.currentTimeMillis();
+        if (now < nextDelayedTime) {
+            return 0;
+        }
+
+        List<Sequence> expired = new ArrayList<Sequence>();
+        delayedSequences.advance(now, expired);
+
+        int ready = 0;
+        for (Sequence sequence : expired) {
+            if (sequence.delayedUntil > now) {
+                // Sequence delay was prolonged
+                delayedSequences.schedule(sequence, sequence.delayedUntil);
+            } else {
+                sequence.delayed = false;
+                if (updateSequence(sequence)) {
+                    ready++;
+                }
+            }
+        }
+
+        nextDelayedTime = delayedSequences.getNextExpirationTime();
+        return ready;
+    }
+
+    /**
+     * Takes a task from the first ready sequence. Returns {@code null} if there's no ready sequences.
+     * @return
+     */
+    private Task pollReadySequence() {
+        Sequence sequence = readySequences.poll();
+
+        // Sequences delayed while being in the ready list are skipped
+        while (sequence != null && sequence.delayed) {
+            sequence.ready = false;
+            sequence = readySequences.poll();
+        }
+
+        if (sequence == null) {
+            return null;
+        }
+
+        sequence.ready = false;
+        Task task = sequence.tasks.poll();
+        bufferedTasksCount--;
+        startProcessing(sequence);
+        updateSequence(sequence);
+
+        return task;
+    }
+
+    /**
+     * Reads tasks from the inner queue until a task that can be processed right now is found.
+     * Other tasks are buffered in their sequences.
+     * @return
+     */
+    private Task pollQueue() {
+        while (bufferedTasksCount < maxBufferedTasks) {
+            Task task = (Task) getQueue().poll();
+
+            if (task == null || task.getSequenceName() == null) {
+                return task;
+            }
+
+            Sequence sequence = getSequence(task.getSequenceName());
+
+            if (sequence.tasks.isEmpty() && canProcess(sequence)) {
+                // Task is ok, returning it
+                startProcessing(sequence);
+                return task;
+            }
+
+            // Max parallel processing sequences limit was hit, buffering task until its sequence is ready
+            sequence.tasks.add(task);
+            bufferedTasksCount++;
+        }
+
+        // Too many tasks are waiting for their sequences
+        return null;
+    }
+
+    /**
+     * Method is called when task from the sequence is dequeued
+     * @param sequence
+     */
+    private void startProcessing(Sequence sequence) {
+        sequence.processing++;
+
+        long minDelay = getSequencePolicy() == null ? 0 : getSequencePolicy().getMinDelay(sequence.name);
+        if (minDelay > 0) {
+            delaySequence(sequence, System.currentTimeMillis() + minDelay);
+        }
+    }
+
+    /**
+     * Returns sequence with the specified name, creates it if needed
+     * @param sequenceName
+     * @return
+     */
+    private Sequence getSequence(String sequenceName) {
+        Sequence sequence = sequences.get(sequenceName);
+
+        if (sequence == null) {
+            sequence = new Sequence(sequenceName);
+            sequences.put(sequenceName, sequence);
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Adds sequence to the ready list if it has tasks and is under limit.
+     * Removes sequence if it is not used anymore. Returns {@code true} if sequence became ready.
+     * @param sequence
+     * @return
+     */
+    private boolean updateSequence(Sequence sequence) {
+        if (!sequence.ready && !sequence.tasks.isEmpty() && canProcess(sequence)) {
+            sequence.ready = true;
+            readySequences.add(sequence);
+            return true;
+        } else if (sequence.tasks.isEmpty() && sequence.processing <= 0 && !sequence.delayed) {
+            sequences.remove(sequence.name);
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if one more task from the specified sequence can be processed
+     * @param sequence
+     * @return
+     */
+    private boolean canProcess(Sequence sequence) {
+        if (sequence.delayed) {
+            return false;
+        }
+
+        int maxParallelTasks = getMaxParallelTasks(sequence.name);
+        return maxParallelTasks == 0 || sequence.processing < maxParallelTasks;
+    }
+
+    /**
+     * Tasks with the same sequence name
+     */
+    private static class Sequence {
+
+        private String name;
+        private LinkedList<Task> tasks = new LinkedList<Task>();
+        private int processing;
+        private boolean ready;
+        private boolean delayed;
+        private long delayedUntil;
+
+        public Sequence(String name) {
+            this.name = name;
+        }
+    }
+}
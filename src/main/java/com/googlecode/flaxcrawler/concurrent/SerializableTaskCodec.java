@@ -0,0 +1,37 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * {@link TaskCodec} using java serialization. Tasks (and objects they reference) should be {@code Serializable}.
+ */
+public class SerializableTaskCodec implements TaskCodec {
+
+    public byte[] encode(Task task) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+        out.writeObject(task);
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    public Task decode(byte[] data) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+
+        try {
+            return (Task) in.readObject();
+        } catch (ClassNotFoundException ex) {
+            IOException exception = new IOException("Cannot decode task");
+            exception.initCause(ex);
+            throw exception;
+        } finally {
+            in.close();
+        }
+    }
+}
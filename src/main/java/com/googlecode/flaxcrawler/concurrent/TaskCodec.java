@@ -0,0 +1,25 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import java.io.IOException;
+
+/**
+ * Converts tasks to bytes and back. Used by queues storing tasks on disk.
+ */
+public interface TaskCodec {
+
+    /**
+     * Encodes task
+     * @param task
+     * @return
+     * @throws IOException
+     */
+    byte[] encode(Task task) throws IOException;
+
+    /**
+     * Decodes task encoded with {@code encode}
+     * @param data
+     * @return
+     * @throws IOException
+     */
+    Task decode(byte[] data) throws IOException;
+}
@@ -1,5 +1,8 @@
 package com.googlecode.flaxcrawler.concurrent;
 
+import java.util.Collection;
+import java.util.concurrent.Future;
+
 /**
  * Base task queue interface
  */
@@ -62,13 +65,35 @@ public interface TaskQueue {
      */
     void enqueue(Task task) throws TaskQueueException;
 
+    /**
+     * Enqueues tasks to the inner queue in one go, workers are signalled once
+     * @param tasks
+     * @throws TaskQueueException
+     */
+    void enqueueAll(Collection<? extends Task> tasks) throws TaskQueueException;
+
     /**
      * Defers {@link Task} execution
      * @param task
-     * @param timeout
      */
     void defer(Task task);
 
+    /**
+     * Defers {@link Task} execution for {@code delay} ms. Implementations that do not support delays
+     * defer task the same way as {@code defer(Task)} does.
+     * @param task
+     * @param delay
+     */
+    void defer(Task task, long delay);
+
+    /**
+     * Delays all tasks with the specified sequence name for {@code delay} ms. Implementations that do not
+     * support delays ignore it.
+     * @param sequenceName
+     * @param delay
+     */
+    void delaySequence(String sequenceName, long delay);
+
     /**
      * Signals to the queue that task was processed by a worker
      * @param task
@@ -80,4 +105,22 @@ public interface TaskQueue {
      * @return Task
      */
     Task dequeue();
+
+    /**
+     * Retrieves and removes the head of this queue, waiting up to {@code timeout} ms for a task to become available.
+     * Waiting thread is woken up when a task is enqueued or processed. Returns {@code null} if timeout
+     * has exceeded or {@code TaskQueue} has been stopped.
+     * @param timeout
+     * @return Task
+     * @throws InterruptedException
+     */
+    Task take(long timeout) throws InterruptedException;
+
+    /**
+     * Stores a snapshot of the inner queue (see {@link Queue#checkpoint}). Tasks being processed or waiting
+     * inside the task queue are stored at the head of the snapshot, {@code tasks} (not enqueued yet) - after them.
+     * @param tasks
+     * @return Future that is done when snapshot is stored
+     */
+    Future<?> checkpoint(Collection<? extends Task> tasks);
 }
@@ -1,118 +1,99 @@
 package com.googlecode.flaxcrawler.concurrent;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import org.apache.log4j.Logger;
+import java.util.concurrent.Future;
 
 /**
  * Task Queue implementation
  */
-public class TaskQueueImpl implements TaskQueue {
+public class TaskQueueImpl extends BaseTaskQueue {
 
-    private Logger log = Logger.getLogger(this.getClass());
-    private Queue queue = new DefaultQueue();
-    private List<TaskQueueWorker> workers = new ArrayList<TaskQueueWorker>();
-    private boolean started;
-    private final Object syncRoot = new Object();
     private final Object queueSyncRoot = new Object();
-    private int processingTasksCount;
-    private int maxParallelProcessingSequences;
+    private volatile int processingTasksCount;
     private Map<String, Integer> processingSequences = new HashMap<String, Integer>();
+    private Map<Task, Boolean> processingTasks = new IdentityHashMap<Task, Boolean>();
     // Maximum loops count while searching for suitable task
     private final static int MAX_LOOPS = 1000;
 
-    /**
-     * Sets maximum number of parallel thread processing tasks with the same sequence name.
-     * Default value - 0 (unlimited). Limit is ignored for tasks with sequence name equal to {@code null}.
-     * @param maxParallelProcessingSequences
-     */
-    public void setMaxParallelProcessingSequences(int maxParallelProcessingSequences) {
-        this.maxParallelProcessingSequences = maxParallelProcessingSequences;
-    }
-
-    /**
-     * Sets inner queue ({@link DefaultQueue} is used by default. Also you can use {@link BerkleyQueue}.)
-     * @param queue
-     */
-    public void setQueue(Queue queue) {
-        this.queue = queue;
-    }
-
-    @Override
-    public void start() throws TaskQueueException {
-        synchronized (syncRoot) {
-            if (!isStarted()) {
-                setStarted(true);
-                for (TaskQueueWorker worker : workers) {
-                    worker.start();
-                }
-            } else {
-                log.error("TaskQueue is already started");
-                throw new TaskQueueException("TaskQueue is already started");
-            }
-        }
+    public int getProcessingTasksCount() {
+        return processingTasksCount;
     }
 
     @Override
-    public void stop() throws TaskQueueException {
-        synchronized (syncRoot) {
-            setStarted(false);
-            for (TaskQueueWorker worker : workers) {
-                worker.stop();
+    public void enqueue(Task task) throws TaskQueueException {
+        synchronized (queueSyncRoot) {
+            try {
+                getQueue().add(task);
+                addSize(1);
+            } catch (Exception ex) {
+                String message = "Cannot enqueue specified task";
+                getLogger().error(message);
+                throw new TaskQueueException(message, ex);
             }
         }
-    }
-
-    @Override
-    public void dispose() throws TaskQueueException {
-        synchronized (syncRoot) {
-            stop();
-            queue.dispose();
-        }
-    }
 
-    @Override
-    public void join() throws TaskQueueException {
-        for (TaskQueueWorker worker : workers) {
-            worker.join();
-        }
+        signalTaskAvailable();
+        awaitQueueCapacity();
     }
 
     @Override
-    public void join(long timeout) throws TaskQueueException {
-        long workerTimeout = timeout / workers.size();
-
-        for (TaskQueueWorker worker : workers) {
-            worker.join(workerTimeout);
+    public void enqueueAll(Collection<? extends Task> tasks) throws TaskQueueException {
+        if (tasks.isEmpty()) {
+            return;
         }
-    }
 
-    public int getProcessingTasksCount() {
-        synchronized (queueSyncRoot) {
-            return processingTasksCount;
-        }
-    }
-
-    @Override
-    public void enqueue(Task task) throws TaskQueueException {
         synchronized (queueSyncRoot) {
             try {
-                queue.add(task);
+                for (Task task : tasks) {
+                    getQueue().add(task);
+                    addSize(1);
+                }
             } catch (Exception ex) {
-                String message = "Cannot enqueue specified task";
-                log.error(message);
+                String message = "Cannot enqueue specified tasks";
+                getLogger().error(message);
                 throw new TaskQueueException(message, ex);
             }
         }
+
+        if (tasks.size() == 1) {
+            signalTaskAvailable();
+        } else {
+            signalAll();
+        }
+        awaitQueueCapacity();
     }
 
     @Override
     public void defer(Task task) {
         synchronized (queueSyncRoot) {
-            queue.defer(task);
+            getQueue().defer(task);
+            addSize(1);
         }
+
+        signalTaskAvailable();
+        awaitQueueCapacity();
+    }
+
+    /**
+     * Delays are not supported, task is deferred the same way as {@code defer(Task)} does
+     * @param task
+     * @param delay
+     */
+    public void defer(Task task, long delay) {
+        defer(task);
+    }
+
+    /**
+     * Delays are not supported, does nothing
+     * @param sequenceName
+     * @param delay
+     */
+    public void delaySequence(String sequenceName, long delay) {
     }
 
     @Override
@@ -120,16 +101,17 @@ public class TaskQueueImpl implements TaskQueue {
         // Looping through the queue until suitable task is found
         for (int i = 0; i < MAX_LOOPS; i++) {
             synchronized (queueSyncRoot) {
-                Task task = (Task) queue.poll();
+                Task task = (Task) getQueue().poll();
 
                 if (task != null) {
                     if (startProcessingTask(task)) {
                         // Task is ok, returning it
                         processingTasksCount++;
+                        processingTasks.put(task, Boolean.TRUE);
                         return task;
                     } else {
                         // Max parallel processing sequences limit was hit, adding task to the end of queue
-                        queue.add(task);
+                        getQueue().add(task);
                     }
                 } else if (task == null) {
                     return task;
@@ -142,43 +124,28 @@ public class TaskQueueImpl implements TaskQueue {
     }
 
     @Override
-    public int size() {
+    public Future<?> checkpoint(Collection<? extends Task> tasks) {
         synchronized (queueSyncRoot) {
-            return queue.size() + processingTasksCount;
-        }
-    }
-
-    @Override
-    public void addWorker(TaskQueueWorker worker) throws TaskQueueException {
-        synchronized (syncRoot) {
-            if (!isStarted()) {
-                worker.setTaskQueue(this);
-                workers.add(worker);
-            } else {
-                String message = "Error while adding task queue worker. Task queue is already started.";
-                log.error(message);
-                throw new TaskQueueException(message);
-            }
+            List<Task> pending = new ArrayList<Task>(processingTasks.keySet());
+            pending.addAll(tasks);
+            return getQueue().checkpoint(pending);
         }
     }
 
-    public boolean isStarted() {
-        return started;
-    }
-
-    protected void setStarted(boolean started) {
-        this.started = started;
-    }
-
     /**
-     * Method is called when task is dequeued. Method checks maxParallelProcessingSequences value
+     * Method is called when task is dequeued. Method checks maximum parallel tasks of the sequence
      * and returns {@code true} if limit is not hit and worker can process with this task, or {@code false}
      * if task execution should be deferred.
      * @param task
      * @return
      */
     protected boolean startProcessingTask(Task task) {
-        if (maxParallelProcessingSequences == 0 || task.getSequenceName() == null) {
+        if (task.getSequenceName() == null) {
+            return true;
+        }
+
+        int maxParallelTasks = getMaxParallelTasks(task.getSequenceName());
+        if (maxParallelTasks == 0) {
             return true;
         }
 
@@ -189,7 +156,7 @@ public class TaskQueueImpl implements TaskQueue {
                 count = 0;
             }
 
-            if (count == maxParallelProcessingSequences) {
+            if (count >= maxParallelTasks) {
                 // Limit already hit for this sequence, returning false
                 return false;
             }
@@ -222,7 +189,14 @@ public class TaskQueueImpl implements TaskQueue {
     public void taskProcessed(Task task) {
         synchronized (queueSyncRoot) {
             processingTasksCount--;
+            processingTasks.remove(task);
             stopProcessingTask(task);
+            addSize(-1);
+        }
+
+        if ((getMaxParallelProcessingSequences() > 0 || getSequencePolicy() != null) && task.getSequenceName() != null) {
+            // Tasks with the same sequence name can be processed now
+            signalTaskAvailable();
         }
     }
 }
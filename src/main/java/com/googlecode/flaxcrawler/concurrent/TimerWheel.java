@@ -0,0 +1,151 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel. Elements are scheduled to an absolute time (ms) and are returned by {@code advance}
+ * after this time has passed. Time is divided into ticks of {@code tickDuration} ms, element is put to the
+ * wheel slot of its tick, so both {@code schedule} and {@code advance} do not depend on the number of scheduled elements.
+ * Precision is one tick. This class is not thread-safe.
+ */
+public class TimerWheel<T> {
+
+    public final static long DEFAULT_TICK_DURATION = 10;
+    public final static int DEFAULT_WHEEL_SIZE = 512;
+    private final long tickDuration;
+    private final List<LinkedList<Entry<T>>> wheel;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Creates an instance of the {@code TimerWheel} with default tick duration and wheel size
+     * @param startTime
+     */
+    public TimerWheel(long startTime) {
+        this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE, startTime);
+    }
+
+    /**
+     * Creates an instance of the {@code TimerWheel}
+     * @param tickDuration Tick duration (ms)
+     * @param wheelSize Slots count
+     * @param startTime Current time (ms)
+     */
+    public TimerWheel(long tickDuration, int wheelSize, long startTime) {
+        this.tickDuration = tickDuration;
+        this.wheel = new ArrayList<LinkedList<Entry<T>>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new LinkedList<Entry<T>>());
+        }
+        this.currentTick = startTime / tickDuration;
+    }
+
+    /**
+     * Schedules element to the specified time
+     * @param element
+     * @param time
+     */
+    public void schedule(T element, long time) {
+        // Rounding up, element should not be returned before its time
+        long tick = (time + tickDuration - 1) / tickDuration;
+        if (tick <= currentTick) {
+            tick = currentTick + 1;
+        }
+
+        wheel.get((int) (tick % wheel.size())).add(new Entry<T>(element, tick));
+        size++;
+    }
+
+    /**
+     * Moves wheel to the specified time. Adds elements which time has passed to the {@code expired} collection.
+     * @param now
+     * @param expired
+     */
+    public void advance(long now, Collection<T> expired) {
+        long nowTick = now / tickDuration;
+
+        if (nowTick <= currentTick) {
+            return;
+        }
+
+        if (size > 0) {
+            // There's no need to visit a slot twice
+            long lastTick = Math.min(nowTick, currentTick + wheel.size());
+
+            for (long tick = currentTick + 1; tick <= lastTick; tick++) {
+                Iterator<Entry<T>> iterator = wheel.get((int) (tick % wheel.size())).iterator();
+
+                while (iterator.hasNext()) {
+                    Entry<T> entry = iterator.next();
+
+                    if (entry.tick <= nowTick) {
+                        iterator.remove();
+                        size--;
+                        expired.add(entry.element);
+                    }
+                }
+            }
+        }
+
+        currentTick = nowTick;
+    }
+
+    /**
+     * Returns the earliest time (ms) an element can be returned by {@code advance}, {@code Long.MAX_VALUE}
+     * if there are no elements. Slots are visited from the current tick, so it takes up to wheel size steps.
+     * @return
+     */
+    public long getNextExpirationTime() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        long minTick = Long.MAX_VALUE;
+        for (long tick = currentTick + 1; tick <= currentTick + wheel.size(); tick++) {
+            for (Entry<T> entry : wheel.get((int) (tick % wheel.size()))) {
+                if (entry.tick == tick) {
+                    // Slots of the earlier ticks are empty in this round
+                    return tick * tickDuration;
+                }
+                minTick = Math.min(minTick, entry.tick);
+            }
+        }
+
+        // All elements are scheduled more than one round ahead
+        return minTick * tickDuration;
+    }
+
+    /**
+     * Returns count of scheduled elements
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns tick duration (ms)
+     * @return
+     */
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * Scheduled element
+     */
+    private static class Entry<T> {
+
+        private T element;
+        private long tick;
+
+        public Entry(T element, long tick) {
+            this.element = element;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Factory methods for executors used to run {@link BaseTaskQueueWorker} loops.
+ * Every worker occupies its executor thread until it is stopped, so executors returned here
+ * create a new thread for each worker.
+ */
+public class WorkerExecutors {
+
+    private static Logger log = Logger.getLogger(WorkerExecutors.class);
+
+    /**
+     * Returns executor that starts a new virtual thread for each worker. Virtual threads are
+     * available since Java 21, on older runtimes {@link #newDaemonThreadExecutor()} is returned.
+     * Task queue and scheduler queue waits use j.u.c. locks, so an idle or blocked worker unmounts from its
+     * carrier thread. Crawler code should not block inside {@code synchronized} (or in native code), otherwise
+     * it pins the carrier thread and the carrier pool (of CPU cores size) is exhausted by a few workers.
+     * @return
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Using reflection, project is compiled for older java versions
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) method.invoke(null);
+            log.info("Using virtual threads executor for task queue workers");
+            return executor;
+        } catch (Exception ex) {
+            log.warn("Virtual threads are not supported by this JVM, using daemon threads instead");
+            return newDaemonThreadExecutor();
+        }
+    }
+
+    /**
+     * Returns executor that starts a new daemon thread for each worker
+     * @return
+     */
+    public static ExecutorService newDaemonThreadExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+
+            private final AtomicInteger threadsCount = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TaskQueueWorkerThread-" + threadsCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,249 @@
+package com.googlecode.flaxcrawler.download;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connections of a single selector thread grouped by host. Is not thread-safe, it is used by its selector thread
+ * only. Pool counts open connections to every host (idle and busy ones), so the selector thread can limit them
+ * (see {@code canOpen}). Idle keep-alive connections are reused, most recently used connection is reused first,
+ * connections idle longer than {@code idleTimeout} are evicted.
+ */
+class ConnectionPool {
+
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    private final int maxIdleConnectionsPerHost;
+    private final long idleTimeout;
+    private int size;
+
+    /**
+     * Creates an instance of the {@code ConnectionPool}
+     * @param maxIdleConnectionsPerHost Maximum count of idle connections to a single host
+     * @param idleTimeout Time (ms) connection can stay idle
+     */
+    public ConnectionPool(int maxIdleConnectionsPerHost, long idleTimeout) {
+        this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Takes idle connection to the host. Returns {@code null} if there's no such connection.
+     * @param hostKey
+     * @param now
+     * @return
+     */
+    public Connection acquire(String hostKey, long now) {
+        Host host = hosts.get(hostKey);
+
+        while (host != null && !host.idle.isEmpty()) {
+            Connection connection = host.idle.removeLast();
+            size--;
+
+            if (now - connection.idleSince < idleTimeout && connection.channel.isOpen()) {
+                return connection;
+            }
+            close(connection);
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks if one more connection to the host can be opened
+     * @param hostKey
+     * @param maxConnections Maximum count of open connections to the host, 0 - unlimited
+     * @return
+     */
+    public boolean canOpen(String hostKey, int maxConnections) {
+        Host host = hosts.get(hostKey);
+        return maxConnections <= 0 || host == null || host.open < maxConnections;
+    }
+
+    /**
+     * Counts new connection as open. Connection is counted until it is closed with {@code close}.
+     * @param connection
+     */
+    public void opened(Connection connection) {
+        Host host = hosts.get(connection.hostKey);
+
+        if (host == null) {
+            host = new Host();
+            hosts.put(connection.hostKey, host);
+        }
+        host.open++;
+    }
+
+    /**
+     * Returns count of open connections to the host
+     * @param hostKey
+     * @return
+     */
+    public int getOpenConnections(String hostKey) {
+        Host host = hosts.get(hostKey);
+        return host == null ? 0 : host.open;
+    }
+
+    /**
+     * Puts connection to the pool. Connection is closed if there are too many idle connections to its host.
+     * @param connection
+     * @param now
+     * @return {@code true} if connection was put to the pool
+     */
+    public boolean release(Connection connection, long now) {
+        Host host = hosts.get(connection.hostKey);
+
+        if (host == null || host.idle.size() >= maxIdleConnectionsPerHost) {
+            close(connection);
+            return false;
+        }
+
+        connection.idleSince = now;
+        host.idle.add(connection);
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes connection closed by the server and closes it
+     * @param connection
+     */
+    public void remove(Connection connection) {
+        Host host = hosts.get(connection.hostKey);
+
+        if (host != null && host.idle.remove(connection)) {
+            size--;
+        }
+        close(connection);
+    }
+
+    /**
+     * Closes connections which have been idle longer than {@code idleTimeout}
+     * @param now
+     */
+    public void evictExpired(long now) {
+        List<Connection> expired = new ArrayList<Connection>();
+
+        for (Host host : hosts.values()) {
+            // The oldest connections are at the head
+            while (!host.idle.isEmpty() && now - host.idle.getFirst().idleSince >= idleTimeout) {
+                expired.add(host.idle.removeFirst());
+                size--;
+            }
+        }
+        for (Connection connection : expired) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Closes all idle connections
+     */
+    public void clear() {
+        List<Connection> connections = new ArrayList<Connection>();
+        for (Host host : hosts.values()) {
+            connections.addAll(host.idle);
+            host.idle.clear();
+        }
+        size = 0;
+        for (Connection connection : connections) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Returns count of idle connections
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Closes connection (idle or busy one), it is not counted as open anymore
+     * @param connection
+     */
+    public void close(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+        connection.closed = true;
+
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException ex) {
+            // Connection is not used anymore
+        }
+
+        Host host = hosts.get(connection.hostKey);
+        if (host != null) {
+            host.open--;
+            if (host.open <= 0 && host.idle.isEmpty()) {
+                hosts.remove(connection.hostKey);
+            }
+        }
+    }
+
+    /**
+     * Connections to a single host
+     */
+    private static class Host {
+
+        private final LinkedList<Connection> idle = new LinkedList<Connection>();
+        private int open;
+    }
+
+    /**
+     * Connection to a host
+     */
+    public static class Connection {
+
+        private final String hostKey;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private long idleSince;
+        private int requestsCount;
+        private boolean closed;
+
+        public Connection(String hostKey, SocketChannel channel) {
+            this.hostKey = hostKey;
+            this.channel = channel;
+        }
+
+        public String getHostKey() {
+            return hostKey;
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        public SelectionKey getKey() {
+            return key;
+        }
+
+        public void setKey(SelectionKey key) {
+            this.key = key;
+        }
+
+        /**
+         * Returns count of requests sent through this connection
+         * @return
+         */
+        public int getRequestsCount() {
+            return requestsCount;
+        }
+
+        public void incrementRequestsCount() {
+            requestsCount++;
+        }
+    }
+}
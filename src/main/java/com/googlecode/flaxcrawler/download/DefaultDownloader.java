@@ -1,29 +1,68 @@
 package com.googlecode.flaxcrawler.download;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.log4j.Logger;
+import com.googlecode.flaxcrawler.DomainConstraints;
 import com.googlecode.flaxcrawler.model.Page;
+import com.googlecode.flaxcrawler.utils.BoundedInputStream;
+import com.googlecode.flaxcrawler.utils.BufferPool;
+import com.googlecode.flaxcrawler.utils.PooledByteArrayOutputStream;
+import com.googlecode.flaxcrawler.utils.UrlUtils;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import org.apache.commons.lang.StringUtils;
 
 /**
- * Base class for all downloaders
+ * Base class for all downloaders.
+ * Warning - {@code keepAlive} is {@code true} by default (it used to be {@code false}), connections are not
+ * disconnected after the response and are reused. Call {@code setKeepAlive(false)} to get the old behaviour.
+ * Warning - {@code headRequest} is {@code false} by default (it used to be {@code true}), only GET request is sent
+ * and constraints are checked when response headers are received. Call {@code setHeadRequest(true)} to get the
+ * old behaviour.
+ * Connections (http and https) to a single host are limited by {@code maxConnectionsPerHost} (or by
+ * {@code maxParallelRequests} of the host domain constraints), requests over the limit wait for a free connection.
+ * Idle connections are kept by the JDK keep-alive cache, so reuse counters of this class are estimated.
  * @author ameshkov
  */
 public class DefaultDownloader implements Downloader {
 
+    /**
+     * Initial size of the content buffer if "Content-Length" is not specified
+     */
+    protected final static int DEFAULT_CONTENT_BUFFER_SIZE = 16384;
+    /**
+     * Maximum count of error stream bytes read (and logged) before connection is disconnected
+     */
+    protected final static int MAX_ERROR_MESSAGE_LENGTH = 8192;
+    public final static int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    /**
+     * Idle connections kept by the JDK keep-alive cache for a single host ({@code http.maxConnections} property)
+     */
+    private final static int KEEP_ALIVE_CACHE_SIZE = Integer.getInteger("http.maxConnections", 5);
+    /**
+     * Time (ms) JDK keeps idle connection if server does not send {@code Keep-Alive} header
+     */
+    private final static long KEEP_ALIVE_CACHE_TIMEOUT = 5000;
+    private final static int MIN_HOSTS_PURGE_THRESHOLD = 64;
+
     private Logger log = Logger.getLogger(this.getClass());
     private ProxyController proxyController;
     private int triesCount = 1;
@@ -33,9 +72,21 @@ public class DefaultDownloader implements Downloader {
     private Map<String, String> headers;
     private String[] allowedContentTypes = new String[]{"text/html"};
     private String userAgent = "";
-    private boolean keepAlive = false;
-    private boolean headRequest = true;
+    private boolean keepAlive = true;
+    private boolean headRequest = false;
     private long downloadRetryPeriod = 0;
+    private BufferPool bufferPool = new BufferPool();
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private volatile Map<String, DomainConstraints> domainConstraints = new HashMap<String, DomainConstraints>();
+    /**
+     * Connections of hosts, guarded by {@code hostsLock}
+     */
+    private final Map<String, HostConnections> hosts = new HashMap<String, HostConnections>();
+    private final ReentrantLock hostsLock = new ReentrantLock();
+    private final Condition connectionReleased = hostsLock.newCondition();
+    private int hostsPurgeThreshold = MIN_HOSTS_PURGE_THRESHOLD;
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
 
     /**
      * Sets request headers
@@ -45,6 +96,14 @@ public class DefaultDownloader implements Downloader {
         this.headers = headers;
     }
 
+    /**
+     * Returns connection timeout (ms)
+     * @return
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
     /**
      * Sets connection timeout. Default - 30000 ms.
      * @param connectionTimeout
@@ -53,6 +112,14 @@ public class DefaultDownloader implements Downloader {
         this.connectionTimeout = connectionTimeout;
     }
 
+    /**
+     * Returns read timeout (ms)
+     * @return
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
     /**
      * Sets read timeout. Default - 30000 ms.
      * @param readTimeout
@@ -78,7 +145,96 @@ public class DefaultDownloader implements Downloader {
     }
 
     /**
-     * Sets maximum content length
+     * Returns proxy controller
+     * @return
+     */
+    public ProxyController getProxyController() {
+        return proxyController;
+    }
+
+    /**
+     * Sets pool of buffers page content is read to. Buffer is returned to the pool when page is released
+     * (see {@link Page#release()}). By default - pool with default parameters owned by this downloader.
+     * @param bufferPool
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Returns pool of buffers page content is read to
+     * @return
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets maximum count of open connections to a single host. Requests over the limit wait for a free connection
+     * (not longer than connection timeout). It should not be less than maximum parallel requests to a single domain.
+     * 0 means there's no limit. By default - {@code DEFAULT_MAX_CONNECTIONS_PER_HOST}.
+     * @param maxConnectionsPerHost
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Returns maximum count of open connections to a single host
+     * @return
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Sets constraints of specific domains (usually the same as {@link com.googlecode.flaxcrawler.CrawlerConfiguration#getDomainConstraints()}).
+     * Open connections to a host of the domain are limited by its {@code maxParallelRequests}, if it is 0 -
+     * by {@code maxConnectionsPerHost}.
+     * @param domainConstraints
+     */
+    public void setDomainConstraints(Map<String, DomainConstraints> domainConstraints) {
+        this.domainConstraints = new HashMap<String, DomainConstraints>(domainConstraints);
+    }
+
+    /**
+     * Returns count of connections opened
+     * @return
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * Returns count of requests sent through reused connections
+     * @return
+     */
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    /**
+     * Returns share of requests sent through reused connections
+     * @return
+     */
+    public double getConnectionReuseRatio() {
+        long reused = connectionsReused.get();
+        long total = reused + connectionsOpened.get();
+        return total == 0 ? 0 : (double) reused / total;
+    }
+
+    /**
+     * Returns maximum content length
+     * @return
+     */
+    public long getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    /**
+     * Sets maximum content length. Page with bigger "Content-Length" is not downloaded, content of a page
+     * without this header is cut at this length (both compressed and decoded) and page is marked as truncated.
+     * By default - 0 (no limit).
      * @param maxContentLength
      */
     public void setMaxContentLength(long maxContentLength) {
@@ -111,11 +267,21 @@ public class DefaultDownloader implements Downloader {
     }
 
     /**
-     * Should downloader keep connection alive or not.<br/>
+     * Returns {@code true} if downloader keeps connections alive
+     * @return
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Should downloader keep connection alive or not. If it is on - connection is not disconnected after
+     * the response is read, so it is reused by the JDK keep-alive cache (its size per host is set by
+     * {@code http.maxConnections} system property).<br/>
      * If you want HTTP keep-alive to be off you should:<br/>
      * Set system property to {@code http.keepAlive=false}.<br/>
      * Set downloader keepAlive property to false.<br/>
-     * By default {@code keepAlive} property is {@code false}.
+     * By default {@code keepAlive} property is {@code true}.
      * @param keepAlive
      */
     public void setKeepAlive(boolean keepAlive) {
@@ -123,7 +289,9 @@ public class DefaultDownloader implements Downloader {
     }
 
     /**
-     * Should downloader first execute a HEAD request against specified URL or not
+     * Should downloader first execute a HEAD request against specified URL or not. If it is off - downloader
+     * sends only GET request, checks constraints as soon as response headers are received and does not read
+     * the body of a page violating them. By default - {@code false}.
      * @param headRequest
      */
     public void setHeadRequest(boolean headRequest) {
@@ -138,6 +306,29 @@ public class DefaultDownloader implements Downloader {
         return log;
     }
 
+    /**
+     * Returns maximum count of open connections to the url host, 0 - unlimited
+     * @param url
+     * @return
+     */
+    protected int getMaxConnections(URL url) {
+        DomainConstraints constraints = domainConstraints.get(UrlUtils.getDomainName(url));
+        return constraints == null || constraints.getMaxParallelRequests() == 0
+                ? maxConnectionsPerHost : constraints.getMaxParallelRequests();
+    }
+
+    /**
+     * Updates connection counters
+     * @param reused {@code true} if request is sent through a reused connection
+     */
+    protected void countConnection(boolean reused) {
+        if (reused) {
+            connectionsReused.incrementAndGet();
+        } else {
+            connectionsOpened.incrementAndGet();
+        }
+    }
+
     /**
      * Sets default headers for the specified request
      * @param request
@@ -224,10 +415,12 @@ public class DefaultDownloader implements Downloader {
                     }
                 }
 
-                // Downloading using the same proxy
-                page = download(request, proxy);
+                // Downloading using the same proxy, constraints are checked here if HEAD request was not sent
+                page = download(request, proxy, !headRequest);
 
-                if (page.getResponseCode() < 400) {
+                if (page == null) {
+                    return null;
+                } else if (page.getResponseCode() < 400) {
                     // There was no error, returning page
                     return page;
                 } else {
@@ -262,7 +455,7 @@ public class DefaultDownloader implements Downloader {
     protected boolean checkConstaints(Page page) {
         log.debug("Checking constraints for page " + page.getUrl());
 
-        int contentLength = NumberUtils.toInt(page.getHeader("content-length"));
+        long contentLength = NumberUtils.toLong(page.getHeader("content-length"));
 
         // If "Content-Length" header is specified - checking maxContentLength
         if (maxContentLength > 0 && contentLength > 0 && contentLength > maxContentLength) {
@@ -293,15 +486,23 @@ public class DefaultDownloader implements Downloader {
     }
 
     /**
-     * Creates connection for the specified request
+     * Creates connection for the specified request. Waits for a free connection if there are too many open
+     * connections to the host, connection is freed by {@code cleanUpConnection}.
      * @param request
      * @return
      */
     protected HttpURLConnection createConnection(Request request, Proxy proxy) throws IOException {
         log.debug("Opening connection to " + request.getUrl() + (proxy == null ? " not using proxy " : " using proxy " + proxy));
 
-        // Openging connection
-        HttpURLConnection connection = (HttpURLConnection) (proxy == null ? request.getUrl().openConnection() : request.getUrl().openConnection(proxy));
+        acquireConnection(request.getUrl());
+        HttpURLConnection connection;
+        try {
+            // Openging connection
+            connection = (HttpURLConnection) (proxy == null ? request.getUrl().openConnection() : request.getUrl().openConnection(proxy));
+        } catch (IOException ex) {
+            releaseConnection(request.getUrl(), false);
+            throw ex;
+        }
         connection.setInstanceFollowRedirects(false);
         connection.setConnectTimeout(connectionTimeout);
         connection.setReadTimeout(readTimeout);
@@ -348,11 +549,20 @@ public class DefaultDownloader implements Downloader {
             // Getting Connection header from response
             connectionHeader = StringUtils.lowerCase(responseHeaders.get("connection"));
 
-            // Reading input stream
+            // Reading input stream, its content is not needed
             inputStream = connection.getInputStream();
             if (inputStream != null) {
-                byte[] body = IOUtils.toByteArray(inputStream);
-                log.debug("Head response body length is " + (body == null ? 0 : body.length));
+                byte[] buffer = bufferPool.acquire(BufferPool.DEFAULT_MIN_BUFFER_SIZE);
+                long length = 0;
+                int count;
+                try {
+                    while ((count = inputStream.read(buffer)) != -1) {
+                        length += count;
+                    }
+                } finally {
+                    bufferPool.release(buffer);
+                }
+                log.debug("Head response body length is " + length);
             }
 
             long responseTime = System.currentTimeMillis() - startTime;
@@ -392,51 +602,71 @@ public class DefaultDownloader implements Downloader {
     }
 
     /**
-     * Returns response content
+     * Returns response content in a pooled buffer. Not more than {@code maxContentLength} bytes are read from
+     * the connection and decoded from gzip, {@code inputStream} is marked as truncated if content was cut.
      * @param gzipEncoding
-     * @param connection
+     * @param inputStream Response body stream bounded by {@code maxContentLength}
+     * @param expectedLength Expected content length, 0 if it is unknown
      * @return
      */
-    protected byte[] getContent(boolean gzipEncoding, HttpURLConnection connection) throws IOException {
-        InputStream inputStream = connection.getInputStream();
-        byte[] content = null;
+    protected PooledByteArrayOutputStream getContent(boolean gzipEncoding, BoundedInputStream inputStream, long expectedLength) throws IOException {
+        // Counting decoded bytes too, small gzipped body can be decoded to gigabytes
+        BoundedInputStream contentStream = gzipEncoding
+                ? new BoundedInputStream(new GZIPInputStream(inputStream), maxContentLength) : inputStream;
+        long initialSize = expectedLength > 0 ? expectedLength : DEFAULT_CONTENT_BUFFER_SIZE;
+        if (maxContentLength > 0) {
+            initialSize = Math.min(initialSize, maxContentLength);
+        }
+        PooledByteArrayOutputStream content = new PooledByteArrayOutputStream(bufferPool, (int) Math.min(initialSize, Integer.MAX_VALUE));
 
         try {
-            // Reading response content
-            if (gzipEncoding) {
-                // Content is gzipped
-                content = IOUtils.toByteArray(new GZIPInputStream(inputStream));
-            } else {
-                // Content is plain
-                content = IOUtils.toByteArray(inputStream);
+            while (content.readFrom(contentStream) != -1) {
+                // Reading directly to the content buffer
             }
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException ex) {
-                    log.warn("Error closing input stream for request " + connection.getURL(), ex);
-                }
+        } catch (EOFException ex) {
+            if (!inputStream.isTruncated()) {
+                content.release();
+                throw ex;
             }
+            // Gzipped body was cut, returning what was decoded
+        } catch (IOException ex) {
+            content.release();
+            throw ex;
         }
 
+        if (contentStream.isTruncated()) {
+            inputStream.setTruncated(true);
+        }
         return content;
     }
 
     /**
-     * Clean up connection. Reads errorStream and closes it, disconnects if needed.
-     * @param connection
+     * Clean up connection. Reads errorStream (not more than {@code maxContentLength} or {@code MAX_ERROR_MESSAGE_LENGTH}
+     * bytes) and closes it, disconnects if keep-alive is off, server closes the connection or error stream was not
+     * read to the end. Frees connection of the host.
+     * @param connection Connection created by {@code createConnection}, can be {@code null} if it was not created
      * @param connectionHeader
      */
     protected void cleanUpConnection(HttpURLConnection connection, String connectionHeader) {
+        if (connection == null) {
+            return;
+        }
+
         // Handling error stream
         InputStream errorStream = connection.getErrorStream();
+        boolean drained = true;
         try {
             if (errorStream != null) {
-                String errorMessage = IOUtils.toString(errorStream);
-                log.warn("Server sent an error message for connection " + connection.getURL() + ":\r\n" + errorMessage);
+                long limit = maxContentLength > 0 ? Math.min(maxContentLength, MAX_ERROR_MESSAGE_LENGTH) : MAX_ERROR_MESSAGE_LENGTH;
+                BoundedInputStream boundedStream = new BoundedInputStream(errorStream, limit);
+                String errorMessage = IOUtils.toString(boundedStream);
+                // The rest of a big error body is not read, connection cannot be reused
+                drained = !boundedStream.isTruncated();
+                log.warn("Server sent an error message for connection " + connection.getURL() + ":\r\n" + errorMessage
+                        + (drained ? "" : "\r\n(truncated to " + limit + " bytes)"));
             }
         } catch (IOException ex) {
+            drained = false;
             log.warn("Exception while processing error stream for connection to " + connection.getURL(), ex);
         } finally {
             if (errorStream != null) {
@@ -448,24 +678,152 @@ public class DefaultDownloader implements Downloader {
             }
         }
 
+        if (drained && keepAlive && !"close".equalsIgnoreCase(connectionHeader)) {
+            // Connection stays in the keep-alive cache
+            releaseConnection(connection.getURL(), true);
+            return;
+        }
+
         log.debug("Disconnecting connection  after request to " + connection.getURL());
         connection.disconnect();
+        releaseConnection(connection.getURL(), false);
+    }
+
+    /**
+     * Waits until a connection to the url host can be opened and counts it
+     * @param url
+     * @throws IOException If there's no free connection within connection timeout, or thread is interrupted
+     */
+    private void acquireConnection(URL url) throws IOException {
+        String hostKey = getHostKey(url);
+        int maxConnections = getMaxConnections(url);
+        long now = System.currentTimeMillis();
+        long deadline = now + connectionTimeout;
+        boolean reused;
+
+        hostsLock.lock();
+        try {
+            HostConnections host = getHost(hostKey);
+            while (maxConnections > 0 && host.open >= maxConnections) {
+                long waitTime = connectionTimeout == 0 ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    throw new SocketTimeoutException("No free connection to " + hostKey + " within " + connectionTimeout + " ms");
+                }
+                try {
+                    connectionReleased.await(Math.min(waitTime, Integer.MAX_VALUE), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a connection to " + hostKey);
+                }
+                // Host could be purged while thread was waiting
+                host = getHost(hostKey);
+            }
+
+            host.open++;
+            now = System.currentTimeMillis();
+            reused = host.idle > 0 && now - host.lastReleaseTime <= KEEP_ALIVE_CACHE_TIMEOUT;
+            host.idle = reused ? host.idle - 1 : 0;
+        } finally {
+            hostsLock.unlock();
+        }
+
+        countConnection(reused);
+    }
+
+    /**
+     * Frees connection to the url host
+     * @param url
+     * @param kept {@code true} if connection was left in the keep-alive cache
+     */
+    private void releaseConnection(URL url, boolean kept) {
+        String hostKey = getHostKey(url);
+        long now = System.currentTimeMillis();
+
+        hostsLock.lock();
+        try {
+            HostConnections host = hosts.get(hostKey);
+            if (host == null || host.open == 0) {
+                // Connection was not created by createConnection
+                return;
+            }
+
+            host.open--;
+            if (kept) {
+                host.idle = Math.min(host.idle + 1, KEEP_ALIVE_CACHE_SIZE);
+                host.lastReleaseTime = now;
+            }
+            connectionReleased.signalAll();
+
+            if (hosts.size() >= hostsPurgeThreshold) {
+                purgeHosts(now);
+            }
+        } finally {
+            hostsLock.unlock();
+        }
+    }
+
+    /**
+     * Removes hosts without open connections and with no idle connections left in the keep-alive cache.
+     * Is called under {@code hostsLock}.
+     * @param now
+     */
+    private void purgeHosts(long now) {
+        Iterator<HostConnections> iterator = hosts.values().iterator();
+        while (iterator.hasNext()) {
+            HostConnections host = iterator.next();
+            if (host.open == 0 && (host.idle == 0 || now - host.lastReleaseTime > KEEP_ALIVE_CACHE_TIMEOUT)) {
+                iterator.remove();
+            }
+        }
+        hostsPurgeThreshold = Math.max(MIN_HOSTS_PURGE_THRESHOLD, hosts.size() * 2);
+    }
+
+    /**
+     * Returns connections of the host, is called under {@code hostsLock}
+     * @param hostKey
+     * @return
+     */
+    private HostConnections getHost(String hostKey) {
+        HostConnections host = hosts.get(hostKey);
+        if (host == null) {
+            host = new HostConnections();
+            hosts.put(hostKey, host);
+        }
+        return host;
+    }
+
+    private static String getHostKey(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
     }
 
     /**
      * Downloads page content
      * @param request
-     * @param httpMethod
-     * @param useProxy
+     * @param proxy
      * @return
      */
     protected Page download(Request request, Proxy proxy) throws DownloadException {
+        return download(request, proxy, false);
+    }
+
+    /**
+     * Downloads page content. If {@code checkConstraints} is {@code true} - checks constraints of a successful
+     * response as soon as its headers are received. Body of a page violating them is not read and {@code null}
+     * is returned.
+     * @param request
+     * @param proxy
+     * @param checkConstraints
+     * @return
+     */
+    protected Page download(Request request, Proxy proxy, boolean checkConstraints) throws DownloadException {
         HttpURLConnection connection = null;
-        byte[] content = null;
+        PooledByteArrayOutputStream content = null;
         Map<String, String> responseHeaders = new HashMap<String, String>();
         int responseCode = 0;
         String encoding = null;
         String connectionHeader = null;
+        boolean truncated = false;
         long startTime = System.currentTimeMillis();
 
         try {
@@ -483,10 +841,31 @@ public class DefaultDownloader implements Downloader {
             // Getting response header "Connection" value
             connectionHeader = responseHeaders.get("connection");
 
+            if (checkConstraints && responseCode >= 200 && responseCode < 300
+                    && !checkConstaints(new Page(request.getUrl(), responseHeaders, responseCode, null, 0, null))) {
+                log.info("Request to " + request.getUrl() + " violates this downloader constraints");
+                // Body is not read, so connection cannot be reused
+                connectionHeader = "close";
+                return null;
+            }
+
             // Getting content type
             // First checking content encoding header
             String contentEncoding = responseHeaders.get("content-encoding");
-            content = getContent(contentEncoding != null && "gzip".equals(contentEncoding), connection);
+            boolean gzipEncoding = contentEncoding != null && "gzip".equals(contentEncoding);
+            BoundedInputStream inputStream = new BoundedInputStream(connection.getInputStream(), maxContentLength);
+            try {
+                content = getContent(gzipEncoding, inputStream, gzipEncoding ? 0 : NumberUtils.toLong(responseHeaders.get("content-length")));
+            } finally {
+                closeQuietly(inputStream, request);
+            }
+
+            truncated = inputStream.isTruncated();
+            if (truncated) {
+                log.info(request.getUrl() + " content length exceeded limit, content is truncated to " + maxContentLength + " bytes");
+                // Body is not fully read, so connection cannot be reused
+                connectionHeader = "close";
+            }
 
             if (content == null) {
                 throw new DownloadException("Content is empty for " + request.getUrl() + " downloaded through proxy " + proxy);
@@ -497,7 +876,7 @@ public class DefaultDownloader implements Downloader {
 
             if (encoding == null) {
                 // Trying to get charset from meta tag
-                encoding = getCharsetFromMeta(content);
+                encoding = getCharsetFromMeta(content.getBuffer(), content.size());
             }
 
             if (encoding == null) {
@@ -521,7 +900,18 @@ public class DefaultDownloader implements Downloader {
         }
 
         long responseTime = System.currentTimeMillis() - startTime;
-        return createPage(request, content, responseCode, responseHeaders, encoding, responseTime);
+        Page page = content == null ? createPage(request, null, responseCode, responseHeaders, encoding, responseTime)
+                : createPooledPage(request, content, responseCode, responseHeaders, encoding, responseTime);
+        page.setTruncated(truncated);
+        return page;
+    }
+
+    private void closeQuietly(InputStream inputStream, Request request) {
+        try {
+            inputStream.close();
+        } catch (IOException ex) {
+            log.warn("Error closing input stream for request " + request.getUrl(), ex);
+        }
     }
 
     /**
@@ -540,6 +930,23 @@ public class DefaultDownloader implements Downloader {
         return page;
     }
 
+    /**
+     * Creates {@link Page} instance holding the pooled content buffer
+     * @param request
+     * @param content
+     * @param responseCode
+     * @param responseHeaders
+     * @param encoding
+     * @param responseTime
+     * @return
+     */
+    protected Page createPooledPage(Request request, PooledByteArrayOutputStream content, int responseCode, Map<String, String> responseHeaders, String encoding, long responseTime) {
+        log.debug("Response code from " + request.getUrl() + " is " + responseCode);
+        Page page = new Page(request.getUrl(), responseHeaders, responseCode, encoding, responseTime,
+                content.getBuffer(), content.size(), content.getBufferPool());
+        return page;
+    }
+
     /**
      * Tries to get encoding. First from the "Content-Type" header, then tries to guess it from the content
      * @param content
@@ -575,8 +982,18 @@ public class DefaultDownloader implements Downloader {
      * @return
      */
     protected String getCharsetFromMeta(byte[] content) {
+        return getCharsetFromMeta(content, content.length);
+    }
+
+    /**
+     * Tries to get charset from {@code meta} tag in the first {@code length} bytes of the buffer.
+     * @param content
+     * @param length
+     * @return
+     */
+    protected String getCharsetFromMeta(byte[] content, int length) {
         try {
-            String utf8string = new String(content, "UTF-8");
+            String utf8string = new String(content, 0, length, "UTF-8");
 
             Pattern metaRegexp = Pattern.compile("<meta\\s*[^>]*\\s*content=(\"|')?text/html;\\s+charset=([^\"';]+)(\"|'|;)?[^>]*>", Pattern.CASE_INSENSITIVE);
             Matcher matcher = metaRegexp.matcher(utf8string);
@@ -590,4 +1007,17 @@ public class DefaultDownloader implements Downloader {
             return null;
         }
     }
+
+    /**
+     * Connections of a single host
+     */
+    private static class HostConnections {
+
+        private int open;
+        /**
+         * Estimated count of idle connections in the keep-alive cache
+         */
+        private int idle;
+        private long lastReleaseTime;
+    }
 }
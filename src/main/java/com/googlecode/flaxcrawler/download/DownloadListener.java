@@ -0,0 +1,17 @@
+package com.googlecode.flaxcrawler.download;
+
+import java.net.URL;
+import com.googlecode.flaxcrawler.model.Page;
+
+/**
+ * Receives pages downloaded asynchronously (see {@link NioDownloader#downloadAsync})
+ */
+public interface DownloadListener {
+
+    /**
+     * Called by the listener executor of the downloader when page is downloaded. Should not block.
+     * @param url
+     * @param page Downloaded page or {@code null} if it violates downloader constraints
+     */
+    void pageDownloaded(URL url, Page page);
+}
@@ -13,6 +13,7 @@ import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.StringTokenizer;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.io.IOUtils;
 
 /**
@@ -21,6 +22,7 @@ import org.apache.commons.io.IOUtils;
  */
 public class LoginDownloader extends DefaultDownloader {
 
+    private final ReentrantLock loginLock = new ReentrantLock();
     private long lastLoginTime;
     private long sessionDuration = 1800000;
     private String postData;
@@ -52,12 +54,16 @@ public class LoginDownloader extends DefaultDownloader {
 
     @Override
     public Page download(URL url) throws DownloadException {
-        synchronized (this) {
+        // Login request is sent under j.u.c. lock, so waiting virtual threads do not pin their carrier threads
+        loginLock.lock();
+        try {
             if (System.currentTimeMillis() - lastLoginTime > sessionDuration) {
                 getLogger().info("Login downloader should log in to " + loginUrl);
                 login();
                 lastLoginTime = System.currentTimeMillis();
             }
+        } finally {
+            loginLock.unlock();
         }
 
         return super.download(url);
@@ -66,7 +72,7 @@ public class LoginDownloader extends DefaultDownloader {
     /**
      * Posts {@code postData} to the specified {@code loginUrl}
      */
-    private synchronized void login() {
+    private void login() {
         HttpURLConnection connection = null;
         String connectionHeader = null;
         OutputStream out = null;
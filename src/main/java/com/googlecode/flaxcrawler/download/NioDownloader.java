@@ -0,0 +1,1186 @@
+package com.googlecode.flaxcrawler.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import com.googlecode.flaxcrawler.download.ConnectionPool.Connection;
+import com.googlecode.flaxcrawler.model.Page;
+import com.googlecode.flaxcrawler.utils.BoundedInputStream;
+import com.googlecode.flaxcrawler.utils.PooledByteArrayOutputStream;
+
+/**
+ * Downloader based on non-blocking sockets. Requests are processed by a few selector threads, so a lot of requests
+ * can be in flight without a thread for each of them. Pages are completed asynchronously (see {@code downloadAsync}),
+ * {@code download} waits for the page and maps errors to the same response codes as {@link DefaultDownloader} does
+ * (408 on timeout, 404 if page is not found, 503 on other errors).
+ * Plain http requests (directly or through HTTP proxy) are processed by selector threads, https requests and requests
+ * through SOCKS proxy are processed by {@link DefaultDownloader} in the calling thread (their connections are limited
+ * and kept alive the way {@link DefaultDownloader} does it, not by the selector threads pool).
+ * Requests to the same host are processed by the same selector thread, open connections to a single host are limited
+ * by {@code maxConnectionsPerHost} (or by {@code maxParallelRequests} of the host domain constraints), other requests
+ * wait in the selector thread until a connection is free. Requests through HTTP proxy are not limited.
+ * If {@code keepAlive} is on - connections are kept in a per-host {@link ConnectionPool} of the selector thread
+ * (it also keeps not more than {@code maxConnectionsPerHost} idle connections of a host) and reused. Idle connection closed by the server is removed from the pool as soon as it is closed, request sent
+ * through a connection closed while request was being sent is retried with a new connection.
+ * Download listeners are called by {@code listenerExecutor}, not by selector threads.
+ */
+public class NioDownloader extends DefaultDownloader {
+
+    public final static int DEFAULT_IO_THREADS = 2;
+    public final static long DEFAULT_IDLE_TIMEOUT = 15000;
+    private final static int MAX_HEADERS_LENGTH = 65536;
+    private final static int HEADERS_BUFFER_SIZE = 1024;
+    private final static int READ_BUFFER_SIZE = 65536;
+    /**
+     * Period (ms) of timeouts checks
+     */
+    private final static long SELECT_TIMEOUT = 100;
+    private final static byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+    private final static int CHUNK_SIZE = 0;
+    private final static int CHUNK_DATA = 1;
+    private final static int CHUNK_DATA_END = 2;
+    private final static int CHUNK_TRAILER = 3;
+    private final static Callable<Page> NO_TASK = new Callable<Page>() {
+
+        public Page call() {
+            return null;
+        }
+    };
+    private final int ioThreadsCount;
+    private volatile IoThread[] ioThreads;
+    private final Object syncRoot = new Object();
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile Executor listenerExecutor;
+    /**
+     * Executor created by the downloader if {@code listenerExecutor} was not set, is shut down on dispose
+     */
+    private ExecutorService defaultListenerExecutor;
+
+    /**
+     * Creates downloader with {@code DEFAULT_IO_THREADS} selector threads
+     */
+    public NioDownloader() {
+        this(DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Creates an instance of the {@code NioDownloader}
+     * @param ioThreadsCount Count of selector threads
+     */
+    public NioDownloader(int ioThreadsCount) {
+        this.ioThreadsCount = ioThreadsCount;
+    }
+
+    /**
+     * Sets time (ms) idle connection is kept in the pool. Is applied when selector threads are started
+     * (on the first request). By default - {@code DEFAULT_IDLE_TIMEOUT}.
+     * @param idleTimeout
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sets executor calling download listeners (see {@code downloadAsync}). If it is not set - listeners are called
+     * one by one by a daemon thread of the downloader.
+     * @param listenerExecutor
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * Downloads page asynchronously. HEAD request is not sent and downloader constraints are checked when
+     * response headers are received. Download is not retried.
+     * @param url
+     * @return Future completed with the downloaded page, or with {@code null} if page violates downloader constraints
+     */
+    public Future<Page> downloadAsync(URL url) {
+        return downloadAsync(url, null);
+    }
+
+    /**
+     * Downloads page asynchronously. HEAD request is not sent and downloader constraints are checked when
+     * response headers are received. Download is not retried.
+     * @param url
+     * @param listener Listener called by {@code listenerExecutor} when page is downloaded, can be {@code null}
+     * @return Future completed with the downloaded page, or with {@code null} if page violates downloader constraints
+     */
+    public Future<Page> downloadAsync(URL url, DownloadListener listener) {
+        Request request = createRequest(url);
+        Proxy proxy = getProxyController() == null ? null : getProxyController().getProxy();
+
+        if (isSupported(request, proxy)) {
+            return execute(request, proxy, false, true, listener);
+        }
+
+        // Page is downloaded in the calling thread
+        PageFuture future = new PageFuture(url, listener);
+        try {
+            future.complete(super.download(request, proxy, true));
+        } catch (DownloadException ex) {
+            future.fail(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Stops selector threads. Requests in progress are completed with 503 response code.
+     */
+    public void dispose() {
+        synchronized (syncRoot) {
+            if (ioThreads != null) {
+                for (IoThread ioThread : ioThreads) {
+                    ioThread.shutdown();
+                }
+                ioThreads = null;
+            }
+            if (defaultListenerExecutor != null) {
+                defaultListenerExecutor.shutdown();
+                defaultListenerExecutor = null;
+            }
+        }
+    }
+
+    @Override
+    protected Page headRequest(Request request, Proxy proxy) throws DownloadException {
+        if (!isSupported(request, proxy)) {
+            return super.headRequest(request, proxy);
+        }
+
+        return await(execute(request, proxy, true, false, null));
+    }
+
+    @Override
+    protected Page download(Request request, Proxy proxy, boolean checkConstraints) throws DownloadException {
+        if (!isSupported(request, proxy)) {
+            return super.download(request, proxy, checkConstraints);
+        }
+
+        return await(execute(request, proxy, false, checkConstraints, null));
+    }
+
+    /**
+     * Checks if request can be processed by selector threads
+     * @param request
+     * @param proxy
+     * @return
+     */
+    private boolean isSupported(Request request, Proxy proxy) {
+        return "http".equals(request.getUrl().getProtocol())
+                && (proxy == null || proxy.type() == Proxy.Type.DIRECT || proxy.type() == Proxy.Type.HTTP);
+    }
+
+    private Page await(PageFuture future) throws DownloadException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new DownloadException("Interrupted while downloading " + future.url, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof DownloadException) {
+                throw (DownloadException) ex.getCause();
+            }
+            throw new DownloadException("Error downloading " + future.url, ex.getCause());
+        }
+    }
+
+    /**
+     * Passes request to the selector thread of its host
+     * @param request
+     * @param proxy
+     * @param head {@code true} for HEAD request
+     * @param checkConstraints {@code true} if downloader constraints should be checked when headers are received
+     * @param listener
+     * @return
+     */
+    private PageFuture execute(Request request, Proxy proxy, boolean head, boolean checkConstraints, DownloadListener listener) {
+        URL url = request.getUrl();
+        boolean proxied = proxy != null && proxy.type() == Proxy.Type.HTTP;
+        Exchange exchange = new Exchange(request, head, checkConstraints, new PageFuture(url, listener));
+
+        getLogger().debug("Requesting " + url + (proxied ? " using proxy " + proxy : " not using proxy "));
+
+        try {
+            int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            InetSocketAddress address = proxied ? (InetSocketAddress) proxy.address() : new InetSocketAddress(url.getHost(), port);
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(address.getHostName());
+            }
+
+            exchange.address = address;
+            exchange.hostKey = proxied ? "proxy " + address : url.getHost().toLowerCase() + ":" + port;
+            exchange.maxConnections = proxied ? 0 : getMaxConnections(url);
+            exchange.out = ByteBuffer.wrap(createRequestBytes(request, head, proxied));
+            getIoThread(exchange.hostKey).register(exchange);
+        } catch (IOException ex) {
+            exchange.fail(ex);
+        }
+
+        return exchange.future;
+    }
+
+    /**
+     * Returns executor calling download listeners, creates default one if needed
+     * @return
+     */
+    private Executor getListenerExecutor() {
+        Executor executor = listenerExecutor;
+        if (executor != null) {
+            return executor;
+        }
+
+        synchronized (syncRoot) {
+            if (defaultListenerExecutor == null) {
+                defaultListenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "NioDownloader-listener");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return defaultListenerExecutor;
+        }
+    }
+
+    /**
+     * Returns selector thread of the host, starts threads if needed
+     * @param hostKey
+     * @return
+     * @throws IOException
+     */
+    private IoThread getIoThread(String hostKey) throws IOException {
+        IoThread[] threads = ioThreads;
+
+        if (threads == null) {
+            synchronized (syncRoot) {
+                if (ioThreads == null) {
+                    IoThread[] newThreads = new IoThread[ioThreadsCount];
+                    for (int i = 0; i < newThreads.length; i++) {
+                        newThreads[i] = new IoThread("NioDownloader-" + i);
+                        newThreads[i].start();
+                    }
+                    ioThreads = newThreads;
+                }
+                threads = ioThreads;
+            }
+        }
+
+        return threads[(hostKey.hashCode() & Integer.MAX_VALUE) % threads.length];
+    }
+
+    /**
+     * Writes HTTP/1.1 request
+     * @param request
+     * @param head
+     * @param proxied {@code true} if request is sent to HTTP proxy
+     * @return
+     * @throws IOException
+     */
+    private byte[] createRequestBytes(Request request, boolean head, boolean proxied) throws IOException {
+        URL url = request.getUrl();
+        String file = url.getFile().length() == 0 ? "/" : url.getFile();
+        String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(head ? "HEAD " : "GET ");
+        sb.append(proxied ? url.getProtocol() + "://" + host + file : file);
+        sb.append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host).append("\r\n");
+
+        for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+            String header = entry.getKey();
+            if (header == null || entry.getValue() == null || "host".equalsIgnoreCase(header)
+                    || "connection".equalsIgnoreCase(header) || "keep-alive".equalsIgnoreCase(header)) {
+                continue;
+            }
+            getLogger().debug("Setting request header " + header + "=" + entry.getValue());
+            sb.append(header).append(": ").append(entry.getValue()).append("\r\n");
+        }
+
+        sb.append(isKeepAlive() ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+        return sb.toString().getBytes("ISO-8859-1");
+    }
+
+    private static int indexOf(byte[] data, int from, int length, byte[] pattern) {
+        for (int i = from; i <= length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Future completed by a selector thread
+     */
+    private class PageFuture extends FutureTask<Page> {
+
+        private final URL url;
+        private final DownloadListener listener;
+
+        public PageFuture(URL url, DownloadListener listener) {
+            super(NO_TASK);
+            this.url = url;
+            this.listener = listener;
+        }
+
+        public void complete(Page page) {
+            set(page);
+        }
+
+        public void fail(Throwable error) {
+            setException(error);
+        }
+
+        @Override
+        protected void done() {
+            if (listener == null || isCancelled()) {
+                return;
+            }
+
+            Runnable notification = new Runnable() {
+
+                public void run() {
+                    notifyListener();
+                }
+            };
+
+            try {
+                getListenerExecutor().execute(notification);
+            } catch (RejectedExecutionException ex) {
+                getLogger().warn("Listener of " + url + " was not called, listener executor rejected it", ex);
+            }
+        }
+
+        private void notifyListener() {
+            Page page;
+            try {
+                page = get();
+            } catch (Exception ex) {
+                // Failed downloads are not passed to the listener
+                return;
+            }
+
+            try {
+                listener.pageDownloaded(url, page);
+            } catch (RuntimeException ex) {
+                getLogger().error("Download listener failed processing " + url, ex);
+            }
+        }
+    }
+
+    /**
+     * Selector thread
+     */
+    private class IoThread extends Thread {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Exchange> pending = new ConcurrentLinkedQueue<Exchange>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        /**
+         * Bytes read are copied here, exchange does not keep this array
+         */
+        private final byte[] readArray = new byte[READ_BUFFER_SIZE];
+        private final ConnectionPool connectionPool = new ConnectionPool(getMaxConnectionsPerHost(), idleTimeout);
+        /**
+         * Exchanges waiting for a free connection to their hosts
+         */
+        private final Map<String, LinkedList<Exchange>> waiting = new HashMap<String, LinkedList<Exchange>>();
+        private volatile boolean running = true;
+        private volatile String stopReason = "Downloader was disposed";
+
+        public IoThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Puts connection to the pool, it is watched for being closed by the server while idle
+         * @param connection
+         */
+        public void release(Connection connection) {
+            if (connectionPool.release(connection, System.currentTimeMillis())) {
+                connection.getKey().attach(connection);
+                connection.getKey().interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Passes exchange to this thread
+         * @param exchange
+         */
+        public void register(Exchange exchange) {
+            pending.add(exchange);
+            selector.wakeup();
+
+            if (!running) {
+                failPending();
+            }
+        }
+
+        public void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastCheckTime = System.currentTimeMillis();
+
+            try {
+                while (running) {
+                    try {
+                        selector.select(SELECT_TIMEOUT);
+                    } catch (IOException ex) {
+                        getLogger().error("Error selecting channels", ex);
+                        stopReason = "Selector thread " + getName() + " has stopped";
+                        break;
+                    }
+
+                    registerPending();
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        process(key);
+                    }
+
+                    if (!waiting.isEmpty()) {
+                        startWaiting();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastCheckTime >= SELECT_TIMEOUT) {
+                        checkTimeouts(now);
+                        lastCheckTime = now;
+                    }
+                }
+            } catch (RuntimeException ex) {
+                getLogger().error("Selector thread " + getName() + " has stopped", ex);
+                stopReason = "Selector thread " + getName() + " has stopped";
+            } catch (Error ex) {
+                getLogger().fatal("Selector thread " + getName() + " has stopped", ex);
+                stopReason = "Selector thread " + getName() + " has stopped";
+                throw ex;
+            } finally {
+                // New requests are failed by register from now on
+                running = false;
+                closeAll();
+            }
+        }
+
+        /**
+         * Fails all registered and pending exchanges, closes connections and selector
+         */
+        private void closeAll() {
+            for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                if (key.attachment() instanceof Exchange) {
+                    try {
+                        ((Exchange) key.attachment()).fail(new IOException(stopReason));
+                    } catch (RuntimeException ex) {
+                        getLogger().warn("Error failing exchange", ex);
+                    }
+                }
+            }
+            for (LinkedList<Exchange> exchanges : waiting.values()) {
+                for (Exchange exchange : exchanges) {
+                    exchange.fail(new IOException(stopReason));
+                }
+            }
+            waiting.clear();
+            connectionPool.clear();
+            failPending();
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                getLogger().warn("Error closing selector", ex);
+            }
+        }
+
+        private void registerPending() {
+            Exchange exchange;
+            long now = System.currentTimeMillis();
+
+            while ((exchange = pending.poll()) != null) {
+                exchange.ioThread = this;
+                LinkedList<Exchange> hostWaiting = waiting.get(exchange.hostKey);
+
+                if (hostWaiting == null && start(exchange, now)) {
+                    continue;
+                }
+
+                // Requests to the host are sent in the order they were made
+                if (hostWaiting == null) {
+                    hostWaiting = new LinkedList<Exchange>();
+                    waiting.put(exchange.hostKey, hostWaiting);
+                }
+                hostWaiting.add(exchange);
+            }
+        }
+
+        /**
+         * Starts exchanges waiting for a free connection, while their hosts are under limit
+         */
+        private void startWaiting() {
+            long now = System.currentTimeMillis();
+            Iterator<LinkedList<Exchange>> iterator = waiting.values().iterator();
+
+            while (iterator.hasNext()) {
+                LinkedList<Exchange> hostWaiting = iterator.next();
+
+                while (!hostWaiting.isEmpty()) {
+                    Exchange exchange = hostWaiting.getFirst();
+                    if (!exchange.future.isCancelled() && !exchange.completed && !start(exchange, now)) {
+                        break;
+                    }
+                    hostWaiting.removeFirst();
+                }
+                if (hostWaiting.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Sends request through an idle connection or opens new one. Returns {@code false} if there are
+         * too many open connections to the host.
+         * @param exchange
+         * @param now
+         * @return
+         */
+        private boolean start(Exchange exchange, long now) {
+            Connection connection = isKeepAlive() ? connectionPool.acquire(exchange.hostKey, now) : null;
+
+            if (connection != null) {
+                countConnection(true);
+                exchange.connection = connection;
+                exchange.reused = true;
+                exchange.deadline = now + getReadTimeout();
+                connection.incrementRequestsCount();
+                connection.getKey().attach(exchange);
+                connection.getKey().interestOps(SelectionKey.OP_WRITE);
+                return true;
+            }
+
+            if (!connectionPool.canOpen(exchange.hostKey, exchange.maxConnections)) {
+                return false;
+            }
+
+            try {
+                connect(exchange, now);
+            } catch (IOException ex) {
+                exchange.fail(ex);
+            }
+            return true;
+        }
+
+        /**
+         * Opens new connection for the exchange
+         * @param exchange
+         * @param now
+         * @throws IOException
+         */
+        private void connect(Exchange exchange, long now) throws IOException {
+            getLogger().debug("Opening connection to " + exchange.hostKey);
+            SocketChannel channel = SocketChannel.open();
+            exchange.connection = new Connection(exchange.hostKey, channel);
+            connectionPool.opened(exchange.connection);
+            exchange.connection.incrementRequestsCount();
+            exchange.reused = false;
+            exchange.deadline = now + getConnectionTimeout();
+            countConnection(false);
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connected = channel.connect(exchange.address);
+            exchange.connection.setKey(channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, exchange));
+        }
+
+        /**
+         * Request has failed. If pooled connection was closed by the server before response - request is sent again
+         * through a new connection.
+         * @param exchange
+         * @param ex
+         */
+        private void failOrRetry(Exchange exchange, IOException ex) {
+            if (!exchange.reused || exchange.responseStarted || exchange.completed) {
+                exchange.fail(ex);
+                return;
+            }
+
+            getLogger().debug("Pooled connection to " + exchange.hostKey + " was closed, reconnecting");
+            connectionPool.close(exchange.connection);
+            exchange.out.rewind();
+            try {
+                connect(exchange, System.currentTimeMillis());
+            } catch (IOException cex) {
+                exchange.fail(cex);
+            }
+        }
+
+        private void failPending() {
+            Exchange exchange;
+            while ((exchange = pending.poll()) != null) {
+                exchange.fail(new IOException(stopReason));
+            }
+        }
+
+        private void process(SelectionKey key) {
+            if (key.attachment() instanceof Connection) {
+                // Idle connection was closed by the server (or server sent something unexpected)
+                connectionPool.remove((Connection) key.attachment());
+                return;
+            }
+
+            Exchange exchange = (Exchange) key.attachment();
+            SocketChannel channel = exchange.connection.getChannel();
+
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        exchange.deadline = System.currentTimeMillis() + getReadTimeout();
+                    }
+                } else if (key.isWritable()) {
+                    channel.write(exchange.out);
+                    if (!exchange.out.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    exchange.deadline = System.currentTimeMillis() + getReadTimeout();
+                } else if (key.isReadable()) {
+                    readBuffer.clear();
+                    int count = channel.read(readBuffer);
+
+                    if (count < 0 && exchange.reused && !exchange.responseStarted) {
+                        failOrRetry(exchange, new IOException("Connection to " + exchange.hostKey + " was closed"));
+                    } else if (count < 0) {
+                        exchange.endOfStream();
+                    } else if (count > 0) {
+                        readBuffer.flip();
+                        readBuffer.get(readArray, 0, count);
+                        exchange.received(readArray, 0, count);
+                        exchange.deadline = System.currentTimeMillis() + getReadTimeout();
+                    }
+                }
+            } catch (CancelledKeyException ex) {
+                // Exchange is already completed
+            } catch (IOException ex) {
+                failOrRetry(exchange, ex);
+            } catch (RuntimeException ex) {
+                // Malformed response must not stop the selector thread
+                getLogger().error("Error processing response from " + exchange.request.getUrl(), ex);
+                IOException error = new IOException("Error processing response from " + exchange.request.getUrl());
+                error.initCause(ex);
+                exchange.fail(error);
+            }
+        }
+
+        private void checkTimeouts(long now) {
+            for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                if (!(key.attachment() instanceof Exchange)) {
+                    continue;
+                }
+
+                Exchange exchange = (Exchange) key.attachment();
+                if (exchange.future.isCancelled()) {
+                    exchange.close();
+                } else if (key.isValid() && now > exchange.deadline) {
+                    exchange.timeout();
+                }
+            }
+
+            connectionPool.evictExpired(now);
+        }
+    }
+
+    /**
+     * Single request and its response. Is accessed by its selector thread only.
+     */
+    private class Exchange {
+
+        private final Request request;
+        private final boolean head;
+        private final boolean checkConstraints;
+        private final PageFuture future;
+        private final long startTime = System.currentTimeMillis();
+        private InetSocketAddress address;
+        private String hostKey;
+        private IoThread ioThread;
+        private Connection connection;
+        /**
+         * {@code true} if connection was taken from the pool
+         */
+        private boolean reused;
+        /**
+         * Maximum count of open connections to the host, 0 - unlimited
+         */
+        private int maxConnections;
+        private boolean responseStarted;
+        /**
+         * {@code true} if connection can be reused after the response is read
+         */
+        private boolean reusable;
+        private ByteBuffer out;
+        private long deadline;
+        private boolean completed;
+        /**
+         * Bytes of the response headers received so far, {@code null} when headers are read
+         */
+        private byte[] headersBuffer = new byte[HEADERS_BUFFER_SIZE];
+        private int headersLength;
+        private int responseCode;
+        private Map<String, String> responseHeaders;
+        private PooledByteArrayOutputStream body;
+        /**
+         * {@code true} if body was cut at {@code maxContentLength}
+         */
+        private boolean truncated;
+        /**
+         * Bytes of the body left, -1 if body is read until the connection is closed
+         */
+        private long remaining = -1;
+        private boolean chunked;
+        private int chunkState = CHUNK_SIZE;
+        private long chunkRemaining;
+        private final StringBuilder chunkLine = new StringBuilder();
+
+        public Exchange(Request request, boolean head, boolean checkConstraints, PageFuture future) {
+            this.request = request;
+            this.head = head;
+            this.checkConstraints = checkConstraints;
+            this.future = future;
+        }
+
+        /**
+         * Processes bytes received from the server
+         * @param data
+         * @param offset
+         * @param length
+         * @throws IOException
+         */
+        public void received(byte[] data, int offset, int length) throws IOException {
+            if (completed) {
+                return;
+            }
+            responseStarted = true;
+            if (responseHeaders != null) {
+                readBody(data, offset, length);
+                return;
+            }
+
+            // Only the new bytes (and the tail of the previous ones) are scanned for the end of headers
+            int scanFrom = Math.max(0, headersLength - HEADERS_END.length + 1);
+            appendHeaders(data, offset, length);
+            byte[] raw = headersBuffer;
+            int rawLength = headersLength;
+            int end = indexOf(raw, scanFrom, rawLength, HEADERS_END);
+
+            if (end < 0) {
+                if (rawLength > MAX_HEADERS_LENGTH) {
+                    throw new IOException("Response headers from " + request.getUrl() + " are too long");
+                }
+                return;
+            }
+
+            parseHeaders(new String(raw, 0, end, "ISO-8859-1"));
+            int bodyOffset = end + HEADERS_END.length;
+
+            if (responseCode < 200) {
+                // Skipping interim response, bytes after it are copied as buffer is reused
+                responseHeaders = null;
+                byte[] rest = new byte[rawLength - bodyOffset];
+                System.arraycopy(raw, bodyOffset, rest, 0, rest.length);
+                headersLength = 0;
+                received(rest, 0, rest.length);
+                return;
+            }
+
+            headersBuffer = null;
+            if (bodyOffset < rawLength && (head || responseCode == HttpURLConnection.HTTP_NO_CONTENT
+                    || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+                // Server sent a body which should not be there, connection cannot be reused
+                reusable = false;
+            }
+            if (startBody()) {
+                readBody(raw, bodyOffset, rawLength - bodyOffset);
+            }
+        }
+
+        private void appendHeaders(byte[] data, int offset, int length) {
+            if (headersLength + length > headersBuffer.length) {
+                byte[] newBuffer = new byte[Math.max(headersLength + length, headersBuffer.length * 2)];
+                System.arraycopy(headersBuffer, 0, newBuffer, 0, headersLength);
+                headersBuffer = newBuffer;
+            }
+            System.arraycopy(data, offset, headersBuffer, headersLength, length);
+            headersLength += length;
+        }
+
+        /**
+         * Connection was closed by the server
+         * @throws IOException
+         */
+        public void endOfStream() throws IOException {
+            if (responseHeaders == null) {
+                throw new IOException("Connection to " + request.getUrl() + " was closed before response headers were received");
+            }
+            if (chunked || remaining > 0) {
+                throw new IOException("Connection to " + request.getUrl() + " was closed before response was fully read");
+            }
+            reusable = false;
+            finish();
+        }
+
+        private void parseHeaders(String headers) throws IOException {
+            String[] lines = headers.split("\r\n");
+            String[] statusLine = lines[0].split(" ");
+
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+                throw new IOException("Wrong status line from " + request.getUrl() + ": " + lines[0]);
+            }
+            try {
+                responseCode = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Wrong status line from " + request.getUrl() + ": " + lines[0]);
+            }
+
+            responseHeaders = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int index = lines[i].indexOf(':');
+                if (index > 0) {
+                    String header = lines[i].substring(0, index).trim().toLowerCase();
+                    String value = lines[i].substring(index + 1).trim();
+                    getLogger().debug("Response header for " + request.getUrl() + " " + header + "=" + value);
+                    responseHeaders.put(header, value);
+                }
+            }
+
+            // HTTP/1.0 connection is persistent only if server says so
+            String connectionHeader = responseHeaders.get("connection");
+            reusable = isKeepAlive() && (statusLine[0].equals("HTTP/1.0")
+                    ? "keep-alive".equalsIgnoreCase(connectionHeader) : !"close".equalsIgnoreCase(connectionHeader));
+        }
+
+        /**
+         * Checks response headers. Returns {@code false} if body should not be read.
+         * @return
+         * @throws IOException
+         */
+        private boolean startBody() throws IOException {
+            if (head) {
+                if (responseCode >= 400) {
+                    // HttpURLConnection fails HEAD requests with error response codes
+                    throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + request.getUrl());
+                }
+                finish();
+                return false;
+            }
+
+            if (responseCode >= 400) {
+                // Error response body is not needed
+                int code = responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE
+                        ? HttpURLConnection.HTTP_NOT_FOUND : HttpURLConnection.HTTP_UNAVAILABLE;
+                getLogger().warn("Server returned response code " + responseCode + " for url " + request.getUrl());
+                complete(createPage(request, null, code, responseHeaders, null, System.currentTimeMillis() - startTime));
+                return false;
+            }
+
+            if (checkConstraints && responseCode < 300
+                    && !checkConstaints(new Page(request.getUrl(), responseHeaders, responseCode, null, 0, null))) {
+                getLogger().info("Request to " + request.getUrl() + " violates this downloader constraints");
+                complete(null);
+                return false;
+            }
+
+            String transferEncoding = responseHeaders.get("transfer-encoding");
+            String contentLength = responseHeaders.get("content-length");
+            chunked = transferEncoding != null && transferEncoding.toLowerCase().indexOf("chunked") >= 0;
+
+            if (!chunked && contentLength != null) {
+                try {
+                    remaining = Long.parseLong(contentLength);
+                } catch (NumberFormatException ex) {
+                    remaining = -1;
+                }
+            }
+
+            if (responseCode == HttpURLConnection.HTTP_NO_CONTENT || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                remaining = 0;
+                chunked = false;
+            }
+
+            long initialSize = remaining > 0 ? remaining : DEFAULT_CONTENT_BUFFER_SIZE;
+            if (getMaxContentLength() > 0) {
+                initialSize = Math.min(initialSize, getMaxContentLength());
+            }
+            body = new PooledByteArrayOutputStream(getBufferPool(), (int) Math.min(initialSize, Integer.MAX_VALUE));
+            if (remaining == 0) {
+                finish();
+                return false;
+            }
+
+            return true;
+        }
+
+        private void readBody(byte[] data, int offset, int length) throws IOException {
+            if (chunked) {
+                if (readChunks(data, offset, length)) {
+                    finish();
+                }
+            } else if (remaining >= 0) {
+                int count = (int) Math.min(length, remaining);
+                remaining -= count;
+                if (count < length) {
+                    // Server sent more than expected, connection cannot be reused
+                    reusable = false;
+                }
+                if (!write(data, offset, count) || remaining == 0) {
+                    finish();
+                }
+            } else if (!write(data, offset, length)) {
+                finish();
+            }
+        }
+
+        /**
+         * Writes body bytes not exceeding {@code maxContentLength}. Returns {@code false} if body is truncated.
+         * @param data
+         * @param offset
+         * @param length
+         * @return
+         */
+        private boolean write(byte[] data, int offset, int length) {
+            long maxContentLength = getMaxContentLength();
+            if (maxContentLength > 0 && body.size() + length > maxContentLength) {
+                body.write(data, offset, (int) (maxContentLength - body.size()));
+                // The rest of the body is not read, connection cannot be reused
+                truncated = true;
+                reusable = false;
+                return false;
+            }
+
+            body.write(data, offset, length);
+            return true;
+        }
+
+        /**
+         * Decodes chunked body. Returns {@code true} if the last chunk was read.
+         * @param data
+         * @param offset
+         * @param length
+         * @return
+         * @throws IOException
+         */
+        private boolean readChunks(byte[] data, int offset, int length) throws IOException {
+            int position = offset;
+            int end = offset + length;
+
+            while (position < end) {
+                byte b;
+
+                switch (chunkState) {
+                    case CHUNK_SIZE:
+                        b = data[position++];
+                        if (b == '\n') {
+                            chunkRemaining = parseChunkSize(chunkLine.toString());
+                            chunkLine.setLength(0);
+                            chunkState = chunkRemaining == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+                        } else if (b != '\r') {
+                            chunkLine.append((char) b);
+                        }
+                        break;
+                    case CHUNK_DATA:
+                        int count = (int) Math.min(end - position, chunkRemaining);
+                        if (!write(data, position, count)) {
+                            return true;
+                        }
+                        position += count;
+                        chunkRemaining -= count;
+                        if (chunkRemaining == 0) {
+                            chunkState = CHUNK_DATA_END;
+                        }
+                        break;
+                    case CHUNK_DATA_END:
+                        if (data[position++] == '\n') {
+                            chunkState = CHUNK_SIZE;
+                        }
+                        break;
+                    default:
+                        // Trailer headers are ignored, empty line ends the body
+                        b = data[position++];
+                        if (b == '\n') {
+                            if (chunkLine.length() == 0) {
+                                // Server sent more than expected, connection cannot be reused
+                                reusable = reusable && position == end;
+                                return true;
+                            }
+                            chunkLine.setLength(0);
+                        } else if (b != '\r') {
+                            chunkLine.append((char) b);
+                        }
+                }
+            }
+
+            return false;
+        }
+
+        private long parseChunkSize(String line) throws IOException {
+            int index = line.indexOf(';');
+            String size = (index < 0 ? line : line.substring(0, index)).trim();
+
+            long chunkSize;
+            try {
+                chunkSize = Long.parseLong(size, 16);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Wrong chunk size from " + request.getUrl() + ": " + line);
+            }
+            if (chunkSize < 0) {
+                throw new IOException("Wrong chunk size from " + request.getUrl() + ": " + line);
+            }
+            return chunkSize;
+        }
+
+        /**
+         * Response is fully read, creating page
+         * @throws IOException
+         */
+        private void finish() throws IOException {
+            long responseTime = System.currentTimeMillis() - startTime;
+
+            if (remaining < 0 && !chunked && !head) {
+                // Body was read until the connection was closed
+                reusable = false;
+            }
+            if (reusable) {
+                // Response is fully read, connection can be returned to the pool
+                Connection pooled = connection;
+                connection = null;
+                ioThread.release(pooled);
+            }
+
+            if (head) {
+                complete(createPage(request, null, responseCode, responseHeaders, null, responseTime));
+                return;
+            }
+
+            String contentEncoding = responseHeaders.get("content-encoding");
+            if (contentEncoding != null && "gzip".equals(contentEncoding)) {
+                // Content is gzipped, decoded content is bounded too
+                BoundedInputStream inputStream = new BoundedInputStream(new ByteArrayInputStream(body.getBuffer(), 0, body.size()), getMaxContentLength());
+                inputStream.setTruncated(truncated);
+                PooledByteArrayOutputStream content = getContent(true, inputStream, 0);
+                truncated = inputStream.isTruncated();
+                body.release();
+                body = content;
+            }
+            if (truncated) {
+                getLogger().info(request.getUrl() + " content length exceeded limit, content is truncated to " + getMaxContentLength() + " bytes");
+            }
+
+            // Trying to get charset from the "Content-Type" header, then from meta tag
+            String encoding = getCharset(responseHeaders.get("content-type"));
+            if (encoding == null) {
+                encoding = getCharsetFromMeta(body.getBuffer(), body.size());
+            }
+            if (encoding == null) {
+                encoding = "UTF-8";
+            }
+
+            // Content buffer is owned by the page now
+            Page page = createPooledPage(request, body, responseCode, responseHeaders, encoding, responseTime);
+            page.setTruncated(truncated);
+            body = null;
+            complete(page);
+        }
+
+        /**
+         * Request has failed
+         * @param ex
+         */
+        public void fail(IOException ex) {
+            if (completed) {
+                return;
+            }
+
+            if (head) {
+                String message = "Error while processing HEAD request to " + request.getUrl();
+                getLogger().info(message, ex);
+                close();
+                future.fail(new DownloadException(message, ex));
+            } else {
+                getLogger().warn("Error while requesting url " + request.getUrl(), ex);
+                // Setting response code to 503
+                complete(createPage(request, null, HttpURLConnection.HTTP_UNAVAILABLE, new HashMap<String, String>(),
+                        null, System.currentTimeMillis() - startTime));
+            }
+        }
+
+        /**
+         * Connect or read timeout has exceeded
+         */
+        public void timeout() {
+            if (head) {
+                fail(new SocketTimeoutException("Timeout exception for url " + request.getUrl()));
+                return;
+            }
+
+            getLogger().warn("Timeout exception for url " + request.getUrl());
+            // Setting response code to 408
+            complete(createPage(request, null, HttpURLConnection.HTTP_CLIENT_TIMEOUT, new HashMap<String, String>(),
+                    null, System.currentTimeMillis() - startTime));
+        }
+
+        private void complete(Page page) {
+            close();
+            future.complete(page);
+        }
+
+        public void close() {
+            completed = true;
+
+            if (connection != null) {
+                ioThread.connectionPool.close(connection);
+                connection = null;
+            }
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.googlecode.flaxcrawler.frontier;
+
+import com.googlecode.flaxcrawler.concurrent.SequencePolicy;
+import com.googlecode.flaxcrawler.model.Page;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * Sequence policy adapting limits of every domain (sequence name is a domain name) to the observed responses
+ * (additive increase, multiplicative decrease). While smoothed response time is under target and domain does not
+ * respond with 429 or 503 - delay between requests is decreased and parallel requests count is increased step by step.
+ * Otherwise parallel requests count is halved and delay is doubled.
+ * Limits of the base policy are bounds: parallel requests count never exceeds its maximum and delay is never
+ * less than its minimum delay.
+ * Not more than {@code maxDomains} domains are tracked, limits of the least recently used domain are forgotten
+ * (it starts from the base policy limits again).
+ */
+public class AdaptiveSequencePolicy implements SequencePolicy {
+
+    public final static long DEFAULT_TARGET_RESPONSE_TIME = 2000;
+    public final static int DEFAULT_MAX_PARALLEL_TASKS = 8;
+    public final static long DEFAULT_MAX_DELAY = 60000;
+    public final static long DEFAULT_MAX_RETRY_AFTER = 3600000;
+    public final static int DEFAULT_MAX_DOMAINS = 10000;
+    /**
+     * Delay decrease after a good response (ms)
+     */
+    private final static long DELAY_STEP = 100;
+    private final static int HTTP_TOO_MANY_REQUESTS = 429;
+    private final static int HTTP_SERVICE_UNAVAILABLE = 503;
+    private Logger log = Logger.getLogger(this.getClass());
+    private final SequencePolicy limits;
+    /**
+     * Domain states in access order, guarded by itself
+     */
+    private final Map<String, DomainState> states = new LinkedHashMap<String, DomainState>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DomainState> eldest) {
+            return size() > maxDomains;
+        }
+    };
+    private volatile long targetResponseTime = DEFAULT_TARGET_RESPONSE_TIME;
+    private volatile int maxParallelTasks = DEFAULT_MAX_PARALLEL_TASKS;
+    private volatile long maxDelay = DEFAULT_MAX_DELAY;
+    private volatile long maxRetryAfter = DEFAULT_MAX_RETRY_AFTER;
+    private volatile int maxDomains = DEFAULT_MAX_DOMAINS;
+
+    /**
+     * Creates an instance of the {@code AdaptiveSequencePolicy}
+     * @param limits Policy with hand-tuned limits of domains
+     */
+    public AdaptiveSequencePolicy(SequencePolicy limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Sets smoothed response time (ms) above which domain is considered overloaded. By default - 2000.
+     * @param targetResponseTime
+     */
+    public void setTargetResponseTime(long targetResponseTime) {
+        this.targetResponseTime = targetResponseTime;
+    }
+
+    /**
+     * Sets maximum parallel requests to a domain which base policy does not limit. By default - 8.
+     * @param maxParallelTasks
+     */
+    public void setMaxParallelTasks(int maxParallelTasks) {
+        this.maxParallelTasks = maxParallelTasks;
+    }
+
+    /**
+     * Sets maximum delay (ms) between two requests to a domain. By default - 60000.
+     * @param maxDelay
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Sets maximum delay (ms) accepted from {@code Retry-After} header. By default - 3600000 (1 hour).
+     * @param maxRetryAfter
+     */
+    public void setMaxRetryAfter(long maxRetryAfter) {
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+    /**
+     * Sets maximum count of domains which limits are tracked. By default - 10000.
+     * @param maxDomains
+     */
+    public void setMaxDomains(int maxDomains) {
+        this.maxDomains = maxDomains;
+    }
+
+    /**
+     * Returns count of domains which limits are tracked
+     * @return
+     */
+    public int getDomainsCount() {
+        synchronized (states) {
+            return states.size();
+        }
+    }
+
+    public int getMaxParallelTasks(String sequenceName) {
+        DomainState state;
+        synchronized (states) {
+            state = states.get(sequenceName);
+        }
+        return state == null ? 1 : state.parallelTasks;
+    }
+
+    public long getMinDelay(String sequenceName) {
+        DomainState state;
+        synchronized (states) {
+            state = states.get(sequenceName);
+        }
+        return state == null ? limits.getMinDelay(sequenceName) : state.delay;
+    }
+
+    /**
+     * Updates domain limits after a page is downloaded. Returns time (ms) domain asked not to request it
+     * with {@code Retry-After} header, or 0.
+     * @param sequenceName
+     * @param page
+     * @return
+     */
+    public long update(String sequenceName, Page page) {
+        DomainState state = getState(sequenceName);
+        int responseCode = page.getResponseCode();
+        boolean throttled = responseCode == HTTP_TOO_MANY_REQUESTS || responseCode == HTTP_SERVICE_UNAVAILABLE;
+        int maxParallel = limits.getMaxParallelTasks(sequenceName);
+        long minDelay = limits.getMinDelay(sequenceName);
+
+        synchronized (state) {
+            state.responseTime = state.responseTime < 0 ? page.getResponseTime()
+                    : (state.responseTime * 7 + page.getResponseTime()) / 8;
+
+            if (throttled || state.responseTime > targetResponseTime) {
+                // Multiplicative decrease
+                state.parallelTasks = Math.max(1, state.parallelTasks / 2);
+                state.delay = Math.max(minDelay, Math.min(maxDelay, Math.max(state.delay * 2, DELAY_STEP)));
+                state.successes = 0;
+                log.debug("Domain " + sequenceName + " is overloaded, " + state.parallelTasks + " parallel requests, delay " + state.delay + " ms");
+            } else {
+                // Additive increase, parallel requests count is increased once all of them have succeeded
+                state.delay = Math.max(minDelay, state.delay - DELAY_STEP);
+                if (++state.successes >= state.parallelTasks) {
+                    state.successes = 0;
+                    state.parallelTasks = Math.min(maxParallel == 0 ? maxParallelTasks : maxParallel, state.parallelTasks + 1);
+                }
+            }
+        }
+
+        return throttled ? getRetryAfter(page) : 0;
+    }
+
+    /**
+     * Returns delay (ms) from the {@code Retry-After} header, or 0 if there's no such header
+     * @param page
+     * @return
+     */
+    private long getRetryAfter(Page page) {
+        String retryAfter = page.getHeaders() == null ? null : page.getHeader("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+
+        long delay;
+        retryAfter = retryAfter.trim();
+        try {
+            delay = Long.parseLong(retryAfter) * 1000;
+        } catch (NumberFormatException ex) {
+            try {
+                SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                delay = dateFormat.parse(retryAfter).getTime() - System.currentTimeMillis();
+            } catch (ParseException pex) {
+                log.debug("Cannot parse Retry-After header " + retryAfter);
+                return 0;
+            }
+        }
+
+        return Math.max(0, Math.min(delay, maxRetryAfter));
+    }
+
+    private DomainState getState(String sequenceName) {
+        long minDelay = limits.getMinDelay(sequenceName);
+
+        synchronized (states) {
+            DomainState state = states.get(sequenceName);
+            if (state == null) {
+                state = new DomainState(minDelay);
+                states.put(sequenceName, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Adapted limits of a single domain
+     */
+    private static class DomainState {
+
+        private volatile int parallelTasks = 1;
+        private volatile long delay;
+        /**
+         * Smoothed response time, -1 if there were no responses yet
+         */
+        private long responseTime = -1;
+        private int successes;
+
+        public DomainState(long delay) {
+            this.delay = delay;
+        }
+    }
+}
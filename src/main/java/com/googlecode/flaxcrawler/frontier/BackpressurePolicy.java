@@ -0,0 +1,20 @@
+package com.googlecode.flaxcrawler.frontier;
+
+/**
+ * Defines what {@link SchedulerQueue} does with a new task when it is full
+ */
+public enum BackpressurePolicy {
+
+    /**
+     * Thread scheduling the task waits until there's free space in the queue
+     */
+    BLOCK,
+    /**
+     * Task with the deepest level (the new one or one of the queued tasks) is dropped
+     */
+    DROP_LOWEST_PRIORITY,
+    /**
+     * Task is written to disk and read back when the queue is drained
+     */
+    SPILL
+}
@@ -1,27 +1,51 @@
 package com.googlecode.flaxcrawler.frontier;
 
 import com.googlecode.flaxcrawler.concurrent.TaskQueue;
+import com.googlecode.flaxcrawler.concurrent.TaskQueueException;
 import com.googlecode.flaxcrawler.model.CrawlerTask;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.log4j.Logger;
 
 /**
  * Standard scheduler implementation. Starts an asyncronous worker thread that reads urls from the queue
- * and adds them to the {@code TaskQueue}.
+ * and adds them to the {@code TaskQueue}. Urls are processed in batches: batch is deduplicated, checked
+ * against crawled urls with one {@link StatisticsService#checkAndSchedule} call and new tasks are enqueued at once.
+ * Scheduler queue can be bounded (see {@link SchedulerQueue}).
  */
 public class DefaultScheduler implements Scheduler {
 
+    public final static int DEFAULT_BATCH_SIZE = 1000;
     private Logger log = Logger.getLogger(this.getClass());
     private TaskQueue taskQueue;
     private StatisticsService statisticsService;
-    private final Object syncRoot = new Object();
-    private final Queue<CrawlerTask> schedulerQueue = new LinkedList<CrawlerTask>();
+    /**
+     * Held while a task is moved from the scheduler queue to the task queue
+     */
+    private final Object processingSyncRoot = new Object();
+    private final SchedulerQueue schedulerQueue;
     private final Thread workerThread;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
 
+    /**
+     * Creates scheduler with unbounded queue
+     * @param taskQueue
+     * @param statisticsService
+     */
     public DefaultScheduler(TaskQueue taskQueue, StatisticsService statisticsService) {
+        this(taskQueue, statisticsService, new SchedulerQueue());
+    }
+
+    /**
+     * Creates an instance of the {@code DefaultScheduler}
+     * @param taskQueue
+     * @param statisticsService
+     * @param schedulerQueue Queue of tasks waiting for the scheduler
+     */
+    public DefaultScheduler(TaskQueue taskQueue, StatisticsService statisticsService, SchedulerQueue schedulerQueue) {
         this.statisticsService = statisticsService;
         this.taskQueue = taskQueue;
+        this.schedulerQueue = schedulerQueue;
 
         workerThread = new Thread(new Runnable() {
 
@@ -34,10 +58,67 @@ public class DefaultScheduler implements Scheduler {
         log.info("Scheduler was successfully initialized and started");
     }
 
+    /**
+     * Returns maximum count of tasks processed in one batch
+     * @return
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets maximum count of tasks processed in one batch. By default - {@code DEFAULT_BATCH_SIZE}.
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
     public void schedule(CrawlerTask crawlerTask) {
-        synchronized (syncRoot) {
-            log.debug("Enqueueing task " + crawlerTask.getUrl() + " to the scheduler queue");
+        log.debug("Enqueueing task " + crawlerTask.getUrl() + " to the scheduler queue");
+
+        try {
             schedulerQueue.add(crawlerTask);
+        } catch (InterruptedException ex) {
+            log.warn("Interrupted while scheduling " + crawlerTask.getUrl());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueSize() {
+        return schedulerQueue.size();
+    }
+
+    public long getBackpressureTime() {
+        return schedulerQueue.getBackpressureTime();
+    }
+
+    public long getDroppedCount() {
+        return schedulerQueue.getDroppedCount();
+    }
+
+    public void dispose() {
+        workerThread.interrupt();
+
+        synchronized (processingSyncRoot) {
+            schedulerQueue.dispose();
+        }
+        log.info("Scheduler was disposed");
+    }
+
+    public void checkpoint() throws TaskQueueException {
+        synchronized (processingSyncRoot) {
+            List<CrawlerTask> pending = schedulerQueue.getTasks();
+
+            try {
+                // Task queue snapshot should be stored before crawled urls
+                taskQueue.checkpoint(pending).get();
+            } catch (Exception ex) {
+                log.error("Error storing task queue checkpoint", ex);
+                throw new TaskQueueException("Error storing task queue checkpoint", ex);
+            }
+
+            statisticsService.checkpoint();
         }
     }
 
@@ -46,27 +127,38 @@ public class DefaultScheduler implements Scheduler {
      */
     private void doWorkLoop() {
         while (true) {
-            CrawlerTask task = null;
+            List<CrawlerTask> batch = new ArrayList<CrawlerTask>();
 
             try {
-                synchronized (syncRoot) {
-                    task = schedulerQueue.poll();
-                }
-                if (task != null) {
-                    if (!statisticsService.isCrawled(task.getUrl())) {
-                        taskQueue.enqueue(task);
-                        statisticsService.afterScheduling(task);
-                        log.debug("Scheduled crawling of the " + task.getUrl());
-                    } else {
-                        log.debug("Url " + task.getUrl() + " was already crawled");
-                    }
-                }
+                schedulerQueue.awaitTasks();
 
-                // Yielding context to another thread
-                Thread.sleep(1);
+                // Tasks should be either in the scheduler queue or in the task queue while checkpoint is stored
+                synchronized (processingSyncRoot) {
+                    schedulerQueue.drainTo(batch, batchSize);
+                    scheduleBatch(batch, statisticsService, taskQueue, log);
+                }
+            } catch (InterruptedException ex) {
+                log.info("Scheduler thread was interrupted");
+                return;
             } catch (Exception ex) {
-                log.error("Error processing task " + task == null ? "NOTASK" : task.getUrl() + " from the scheduler queue", ex);
+                log.error("Error processing " + batch.size() + " tasks from the scheduler queue", ex);
             }
         }
     }
+
+    /**
+     * Enqueues batch tasks which urls were not crawled yet. Is shared with {@link ShardedScheduler}.
+     * Duplicate urls are dropped by {@code checkAndSchedule}.
+     * @param batch
+     * @param statisticsService
+     * @param taskQueue
+     * @param log
+     * @throws TaskQueueException
+     */
+    static void scheduleBatch(List<CrawlerTask> batch, StatisticsService statisticsService, TaskQueue taskQueue, Logger log) throws TaskQueueException {
+        List<CrawlerTask> newTasks = statisticsService.checkAndSchedule(batch);
+        taskQueue.enqueueAll(newTasks);
+
+        log.debug("Scheduled crawling of " + newTasks.size() + " urls, " + (batch.size() - newTasks.size()) + " urls were already crawled");
+    }
 }
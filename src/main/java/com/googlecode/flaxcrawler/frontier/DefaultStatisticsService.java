@@ -3,41 +3,107 @@ package com.googlecode.flaxcrawler.frontier;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.EntityStore;
 import com.sleepycat.persist.PrimaryIndex;
 import com.sleepycat.persist.StoreConfig;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import com.googlecode.flaxcrawler.model.CrawlerTask;
 import com.googlecode.flaxcrawler.model.Page;
-import java.util.HashMap;
-import java.util.Map;
+import com.googlecode.flaxcrawler.utils.FingerprintStore;
+import com.googlecode.flaxcrawler.utils.ScalableBloomFilter;
+import com.googlecode.flaxcrawler.utils.StripedCounter;
+import com.googlecode.flaxcrawler.utils.UrlFingerprint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Default statistics service implementation. BerkleyDB is used to store statistics.
+ * Crawled urls are stored as 64-bit fingerprints in the {@link FingerprintStore} fronted by the in-memory
+ * {@link ScalableBloomFilter}, so most of the new urls are checked without accessing the disk.
+ * Fingerprints can be partitioned between several stores (see {@link UrlFingerprint#partition}) locked
+ * separately, so urls from different partitions can be checked in parallel.
+ * In durable mode statistics are restored from the last checkpoint. Checkpoint spills crawled urls to disk
+ * and stores the list of fingerprint runs, runs written after the last checkpoint are deleted on restore.
+ * Filter is stored with every checkpoint.
+ * Counters are updated without locks, so checkpoint stores a snapshot which may be a bit behind
+ * the crawled urls.
  * @author ameshkov
  */
 public class DefaultStatisticsService implements StatisticsService {
 
-    private final Object syncRoot = new Object();
+    private final static int CHECKPOINT_ID = 1;
+    private final static String URLS_FILTER_FILE = "urls.bloom";
+    private final static String URLS_DIR = "urls";
     private final Object indexSyncRoot = new Object();
     private Logger log = Logger.getLogger(this.getClass());
+    private File environmentDir;
     private Environment environment;
     private EntityStore statisticsStore;
-    private PrimaryIndex<String, UrlElement> urlsIndex;
-    private Map<String, DomainStatistics> statisticsMap = new HashMap<String, DomainStatistics>();
-    private long scheduled = 0;
-    private long downloaded = 0;
-    private long parsed = 0;
-    private long errors = 0;
+    private FingerprintStore[] urlsStores;
+    private PrimaryIndex<String, DomainStatisticsElement> domainsIndex;
+    private PrimaryIndex<Integer, StatisticsCheckpoint> checkpointIndex;
+    private boolean durable;
+    private long epoch = 1;
+    private ScalableBloomFilter urlsFilter;
+    private ConcurrentHashMap<String, DomainStatistics> statisticsMap = new ConcurrentHashMap<String, DomainStatistics>();
+    private final StripedCounter scheduled = new StripedCounter();
+    private final StripedCounter downloaded = new StripedCounter();
+    private final StripedCounter parsed = new StripedCounter();
+    private final StripedCounter errors = new StripedCounter();
 
     /**
      * Creates an instance of the {@code DefaultStatisticsService}
      * @param environmentFile
      */
     public DefaultStatisticsService(String environmentFile) throws DatabaseException {
+        this(environmentFile, false);
+    }
+
+    /**
+     * Creates an instance of the {@code DefaultStatisticsService}
+     * @param environmentFile
+     * @param durable If {@code true} - statistics are restored from the last checkpoint stored in {@code environmentFile}
+     */
+    public DefaultStatisticsService(String environmentFile, boolean durable) throws DatabaseException {
+        this(environmentFile, durable, ScalableBloomFilter.DEFAULT_FALSE_POSITIVE_RATE, ScalableBloomFilter.DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Creates an instance of the {@code DefaultStatisticsService}
+     * @param environmentFile
+     * @param durable If {@code true} - statistics are restored from the last checkpoint stored in {@code environmentFile}
+     * @param urlsFilterFalsePositiveRate False positive rate of the crawled urls filter
+     * @param urlsFilterMaxMemory Maximum memory (bytes) used by the crawled urls filter
+     */
+    public DefaultStatisticsService(String environmentFile, boolean durable, double urlsFilterFalsePositiveRate, long urlsFilterMaxMemory) throws DatabaseException {
+        this(environmentFile, durable, urlsFilterFalsePositiveRate, urlsFilterMaxMemory, 1);
+    }
+
+    /**
+     * Creates an instance of the {@code DefaultStatisticsService}
+     * @param environmentFile
+     * @param durable If {@code true} - statistics are restored from the last checkpoint stored in {@code environmentFile}
+     * @param urlsFilterFalsePositiveRate False positive rate of the crawled urls filter
+     * @param urlsFilterMaxMemory Maximum memory (bytes) used by the crawled urls filter
+     * @param urlsPartitions Count of crawled urls partitions. Ignored if statistics are restored from the checkpoint.
+     */
+    public DefaultStatisticsService(String environmentFile, boolean durable, double urlsFilterFalsePositiveRate, long urlsFilterMaxMemory, int urlsPartitions) throws DatabaseException {
         log.info("Initializing statistics storage...");
+        this.durable = durable;
 
         EnvironmentConfig environmentConfig = new EnvironmentConfig();
         StoreConfig storeConfig = new StoreConfig();
@@ -49,10 +115,10 @@ public class DefaultStatisticsService implements StatisticsService {
 
         storeConfig.setAllowCreate(true);
         storeConfig.setTransactional(false);
-        storeConfig.setTemporary(true);
+        storeConfig.setTemporary(!durable);
 
         File envFile = new File(environmentFile);
-        if (envFile.exists()) {
+        if (envFile.exists() && !durable) {
             log.info("Environment is already exists");
             try {
                 FileUtils.cleanDirectory(envFile);
@@ -64,103 +130,404 @@ public class DefaultStatisticsService implements StatisticsService {
         envFile.mkdirs();
 
         log.info("Environment file is " + envFile.getAbsolutePath());
+        environmentDir = envFile;
+        urlsFilter = new ScalableBloomFilter(ScalableBloomFilter.DEFAULT_INITIAL_CAPACITY, urlsFilterFalsePositiveRate, urlsFilterMaxMemory);
 
         environment = new Environment(envFile, environmentConfig);
         statisticsStore = new EntityStore(environment, "BerkleyQueueStore", storeConfig);
-        urlsIndex = statisticsStore.getPrimaryIndex(String.class, UrlElement.class);
+        domainsIndex = statisticsStore.getPrimaryIndex(String.class, DomainStatisticsElement.class);
+        checkpointIndex = statisticsStore.getPrimaryIndex(Integer.class, StatisticsCheckpoint.class);
+
+        if (durable) {
+            restore(urlsPartitions);
+        } else {
+            openUrlsStores(urlsPartitions, new ArrayList<String>());
+        }
+
         log.info("Environment successfully initialized");
     }
 
     /**
-     * Disposes statistics store
+     * Restores statistics from the last checkpoint
+     * @param urlsPartitions Count of crawled urls partitions if there's no checkpoint
+     * @throws DatabaseException
      */
-    public void dispose() {
-        synchronized (syncRoot) {
-            synchronized (indexSyncRoot) {
-                try {
-                    statisticsStore.close();
-                    environment.close();
+    private void restore(int urlsPartitions) throws DatabaseException {
+        StatisticsCheckpoint checkpoint = checkpointIndex.get(CHECKPOINT_ID);
+        long lastEpoch = checkpoint == null ? 0 : checkpoint.getEpoch();
+
+        // Urls added after the last checkpoint are not in the checkpoint runs and will be scheduled again
+        if (checkpoint == null) {
+            openUrlsStores(urlsPartitions, new ArrayList<String>());
+        } else {
+            openUrlsStores(checkpoint.getUrlsPartitions(), Arrays.asList(checkpoint.getUrlsRuns()));
+        }
+        epoch = lastEpoch + 1;
+        restoreUrlsFilter(lastEpoch);
+
+        if (checkpoint != null) {
+            scheduled.set(checkpoint.getScheduled());
+            downloaded.set(checkpoint.getDownloaded());
+            parsed.set(checkpoint.getParsed());
+            errors.set(checkpoint.getErrors());
+        }
 
-                    log.info("Environment closed successfully");
-                } catch (DatabaseException ex) {
-                    log.error("Error while closing environment", ex);
+        EntityCursor<DomainStatisticsElement> domainsCursor = domainsIndex.entities();
+        try {
+            for (DomainStatisticsElement element : domainsCursor) {
+                DomainStatistics domainStatistics = element.toDomainStatistics();
+                statisticsMap.put(domainStatistics.getDomainName(), domainStatistics);
+            }
+        } finally {
+            domainsCursor.close();
+        }
+
+        long crawledUrls = 0;
+        for (FingerprintStore urlsStore : urlsStores) {
+            crawledUrls += urlsStore.size();
+        }
+
+        log.info("Statistics restored from the checkpoint, " + statisticsMap.size() + " domains, "
+                + crawledUrls + " crawled urls");
+    }
+
+    /**
+     * Opens crawled urls stores. Every partition is stored in its own directory.
+     * @param partitions Count of partitions
+     * @param runNames Runs stored with the checkpoint ({@code partition/run})
+     */
+    private void openUrlsStores(int partitions, List<String> runNames) {
+        urlsStores = new FingerprintStore[partitions];
+
+        for (int i = 0; i < partitions; i++) {
+            File urlsDir = new File(new File(environmentDir, URLS_DIR), String.valueOf(i));
+
+            try {
+                // Memory is shared between partitions
+                urlsStores[i] = new FingerprintStore(urlsDir, Math.max(1, FingerprintStore.DEFAULT_MEMORY_CAPACITY / partitions),
+                        getPartitionRuns(runNames, i));
+            } catch (IOException ex) {
+                log.fatal("Error opening crawled urls store " + urlsDir, ex);
+                throw new RuntimeException("Error opening crawled urls store " + urlsDir);
+            }
+        }
+    }
+
+    /**
+     * Returns names of the partition runs
+     * @param runNames Runs of all partitions ({@code partition/run})
+     * @param partition
+     * @return
+     */
+    private List<String> getPartitionRuns(List<String> runNames, int partition) {
+        List<String> partitionRuns = new ArrayList<String>();
+        String prefix = partition + "/";
+
+        for (String runName : runNames) {
+            if (runName.startsWith(prefix)) {
+                partitionRuns.add(runName.substring(prefix.length()));
+            }
+        }
+
+        return partitionRuns;
+    }
+
+    /**
+     * Returns crawled urls store containing fingerprint. Store is also used as its lock.
+     * @param fingerprint
+     * @return
+     */
+    private FingerprintStore getUrlsStore(long fingerprint) {
+        return urlsStores[UrlFingerprint.partition(fingerprint, urlsStores.length)];
+    }
+
+    /**
+     * Loads crawled urls filter stored with the checkpoint. If it is missing or belongs to another checkpoint -
+     * filter is rebuilt from the urls store.
+     * @param lastEpoch
+     */
+    private void restoreUrlsFilter(long lastEpoch) {
+        File filterFile = new File(environmentDir, URLS_FILTER_FILE);
+
+        if (filterFile.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filterFile)));
+                try {
+                    if (in.readLong() == lastEpoch) {
+                        urlsFilter = ScalableBloomFilter.read(in);
+                        log.info("Crawled urls filter loaded, " + urlsFilter.getMemory() + " bytes");
+                        return;
+                    }
+                } finally {
+                    in.close();
                 }
+            } catch (IOException ex) {
+                log.warn("Error loading crawled urls filter", ex);
             }
         }
+
+        log.info("Rebuilding crawled urls filter from the store");
+        for (FingerprintStore urlsStore : urlsStores) {
+            urlsStore.addTo(urlsFilter);
+        }
     }
 
-    public boolean isCrawled(String url) {
+    /**
+     * Stores crawled urls filter. Filter is written to a temporary file first, so the previous one
+     * is not damaged if crawler fails while writing.
+     * @param lastEpoch
+     * @throws IOException
+     */
+    private void storeUrlsFilter(long lastEpoch) throws IOException {
+        File filterFile = new File(environmentDir, URLS_FILTER_FILE);
+        File tempFile = new File(environmentDir, URLS_FILTER_FILE + ".tmp");
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeLong(lastEpoch);
+            urlsFilter.write(out);
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(filterFile)) {
+            filterFile.delete();
+            if (!tempFile.renameTo(filterFile)) {
+                throw new IOException("Cannot rename " + tempFile + " to " + filterFile);
+            }
+        }
+    }
+
+    public void checkpoint() {
+        if (!durable) {
+            return;
+        }
+
         synchronized (indexSyncRoot) {
+            long lastEpoch = epoch++;
+            StatisticsCheckpoint checkpoint;
+            List<DomainStatisticsElement> domains = new ArrayList<DomainStatisticsElement>();
+            List<String> urlsRuns = new ArrayList<String>();
+
+            try {
+                for (int i = 0; i < urlsStores.length; i++) {
+                    synchronized (urlsStores[i]) {
+                        for (String runName : urlsStores[i].spill()) {
+                            urlsRuns.add(i + "/" + runName);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                log.error("Error while spilling crawled urls", ex);
+                return;
+            }
+
+            checkpoint = new StatisticsCheckpoint(CHECKPOINT_ID, lastEpoch, scheduled.sum(), downloaded.sum(), parsed.sum(),
+                    errors.sum(), urlsStores.length, urlsRuns.toArray(new String[urlsRuns.size()]));
+            for (DomainStatistics domainStatistics : statisticsMap.values()) {
+                domains.add(new DomainStatisticsElement(domainStatistics));
+            }
+
             try {
-                return urlsIndex.contains(url);
+                for (DomainStatisticsElement element : domains) {
+                    domainsIndex.put(element);
+                }
+                checkpointIndex.put(checkpoint);
+                environment.sync();
+                log.info("Statistics checkpoint has been saved, epoch " + lastEpoch);
             } catch (DatabaseException ex) {
-                log.warn("Error checking if url " + url + " is in berkley db index", ex);
-                return false;
+                log.error("Error while storing statistics checkpoint", ex);
+                return;
+            }
+            for (int i = 0; i < urlsStores.length; i++) {
+                synchronized (urlsStores[i]) {
+                    urlsStores[i].commit(getPartitionRuns(urlsRuns, i));
+                }
+            }
+
+            // Filter written with another epoch is rebuilt on restore
+            try {
+                storeUrlsFilter(lastEpoch);
+            } catch (IOException ex) {
+                log.error("Error while storing crawled urls filter", ex);
             }
         }
     }
 
-    public void afterScheduling(CrawlerTask task) {
+    /**
+     * Disposes statistics store
+     */
+    public void dispose() {
         synchronized (indexSyncRoot) {
             try {
-                urlsIndex.put(new UrlElement(task.getUrl()));
+                for (FingerprintStore urlsStore : urlsStores) {
+                    synchronized (urlsStore) {
+                        urlsStore.dispose();
+                    }
+                }
+
+                statisticsStore.close();
+                environment.close();
+
+                log.info("Environment closed successfully");
             } catch (DatabaseException ex) {
-                log.warn("Error inserting " + task.getUrl() + " in the berkley db index", ex);
+                log.error("Error while closing environment", ex);
+            }
+        }
+    }
+
+    public boolean isCrawled(String url) {
+        long fingerprint = UrlFingerprint.fingerprint(url);
+        if (!urlsFilter.mightContain(fingerprint)) {
+            return false;
+        }
+
+        FingerprintStore urlsStore = getUrlsStore(fingerprint);
+        synchronized (urlsStore) {
+            return urlsStore.contains(fingerprint);
+        }
+    }
+
+    public void afterScheduling(CrawlerTask task) {
+        long fingerprint = UrlFingerprint.fingerprint(task.getUrl());
+        FingerprintStore urlsStore = getUrlsStore(fingerprint);
+
+        synchronized (urlsStore) {
+            try {
+                urlsStore.add(fingerprint);
+                urlsFilter.add(fingerprint);
+            } catch (IOException ex) {
+                log.warn("Error inserting " + task.getUrl() + " in the crawled urls store", ex);
             }
         }
 
-        synchronized (syncRoot) {
+        updateDomainStatistics(task.getDomain(), 1, 0, 0, 0, 0);
+        scheduled.increment();
+    }
+
+    public List<CrawlerTask> checkAndSchedule(List<CrawlerTask> tasks) {
+        long[] fingerprints = new long[tasks.size()];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = UrlFingerprint.fingerprint(tasks.get(i).getUrl());
+        }
+
+        // Sorted fingerprints are looked up in the runs sequentially
+        long[] sorted = fingerprints.clone();
+        Arrays.sort(sorted);
+
+        // Fingerprints are bucketed by partition once, every bucket stays sorted
+        int partitions = urlsStores.length;
+        int[] bucketStarts = new int[partitions + 1];
+        int[] sortedPartitions = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sortedPartitions[i] = UrlFingerprint.partition(sorted[i], partitions);
+            bucketStarts[sortedPartitions[i] + 1]++;
+        }
+        for (int partition = 0; partition < partitions; partition++) {
+            bucketStarts[partition + 1] += bucketStarts[partition];
+        }
+
+        long[] buckets = new long[sorted.length];
+        int[] bucketEnds = bucketStarts.clone();
+        for (int i = 0; i < sorted.length; i++) {
+            buckets[bucketEnds[sortedPartitions[i]]++] = sorted[i];
+        }
+
+        Set<Long> added = new HashSet<Long>();
+
+        for (int partition = 0; partition < partitions; partition++) {
+            int start = bucketStarts[partition];
+            int end = bucketStarts[partition + 1];
+
+            if (start == end) {
+                // Partitions without urls from this batch are not locked
+                continue;
+            }
+
+            FingerprintStore urlsStore = urlsStores[partition];
+
+            synchronized (urlsStore) {
+                try {
+                    for (int i = start; i < end; i++) {
+                        long fingerprint = buckets[i];
+
+                        if (i > start && buckets[i - 1] == fingerprint) {
+                            continue;
+                        }
+
+                        if (!urlsFilter.mightContain(fingerprint)) {
+                            urlsStore.addNew(fingerprint);
+                        } else if (!urlsStore.add(fingerprint)) {
+                            continue;
+                        }
+
+                        urlsFilter.add(fingerprint);
+                        added.add(fingerprint);
+                    }
+                } catch (IOException ex) {
+                    log.warn("Error inserting urls in the crawled urls store", ex);
+                }
+            }
+        }
+
+        List<CrawlerTask> scheduledTasks = new ArrayList<CrawlerTask>(added.size());
+        for (int i = 0; i < fingerprints.length; i++) {
+            if (added.remove(fingerprints[i])) {
+                scheduledTasks.add(tasks.get(i));
+            }
+        }
+
+        for (CrawlerTask task : scheduledTasks) {
             updateDomainStatistics(task.getDomain(), 1, 0, 0, 0, 0);
-            scheduled++;
         }
+        scheduled.add(scheduledTasks.size());
+
+        return scheduledTasks;
     }
 
     public void afterDownloading(CrawlerTask task, Page page) {
-        synchronized (syncRoot) {
-            long errorsCount = page.getResponseCode() >= 400 ? 1 : 0;
-            long downloadedCount = errorsCount > 0 ? 0 : 1;
+        long errorsCount = page.getResponseCode() >= 400 ? 1 : 0;
+        long downloadedCount = errorsCount > 0 ? 0 : 1;
 
-            errors += errorsCount;
-            downloaded += downloadedCount;
+        errors.add(errorsCount);
+        downloaded.add(downloadedCount);
 
-            updateDomainStatistics(task.getDomain(), 0, downloadedCount, 0, errorsCount, page.getResponseCode());
-        }
+        updateDomainStatistics(task.getDomain(), 0, downloadedCount, 0, errorsCount, page.getResponseCode());
     }
 
     public void afterParsing(CrawlerTask task, Page page) {
-        synchronized (syncRoot) {
-            parsed++;
-            updateDomainStatistics(task.getDomain(), 0, 0, 1, 0, 0);
-        }
+        parsed.increment();
+        updateDomainStatistics(task.getDomain(), 0, 0, 1, 0, 0);
     }
 
     public long getScheduled() {
-        return scheduled;
+        return scheduled.sum();
     }
 
     public long getDownloaded() {
-        return downloaded;
+        return downloaded.sum();
     }
 
     public long getParsed() {
-        return parsed;
+        return parsed.sum();
     }
 
     public long getErrors() {
-        return errors;
+        return errors.sum();
     }
 
     public DomainStatistics getDomainStatistics(String domainName) {
-        synchronized (syncRoot) {
-            DomainStatistics domainStatistics = statisticsMap.get(domainName);
+        DomainStatistics domainStatistics = statisticsMap.get(domainName);
 
+        if (domainStatistics == null) {
+            DomainStatistics newStatistics = new DomainStatistics(domainName);
+            domainStatistics = statisticsMap.putIfAbsent(domainName, newStatistics);
             if (domainStatistics == null) {
-                domainStatistics = new DomainStatistics(domainName);
-                statisticsMap.put(domainName, domainStatistics);
+                domainStatistics = newStatistics;
             }
-
-            return domainStatistics;
         }
+
+        return domainStatistics;
     }
 
     /**
@@ -172,18 +539,21 @@ public class DefaultStatisticsService implements StatisticsService {
      * @param responseCode
      */
     private void updateDomainStatistics(String domainName, long schedulled, long downloaded, long parsed, long errors, int responseCode) {
-        synchronized (syncRoot) {
-            DomainStatistics domainStatistics = getDomainStatistics(domainName);
-
-            domainStatistics.setScheduled(domainStatistics.getScheduled() + schedulled);
-            domainStatistics.setDownloaded(domainStatistics.getDownloaded() + downloaded);
-            domainStatistics.setParsed(domainStatistics.getParsed() + parsed);
-            domainStatistics.setErrors(domainStatistics.getErrors() + errors);
-            domainStatistics.setLastTimeDownloaded(System.currentTimeMillis());
+        DomainStatistics domainStatistics = getDomainStatistics(domainName);
 
-            if (errors > 0) {
-                domainStatistics.addHttpError(responseCode);
-            }
+        if (schedulled > 0) {
+            domainStatistics.addScheduled(schedulled);
+        }
+        if (downloaded > 0) {
+            domainStatistics.addDownloaded(downloaded);
+        }
+        if (parsed > 0) {
+            domainStatistics.addParsed(parsed);
+        }
+        if (errors > 0) {
+            domainStatistics.addErrors(errors);
+            domainStatistics.addHttpError(responseCode);
         }
+        domainStatistics.setLastTimeDownloaded(System.currentTimeMillis());
     }
 }
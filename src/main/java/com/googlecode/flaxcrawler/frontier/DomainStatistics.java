@@ -2,20 +2,30 @@ package com.googlecode.flaxcrawler.frontier;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Represents domain statistics
+ * Represents domain statistics. Counters are updated without locks. Http errors are counted in a small array
+ * of counters (one for every code seen), it grows under lock when a new code is seen only.
  * @author ameshkov
  */
 public class DomainStatistics {
 
+    private final static HttpErrorCounter[] NO_HTTP_ERRORS = new HttpErrorCounter[0];
     private String domainName;
-    private long scheduled;
-    private long downloaded;
-    private long parsed;
-    private long errors;
-    private long lastTimeDownloaded;
-    private Map<Integer, Long> httpErrors = new HashMap<Integer, Long>();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong parsed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile long lastTimeDownloaded;
+    /**
+     * Time when the next request to the domain is allowed
+     */
+    private final AtomicLong nextFetchTime = new AtomicLong();
+    /**
+     * Counters of http errors, array is replaced (not changed) when a new code is added
+     */
+    private volatile HttpErrorCounter[] httpErrors = NO_HTTP_ERRORS;
 
     public DomainStatistics() {
     }
@@ -45,7 +55,7 @@ public class DomainStatistics {
      * @return
      */
     public long getScheduled() {
-        return scheduled;
+        return scheduled.get();
     }
 
     /**
@@ -53,7 +63,15 @@ public class DomainStatistics {
      * @param scheduled
      */
     void setScheduled(long scheduled) {
-        this.scheduled = scheduled;
+        this.scheduled.set(scheduled);
+    }
+
+    /**
+     * Adds to scheduled tasks count
+     * @param delta
+     */
+    void addScheduled(long delta) {
+        scheduled.addAndGet(delta);
     }
 
     /**
@@ -61,7 +79,7 @@ public class DomainStatistics {
      * @return
      */
     public long getDownloaded() {
-        return downloaded;
+        return downloaded.get();
     }
 
     /**
@@ -69,7 +87,15 @@ public class DomainStatistics {
      * @param downloaded
      */
     void setDownloaded(long downloaded) {
-        this.downloaded = downloaded;
+        this.downloaded.set(downloaded);
+    }
+
+    /**
+     * Adds to downloaded pages count
+     * @param delta
+     */
+    void addDownloaded(long delta) {
+        downloaded.addAndGet(delta);
     }
 
     /**
@@ -77,7 +103,7 @@ public class DomainStatistics {
      * @return
      */
     public long getParsed() {
-        return parsed;
+        return parsed.get();
     }
 
     /**
@@ -85,7 +111,15 @@ public class DomainStatistics {
      * @param parsed
      */
     void setParsed(long parsed) {
-        this.parsed = parsed;
+        this.parsed.set(parsed);
+    }
+
+    /**
+     * Adds to parsed pages count
+     * @param delta
+     */
+    void addParsed(long delta) {
+        parsed.addAndGet(delta);
     }
 
     /**
@@ -104,12 +138,32 @@ public class DomainStatistics {
         this.lastTimeDownloaded = lastTimeDownloaded;
     }
 
+    /**
+     * Reserves a fetch slot for the domain. Only one of the threads calling this method concurrently gets the slot,
+     * next slot is available after {@code politenessPeriod} ms.
+     * @param politenessPeriod Minimum time (ms) between two requests to the domain
+     * @return 0 if slot was reserved, otherwise time (ms) left until the next slot
+     */
+    public long reserveFetchSlot(long politenessPeriod) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long next = nextFetchTime.get();
+
+            if (next > now) {
+                return next - now;
+            }
+            if (nextFetchTime.compareAndSet(next, now + politenessPeriod)) {
+                return 0;
+            }
+        }
+    }
+
     /**
      * Returns errors count
      * @return
      */
     public long getErrors() {
-        return errors;
+        return errors.get();
     }
 
     /**
@@ -117,21 +171,63 @@ public class DomainStatistics {
      * @param errors
      */
     void setErrors(long errors) {
-        this.errors = errors;
+        this.errors.set(errors);
+    }
+
+    /**
+     * Adds to errors count
+     * @param delta
+     */
+    void addErrors(long delta) {
+        errors.addAndGet(delta);
     }
 
     /**
      * Adds http error
      * @param code
      */
-    synchronized void addHttpError(int code) {
-        Long count = httpErrors.get(code);
+    void addHttpError(int code) {
+        HttpErrorCounter counter = getHttpErrorCounter(code);
+
+        if (counter == null) {
+            counter = addHttpErrorCounter(code);
+        }
+        counter.count.incrementAndGet();
+    }
+
+    /**
+     * Returns copy of http errors counts
+     * @return
+     */
+    Map<Integer, Long> getHttpErrors() {
+        HttpErrorCounter[] counters = httpErrors;
+        Map<Integer, Long> counts = new HashMap<Integer, Long>();
+
+        for (HttpErrorCounter counter : counters) {
+            long count = counter.count.get();
+            if (count > 0) {
+                counts.put(counter.code, count);
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Sets http errors counts
+     * @param httpErrors
+     */
+    synchronized void setHttpErrors(Map<Integer, Long> httpErrors) {
+        HttpErrorCounter[] counters = new HttpErrorCounter[httpErrors.size()];
+        int i = 0;
 
-        if (count == null) {
-            httpErrors.put(code, new Long(1));
-        } else {
-            httpErrors.put(code, count + 1);
+        for (Map.Entry<Integer, Long> entry : httpErrors.entrySet()) {
+            counters[i] = new HttpErrorCounter(entry.getKey());
+            counters[i].count.set(entry.getValue());
+            i++;
         }
+
+        this.httpErrors = counters;
     }
 
     /**
@@ -140,8 +236,54 @@ public class DomainStatistics {
      * @return
      */
     public long getHttpErrors(int code) {
-        Long count = httpErrors.get(code);
+        HttpErrorCounter counter = getHttpErrorCounter(code);
+        return counter == null ? 0 : counter.count.get();
+    }
+
+    /**
+     * Returns counter of http errors with the specified code, {@code null} if there were no such errors
+     * @param code
+     * @return
+     */
+    private HttpErrorCounter getHttpErrorCounter(int code) {
+        for (HttpErrorCounter counter : httpErrors) {
+            if (counter.code == code) {
+                return counter;
+            }
+        }
 
-        return count == null ? 0 : count.longValue();
+        return null;
+    }
+
+    /**
+     * Adds counter of http errors with the specified code if it is not added yet
+     * @param code
+     * @return
+     */
+    private synchronized HttpErrorCounter addHttpErrorCounter(int code) {
+        HttpErrorCounter counter = getHttpErrorCounter(code);
+
+        if (counter == null) {
+            HttpErrorCounter[] counters = new HttpErrorCounter[httpErrors.length + 1];
+            System.arraycopy(httpErrors, 0, counters, 0, httpErrors.length);
+            counter = new HttpErrorCounter(code);
+            counters[httpErrors.length] = counter;
+            httpErrors = counters;
+        }
+
+        return counter;
+    }
+
+    /**
+     * Count of http errors with a single code
+     */
+    private static class HttpErrorCounter {
+
+        private final int code;
+        private final AtomicLong count = new AtomicLong();
+
+        public HttpErrorCounter(int code) {
+            this.code = code;
+        }
     }
 }
@@ -0,0 +1,51 @@
+package com.googlecode.flaxcrawler.frontier;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+import java.util.HashMap;
+
+/**
+ * Helper class for storing {@link DomainStatistics} in berkley db
+ */
+@Entity
+public class DomainStatisticsElement {
+
+    @PrimaryKey
+    private String domainName;
+    private long scheduled;
+    private long downloaded;
+    private long parsed;
+    private long errors;
+    private long lastTimeDownloaded;
+    private HashMap<Integer, Long> httpErrors;
+
+    public DomainStatisticsElement() {
+    }
+
+    public DomainStatisticsElement(DomainStatistics statistics) {
+        this.domainName = statistics.getDomainName();
+        this.scheduled = statistics.getScheduled();
+        this.downloaded = statistics.getDownloaded();
+        this.parsed = statistics.getParsed();
+        this.errors = statistics.getErrors();
+        this.lastTimeDownloaded = statistics.getLastTimeDownloaded();
+        this.httpErrors = new HashMap<Integer, Long>(statistics.getHttpErrors());
+    }
+
+    /**
+     * Creates {@link DomainStatistics} from the stored element
+     * @return
+     */
+    public DomainStatistics toDomainStatistics() {
+        DomainStatistics statistics = new DomainStatistics(domainName);
+
+        statistics.setScheduled(scheduled);
+        statistics.setDownloaded(downloaded);
+        statistics.setParsed(parsed);
+        statistics.setErrors(errors);
+        statistics.setLastTimeDownloaded(lastTimeDownloaded);
+        statistics.setHttpErrors(httpErrors);
+
+        return statistics;
+    }
+}
@@ -1,5 +1,6 @@
 package com.googlecode.flaxcrawler.frontier;
 
+import com.googlecode.flaxcrawler.concurrent.TaskQueueException;
 import com.googlecode.flaxcrawler.model.CrawlerTask;
 
 /**
@@ -12,4 +13,34 @@ public interface Scheduler {
      * @param url
      */
     void schedule(CrawlerTask crawlerTask);
+
+    /**
+     * Stores a consistent checkpoint of the task queue (including tasks waiting in the scheduler) and then
+     * a checkpoint of the statistics service. Scheduling is paused while checkpoint is stored.
+     * @throws TaskQueueException
+     */
+    void checkpoint() throws TaskQueueException;
+
+    /**
+     * Returns count of tasks waiting in the scheduler queue
+     * @return
+     */
+    int getQueueSize();
+
+    /**
+     * Returns total time (ms) threads have been waiting for free space in the scheduler queue
+     * @return
+     */
+    long getBackpressureTime();
+
+    /**
+     * Returns count of tasks dropped because the scheduler queue was full
+     * @return
+     */
+    long getDroppedCount();
+
+    /**
+     * Stops scheduler threads and disposes scheduler queue, tasks waiting in it are dropped
+     */
+    void dispose();
 }
@@ -0,0 +1,325 @@
+package com.googlecode.flaxcrawler.frontier;
+
+import com.googlecode.flaxcrawler.concurrent.MappedLogQueue;
+import com.googlecode.flaxcrawler.concurrent.Task;
+import com.googlecode.flaxcrawler.model.CrawlerTask;
+import com.googlecode.flaxcrawler.model.CrawlerTaskCodec;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded queue of tasks waiting for the scheduler. When the queue is full new tasks are handled
+ * according to {@link BackpressurePolicy}. Spilled tasks are stored in {@link MappedLogQueue} and
+ * read after the tasks kept in memory, so tasks order is not changed. If spilled tasks cannot be read - all of them
+ * are dropped (and counted as dropped).
+ */
+public class SchedulerQueue {
+
+    private final static int SPILL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private Logger log = Logger.getLogger(this.getClass());
+    private final LinkedList<CrawlerTask> tasks = new LinkedList<CrawlerTask>();
+    /**
+     * Count of tasks kept in memory by level, used by {@code DROP_LOWEST_PRIORITY} policy only
+     */
+    private final TreeMap<Integer, Integer> levelCounts = new TreeMap<Integer, Integer>();
+    /**
+     * j.u.c. lock is used instead of monitor, so blocked virtual threads do not pin their carrier threads
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final BackpressurePolicy policy;
+    private final String spillDirectory;
+    private MappedLogQueue spillQueue;
+    private volatile int size;
+    private volatile long backpressureTime;
+    private volatile long droppedCount;
+    private volatile long spilledCount;
+
+    /**
+     * Creates an unbounded queue
+     */
+    public SchedulerQueue() {
+        this(Integer.MAX_VALUE, BackpressurePolicy.BLOCK, null);
+    }
+
+    /**
+     * Creates an instance of the {@code SchedulerQueue}
+     * @param capacity Maximum count of tasks kept in memory
+     * @param policy What to do with new tasks when the queue is full
+     * @param spillDirectory Directory for spilled tasks, used by {@code SPILL} policy only
+     */
+    public SchedulerQueue(int capacity, BackpressurePolicy policy, String spillDirectory) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Adds task to the queue. With {@code BLOCK} policy waits until there's free space in the queue.
+     * @param task
+     * @throws InterruptedException
+     */
+    public void add(CrawlerTask task) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (tasks.size() >= capacity || hasSpilledTasks()) {
+                if (policy == BackpressurePolicy.DROP_LOWEST_PRIORITY) {
+                    if (!dropLowestPriority(task)) {
+                        return;
+                    }
+                } else if (policy == BackpressurePolicy.SPILL && spill(task)) {
+                    return;
+                } else {
+                    // BLOCK policy or task cannot be spilled
+                    long startTime = System.currentTimeMillis();
+                    while (tasks.size() >= capacity) {
+                        notFull.await();
+                    }
+                    backpressureTime += System.currentTimeMillis() - startTime;
+                }
+            }
+
+            push(task);
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until there are tasks in the queue
+     * @throws InterruptedException
+     */
+    public void awaitTasks() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes tasks from the queue and adds them to the {@code batch}
+     * @param batch
+     * @param maxCount Maximum count of tasks removed
+     * @return Count of tasks removed
+     */
+    public int drainTo(List<CrawlerTask> batch, int maxCount) {
+        lock.lock();
+        try {
+            int count = 0;
+
+            while (count < maxCount && !tasks.isEmpty()) {
+                batch.add(poll());
+                count++;
+            }
+
+            while (count < maxCount && hasSpilledTasks()) {
+                int spilledSize = spillQueue.size();
+                CrawlerTask task = (CrawlerTask) spillQueue.poll();
+
+                if (task != null) {
+                    batch.add(task);
+                    count++;
+                } else if (spillQueue.size() == spilledSize) {
+                    // Segment cannot be read (task that cannot be decoded is skipped), spilled tasks are lost
+                    log.error("Error reading spilled tasks, " + spilledSize + " tasks were dropped");
+                    droppedCount += spilledSize;
+                    disposeSpillQueue();
+                    break;
+                }
+            }
+
+            updateSize();
+            // Waking up threads waiting for free space
+            notFull.signalAll();
+
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns all tasks in the queue (including spilled) without removing them, so checkpoint can be stored.
+     * Spilled tasks are decoded from disk and stay spilled.
+     * @return
+     */
+    public List<CrawlerTask> getTasks() {
+        lock.lock();
+        try {
+            List<CrawlerTask> snapshot = new ArrayList<CrawlerTask>(tasks);
+
+            if (hasSpilledTasks()) {
+                for (Task task : spillQueue.snapshot()) {
+                    snapshot.add((CrawlerTask) task);
+                }
+            }
+
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all tasks from the queue and deletes spilled tasks. Threads waiting for free space are woken up.
+     */
+    public void dispose() {
+        lock.lock();
+        try {
+            tasks.clear();
+            levelCounts.clear();
+            disposeSpillQueue();
+            updateSize();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns count of tasks in the queue (including spilled)
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns total time (ms) threads have been waiting for free space in the queue
+     * @return
+     */
+    public long getBackpressureTime() {
+        return backpressureTime;
+    }
+
+    /**
+     * Returns count of tasks dropped by {@code DROP_LOWEST_PRIORITY} policy, or lost because spilled tasks
+     * could not be read
+     * @return
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns count of tasks spilled to disk by {@code SPILL} policy
+     * @return
+     */
+    public long getSpilledCount() {
+        return spilledCount;
+    }
+
+    private boolean hasSpilledTasks() {
+        return spillQueue != null && spillQueue.size() > 0;
+    }
+
+    /**
+     * Drops the deepest task
+     * @param task New task
+     * @return {@code true} if a queued task was dropped and the new one should be added
+     */
+    private boolean dropLowestPriority(CrawlerTask task) {
+        droppedCount++;
+
+        if (levelCounts.isEmpty() || task.getLevel() >= levelCounts.lastKey()) {
+            log.debug("Scheduler queue is full, task " + task.getUrl() + " was dropped");
+            return false;
+        }
+
+        // The deepest tasks are usually the latest ones
+        int maxLevel = levelCounts.lastKey();
+        ListIterator<CrawlerTask> iterator = tasks.listIterator(tasks.size());
+        while (iterator.hasPrevious()) {
+            CrawlerTask queuedTask = iterator.previous();
+            if (queuedTask.getLevel() == maxLevel) {
+                iterator.remove();
+                removeLevel(maxLevel);
+                log.debug("Scheduler queue is full, task " + queuedTask.getUrl() + " was dropped");
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes task to disk
+     * @param task
+     * @return {@code false} if task cannot be spilled
+     */
+    private boolean spill(CrawlerTask task) {
+        if (spillQueue == null) {
+            try {
+                MappedLogQueue queue = new MappedLogQueue(spillDirectory, SPILL_SEGMENT_SIZE);
+                queue.setCodec(new CrawlerTaskCodec());
+                spillQueue = queue;
+            } catch (IOException ex) {
+                log.error("Error creating scheduler spill queue in " + spillDirectory, ex);
+                return false;
+            }
+        }
+
+        spillQueue.add(task);
+        spilledCount++;
+        updateSize();
+        notEmpty.signalAll();
+
+        return true;
+    }
+
+    private void disposeSpillQueue() {
+        if (spillQueue != null) {
+            spillQueue.dispose();
+            spillQueue = null;
+        }
+    }
+
+    private void push(CrawlerTask task) {
+        tasks.add(task);
+
+        if (policy == BackpressurePolicy.DROP_LOWEST_PRIORITY) {
+            Integer count = levelCounts.get(task.getLevel());
+            levelCounts.put(task.getLevel(), count == null ? 1 : count + 1);
+        }
+
+        updateSize();
+    }
+
+    private CrawlerTask poll() {
+        CrawlerTask task = tasks.poll();
+
+        if (policy == BackpressurePolicy.DROP_LOWEST_PRIORITY) {
+            removeLevel(task.getLevel());
+        }
+
+        return task;
+    }
+
+    private void removeLevel(int level) {
+        Integer count = levelCounts.get(level);
+
+        if (count == null || count <= 1) {
+            levelCounts.remove(level);
+        } else {
+            levelCounts.put(level, count - 1);
+        }
+    }
+
+    private void updateSize() {
+        size = tasks.size() + (spillQueue == null ? 0 : spillQueue.size());
+    }
+}
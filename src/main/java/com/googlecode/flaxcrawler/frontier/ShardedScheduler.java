@@ -0,0 +1,206 @@
+package com.googlecode.flaxcrawler.frontier;
+
+import com.googlecode.flaxcrawler.concurrent.TaskQueue;
+import com.googlecode.flaxcrawler.concurrent.TaskQueueException;
+import com.googlecode.flaxcrawler.model.CrawlerTask;
+import com.googlecode.flaxcrawler.utils.UrlFingerprint;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Scheduler with several lanes, each one has its own bounded {@link SchedulerQueue} and worker thread. Urls are routed
+ * to lanes by fingerprint (see {@link UrlFingerprint#partition}), so with {@link DefaultStatisticsService} partitioned
+ * the same way lanes check crawled urls in parallel.
+ */
+public class ShardedScheduler implements Scheduler {
+
+    public final static int DEFAULT_LANE_CAPACITY = 10000;
+    private Logger log = Logger.getLogger(this.getClass());
+    private TaskQueue taskQueue;
+    private StatisticsService statisticsService;
+    private final Lane[] lanes;
+    private volatile int batchSize = DefaultScheduler.DEFAULT_BATCH_SIZE;
+
+    /**
+     * Creates an instance of the {@code ShardedScheduler}
+     * @param taskQueue
+     * @param statisticsService
+     * @param lanesCount Count of lanes (worker threads)
+     * @param laneCapacity Maximum count of tasks waiting in a lane, {@code schedule} blocks while the lane is full
+     */
+    public ShardedScheduler(TaskQueue taskQueue, StatisticsService statisticsService, int lanesCount, int laneCapacity) {
+        this(taskQueue, statisticsService, createLaneQueues(lanesCount, laneCapacity));
+    }
+
+    /**
+     * Creates an instance of the {@code ShardedScheduler}
+     * @param taskQueue
+     * @param statisticsService
+     * @param laneQueues Queues of the lanes (one for each lane)
+     */
+    public ShardedScheduler(TaskQueue taskQueue, StatisticsService statisticsService, SchedulerQueue[] laneQueues) {
+        this.taskQueue = taskQueue;
+        this.statisticsService = statisticsService;
+        this.lanes = new Lane[laneQueues.length];
+
+        for (int i = 0; i < laneQueues.length; i++) {
+            final Lane lane = new Lane(laneQueues[i]);
+            lanes[i] = lane;
+
+            lane.workerThread = new Thread(new Runnable() {
+
+                public void run() {
+                    doWorkLoop(lane);
+                }
+            }, "Scheduler-" + i);
+            lane.workerThread.setDaemon(true);
+            lane.workerThread.start();
+        }
+
+        log.info("Scheduler with " + lanes.length + " lanes was successfully initialized and started");
+    }
+
+    private static SchedulerQueue[] createLaneQueues(int lanesCount, int laneCapacity) {
+        SchedulerQueue[] laneQueues = new SchedulerQueue[lanesCount];
+        for (int i = 0; i < lanesCount; i++) {
+            laneQueues[i] = new SchedulerQueue(laneCapacity, BackpressurePolicy.BLOCK, null);
+        }
+        return laneQueues;
+    }
+
+    /**
+     * Returns maximum count of tasks processed by a lane in one batch
+     * @return
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets maximum count of tasks processed by a lane in one batch. By default - {@link DefaultScheduler#DEFAULT_BATCH_SIZE}.
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void schedule(CrawlerTask crawlerTask) {
+        long fingerprint = UrlFingerprint.fingerprint(crawlerTask.getUrl());
+        Lane lane = lanes[UrlFingerprint.partition(fingerprint, lanes.length)];
+
+        try {
+            lane.queue.add(crawlerTask);
+        } catch (InterruptedException ex) {
+            log.warn("Interrupted while scheduling " + crawlerTask.getUrl());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (Lane lane : lanes) {
+            size += lane.queue.size();
+        }
+        return size;
+    }
+
+    public long getBackpressureTime() {
+        long backpressureTime = 0;
+        for (Lane lane : lanes) {
+            backpressureTime += lane.queue.getBackpressureTime();
+        }
+        return backpressureTime;
+    }
+
+    public long getDroppedCount() {
+        long droppedCount = 0;
+        for (Lane lane : lanes) {
+            droppedCount += lane.queue.getDroppedCount();
+        }
+        return droppedCount;
+    }
+
+    public void dispose() {
+        for (Lane lane : lanes) {
+            lane.workerThread.interrupt();
+
+            synchronized (lane.processingSyncRoot) {
+                lane.queue.dispose();
+            }
+        }
+        log.info("Scheduler was disposed");
+    }
+
+    public void checkpoint() throws TaskQueueException {
+        checkpoint(0, new ArrayList<CrawlerTask>());
+    }
+
+    /**
+     * Pauses lanes starting with {@code laneIndex} one by one, and stores checkpoint when all lanes are paused
+     * @param laneIndex
+     * @param pending Tasks waiting in the paused lanes
+     * @throws TaskQueueException
+     */
+    private void checkpoint(int laneIndex, List<CrawlerTask> pending) throws TaskQueueException {
+        if (laneIndex < lanes.length) {
+            synchronized (lanes[laneIndex].processingSyncRoot) {
+                pending.addAll(lanes[laneIndex].queue.getTasks());
+                checkpoint(laneIndex + 1, pending);
+            }
+            return;
+        }
+
+        try {
+            // Task queue snapshot should be stored before crawled urls
+            taskQueue.checkpoint(pending).get();
+        } catch (Exception ex) {
+            log.error("Error storing task queue checkpoint", ex);
+            throw new TaskQueueException("Error storing task queue checkpoint", ex);
+        }
+
+        statisticsService.checkpoint();
+    }
+
+    /**
+     * Reads urls from the lane queue and adds them to the TaskQueue (if url was not crawled yet)
+     * @param lane
+     */
+    private void doWorkLoop(Lane lane) {
+        while (true) {
+            List<CrawlerTask> batch = new ArrayList<CrawlerTask>();
+
+            try {
+                lane.queue.awaitTasks();
+
+                // Tasks should be either in the lane queue or in the task queue while checkpoint is stored
+                synchronized (lane.processingSyncRoot) {
+                    lane.queue.drainTo(batch, batchSize);
+                    DefaultScheduler.scheduleBatch(batch, statisticsService, taskQueue, log);
+                }
+            } catch (InterruptedException ex) {
+                log.info("Scheduler thread was interrupted");
+                return;
+            } catch (Exception ex) {
+                log.error("Error processing " + batch.size() + " tasks from the scheduler queue", ex);
+            }
+        }
+    }
+
+    /**
+     * Scheduler lane
+     */
+    private static class Lane {
+
+        private final SchedulerQueue queue;
+        /**
+         * Held while tasks are moved from the lane queue to the task queue
+         */
+        private final Object processingSyncRoot = new Object();
+        private Thread workerThread;
+
+        public Lane(SchedulerQueue queue) {
+            this.queue = queue;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.googlecode.flaxcrawler.frontier;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * Helper class for storing statistics checkpoint in berkley db
+ */
+@Entity
+public class StatisticsCheckpoint {
+
+    @PrimaryKey
+    private int id;
+    private long epoch;
+    private long scheduled;
+    private long downloaded;
+    private long parsed;
+    private long errors;
+    private int urlsPartitions;
+    private String[] urlsRuns;
+
+    public StatisticsCheckpoint() {
+    }
+
+    public StatisticsCheckpoint(int id, long epoch, long scheduled, long downloaded, long parsed, long errors, int urlsPartitions, String[] urlsRuns) {
+        this.id = id;
+        this.epoch = epoch;
+        this.scheduled = scheduled;
+        this.downloaded = downloaded;
+        this.parsed = parsed;
+        this.errors = errors;
+        this.urlsPartitions = urlsPartitions;
+        this.urlsRuns = urlsRuns;
+    }
+
+    /**
+     * Returns last epoch included to the checkpoint
+     * @return
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns count of scheduled tasks
+     * @return
+     */
+    public long getScheduled() {
+        return scheduled;
+    }
+
+    /**
+     * Returns count of downloaded pages
+     * @return
+     */
+    public long getDownloaded() {
+        return downloaded;
+    }
+
+    /**
+     * Returns count of parsed pages
+     * @return
+     */
+    public long getParsed() {
+        return parsed;
+    }
+
+    /**
+     * Returns count of errors
+     * @return
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns count of crawled urls partitions
+     * @return
+     */
+    public int getUrlsPartitions() {
+        return urlsPartitions;
+    }
+
+    /**
+     * Returns names of the crawled urls store runs ({@code partition/run})
+     * @return
+     */
+    public String[] getUrlsRuns() {
+        return urlsRuns;
+    }
+}
@@ -2,6 +2,7 @@ package com.googlecode.flaxcrawler.frontier;
 
 import com.googlecode.flaxcrawler.model.CrawlerTask;
 import com.googlecode.flaxcrawler.model.Page;
+import java.util.List;
 
 /**
  * Service for saving crawler statistics. Also saves parsed documents urls.
@@ -21,6 +22,14 @@ public interface StatisticsService {
      */
     void afterScheduling(CrawlerTask task);
 
+    /**
+     * Checks tasks urls and marks not crawled ones as crawled in one pass. Statistics are updated
+     * for the returned tasks the same way {@code afterScheduling} does.
+     * @param tasks
+     * @return Tasks which urls were not crawled yet (in the original order, without duplicates)
+     */
+    List<CrawlerTask> checkAndSchedule(List<CrawlerTask> tasks);
+
     /**
      * Method called after (@code task} has been downloaded
      * @param task
@@ -66,6 +75,12 @@ public interface StatisticsService {
      */
     long getErrors();
 
+    /**
+     * Stores statistics and crawled urls, so they can be restored after restart.
+     * Urls added after the last checkpoint are not restored. Does nothing if service is not durable.
+     */
+    void checkpoint();
+
     /**
      * Disposes statistics service
      */
@@ -12,6 +12,7 @@ import com.googlecode.flaxcrawler.utils.UrlUtils;
 @Persistent
 public class CrawlerTask extends BaseTask {
 
+    private final static long serialVersionUID = 3337340151466048644L;
     private String url;
     private String domain;
     private int level;
@@ -38,9 +39,21 @@ public class CrawlerTask extends BaseTask {
         this.timeAdded = new Date();
     }
 
+    /**
+     * Creates task decoded by {@link CrawlerTaskCodec}. Domain is derived from the url when it is requested.
+     * @param url
+     * @param level
+     * @param timeAdded
+     */
+    CrawlerTask(String url, int level, Date timeAdded) {
+        this.url = url;
+        this.level = level;
+        this.timeAdded = timeAdded;
+    }
+
     @Override
     public String getSequenceName() {
-        return domain;
+        return getDomain();
     }
 
     /**
@@ -64,6 +77,10 @@ public class CrawlerTask extends BaseTask {
      * @return
      */
     public String getDomain() {
+        if (domain == null && url != null) {
+            domain = UrlUtils.getDomainName(url);
+        }
+
         return domain;
     }
 
@@ -0,0 +1,225 @@
+package com.googlecode.flaxcrawler.model;
+
+import com.googlecode.flaxcrawler.concurrent.Task;
+import com.googlecode.flaxcrawler.concurrent.TaskCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Compact {@link TaskCodec} for {@link CrawlerTask}. Level and times (epoch millis) are written as varints,
+ * domain is not written at all - it is derived from the url. Custom data is written with the first
+ * {@link CustomDataSerializer} supporting it, {@code String} and {@code Serializable} custom data is supported by default.
+ * Serializers should be added in the same order when decoding tasks stored before.
+ */
+public class CrawlerTaskCodec implements TaskCodec {
+
+    private final static int TIME_ADDED = 1;
+    private final static int TIME_DOWNLOADED = 2;
+    private final static int TIME_PARSED = 4;
+    private final static int NULL_DATA = 0;
+    private final static int STRING_DATA = 1;
+    private final static int SERIALIZABLE_DATA = 2;
+    private final static int FIRST_SERIALIZER_ID = 16;
+    private List<CustomDataSerializer> serializers = new ArrayList<CustomDataSerializer>();
+
+    /**
+     * Adds custom data serializer. Serializers are checked in the order they were added, before default ones.
+     * @param serializer
+     */
+    public void addSerializer(CustomDataSerializer serializer) {
+        serializers.add(serializer);
+    }
+
+    public byte[] encode(Task task) throws IOException {
+        if (!(task instanceof CrawlerTask)) {
+            throw new IOException("Task isn't instance of CrawlerTask");
+        }
+
+        CrawlerTask crawlerTask = (CrawlerTask) task;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(crawlerTask.getUrl().length() + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        int flags = (crawlerTask.getTimeAdded() == null ? 0 : TIME_ADDED)
+                | (crawlerTask.getTimeDownloaded() == null ? 0 : TIME_DOWNLOADED)
+                | (crawlerTask.getTimeParsed() == null ? 0 : TIME_PARSED);
+
+        out.writeByte(flags);
+        writeBytes(out, crawlerTask.getUrl().getBytes("UTF-8"));
+        writeVarLong(out, crawlerTask.getLevel());
+        writeTime(out, crawlerTask.getTimeAdded());
+        writeTime(out, crawlerTask.getTimeDownloaded());
+        writeTime(out, crawlerTask.getTimeParsed());
+        writeCustomData(out, crawlerTask.getCustomData());
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    public Task decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        int flags = in.readByte();
+        String url = new String(readBytes(in), "UTF-8");
+        int level = (int) readVarLong(in);
+        Date timeAdded = (flags & TIME_ADDED) == 0 ? null : new Date(readVarLong(in));
+
+        CrawlerTask task = new CrawlerTask(url, level, timeAdded);
+
+        if ((flags & TIME_DOWNLOADED) != 0) {
+            task.setTimeDownloaded(new Date(readVarLong(in)));
+        }
+        if ((flags & TIME_PARSED) != 0) {
+            task.setTimeParsed(new Date(readVarLong(in)));
+        }
+        task.setCustomData(readCustomData(in));
+
+        return task;
+    }
+
+    /**
+     * Writes custom data preceded by its type
+     * @param out
+     * @param customData
+     * @throws IOException
+     */
+    private void writeCustomData(DataOutputStream out, Object customData) throws IOException {
+        if (customData == null) {
+            writeVarLong(out, NULL_DATA);
+            return;
+        }
+
+        for (int i = 0; i < serializers.size(); i++) {
+            if (serializers.get(i).canSerialize(customData)) {
+                writeVarLong(out, FIRST_SERIALIZER_ID + i);
+                serializers.get(i).write(customData, out);
+                return;
+            }
+        }
+
+        if (customData instanceof String) {
+            writeVarLong(out, STRING_DATA);
+            writeBytes(out, ((String) customData).getBytes("UTF-8"));
+        } else {
+            writeVarLong(out, SERIALIZABLE_DATA);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+            objectOut.writeObject(customData);
+            objectOut.close();
+            writeBytes(out, bytes.toByteArray());
+        }
+    }
+
+    /**
+     * Reads custom data written with {@code writeCustomData}
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private Object readCustomData(DataInputStream in) throws IOException {
+        int type = (int) readVarLong(in);
+
+        switch (type) {
+            case NULL_DATA:
+                return null;
+            case STRING_DATA:
+                return new String(readBytes(in), "UTF-8");
+            case SERIALIZABLE_DATA:
+                ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+                try {
+                    return objectIn.readObject();
+                } catch (ClassNotFoundException ex) {
+                    IOException exception = new IOException("Cannot decode custom data");
+                    exception.initCause(ex);
+                    throw exception;
+                }
+            default:
+                int index = type - FIRST_SERIALIZER_ID;
+                if (index < 0 || index >= serializers.size()) {
+                    throw new IOException("Unknown custom data serializer " + type);
+                }
+                return serializers.get(index).read(in);
+        }
+    }
+
+    /**
+     * Writes time as epoch millis if it is not {@code null}
+     * @param out
+     * @param time
+     * @throws IOException
+     */
+    private static void writeTime(DataOutput out, Date time) throws IOException {
+        if (time != null) {
+            writeVarLong(out, time.getTime());
+        }
+    }
+
+    /**
+     * Writes bytes preceded by their count
+     * @param out
+     * @param data
+     * @throws IOException
+     */
+    private static void writeBytes(DataOutput out, byte[] data) throws IOException {
+        writeVarLong(out, data.length);
+        out.write(data);
+    }
+
+    /**
+     * Reads bytes written with {@code writeBytes}
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] data = new byte[(int) readVarLong(in)];
+        in.readFully(data);
+        return data;
+    }
+
+    /**
+     * Writes non-negative value using 7 bits per byte
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads value written with {@code writeVarLong}
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            if (shift > 63) {
+                throw new IOException("Malformed varint");
+            }
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+}
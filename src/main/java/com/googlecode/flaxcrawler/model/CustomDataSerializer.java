@@ -0,0 +1,34 @@
+package com.googlecode.flaxcrawler.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Serializes {@link CrawlerTask} custom data for the {@link CrawlerTaskCodec}
+ */
+public interface CustomDataSerializer {
+
+    /**
+     * Returns {@code true} if serializer supports specified custom data
+     * @param customData
+     * @return
+     */
+    boolean canSerialize(Object customData);
+
+    /**
+     * Writes custom data
+     * @param customData
+     * @param out
+     * @throws IOException
+     */
+    void write(Object customData, DataOutput out) throws IOException;
+
+    /**
+     * Reads custom data written with {@code write}
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    Object read(DataInput in) throws IOException;
+}
@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import com.googlecode.flaxcrawler.parse.URLNormalizer;
+import com.googlecode.flaxcrawler.utils.BufferPool;
 import com.googlecode.flaxcrawler.utils.UrlUtils;
 
 /**
@@ -23,6 +24,13 @@ public class Page {
     private String charset;
     private long responseTime;
     private byte[] content;
+    private int contentLength;
+    private BufferPool bufferPool;
+    private boolean truncated;
+    /**
+     * {@code true} if pooled content was returned to the pool
+     */
+    private boolean released;
     private List<URL> links;
     private String title;
     private Map<String, Object> parseResults = new HashMap<String, Object>();
@@ -37,12 +45,30 @@ public class Page {
      * @param content Page content
      */
     public Page(URL url, Map<String, String> headers, int responseCode, String charset, long responseTime, byte[] content) {
+        this(url, headers, responseCode, charset, responseTime, content, content == null ? 0 : content.length, null);
+    }
+
+    /**
+     * Creates an instance of the Page class with content in a pooled buffer. Buffer is returned to the pool
+     * by {@code release}.
+     * @param url Page url
+     * @param headers Response headers map
+     * @param responseCode Reposne code
+     * @param charset Page encoding
+     * @param responseTime Reponse time
+     * @param content Buffer with page content, can be longer than content
+     * @param contentLength Content length
+     * @param bufferPool Pool content buffer was taken from, {@code null} if buffer is not pooled
+     */
+    public Page(URL url, Map<String, String> headers, int responseCode, String charset, long responseTime, byte[] content, int contentLength, BufferPool bufferPool) {
         this.url = url;
         this.headers = headers;
         this.responseCode = responseCode;
         this.charset = charset;
         this.responseTime = responseTime;
         this.content = content;
+        this.contentLength = contentLength;
+        this.bufferPool = bufferPool;
     }
 
     /**
@@ -111,13 +137,88 @@ public class Page {
     }
 
     /**
-     * Returns page content
+     * Returns page content. If content is in a pooled buffer - page switches to a copy of it, so returned array
+     * can be kept after the page is released. Pooled buffer is not returned to the pool (buffers returned
+     * by {@code getContentBuffer} earlier stay valid), it is collected instead. Use {@code getContentBuffer}
+     * to avoid copying.
      * @return
+     * @throws IllegalStateException If pooled content was released
      */
     public byte[] getContent() {
+        checkReleased();
+        if (bufferPool != null && content != null) {
+            byte[] copy = new byte[contentLength];
+            System.arraycopy(content, 0, copy, 0, contentLength);
+            content = copy;
+            bufferPool = null;
+        }
         return content;
     }
 
+    /**
+     * Returns page content without copying, or {@code null} if there's no content. Buffer is valid until
+     * the page is released. Once {@code getContent} is called page content is not pooled anymore: buffers
+     * returned after that wrap the copy and {@code release} does not return anything to the pool.
+     * @return
+     * @throws IllegalStateException If pooled content was released
+     */
+    public ByteBuffer getContentBuffer() {
+        checkReleased();
+        return content == null ? null : ByteBuffer.wrap(content, 0, contentLength);
+    }
+
+    /**
+     * Returns content length
+     * @return
+     */
+    public int getContentLength() {
+        return content == null ? 0 : contentLength;
+    }
+
+    /**
+     * Returns pooled content buffer to the pool, content is not available after that (content accessors throw
+     * {@link IllegalStateException}). Is called by the crawler controller when page is processed. Does nothing
+     * if content is not pooled (or was copied by {@code getContent}).
+     */
+    public void release() {
+        if (bufferPool != null && content != null) {
+            bufferPool.release(content);
+            content = null;
+            released = true;
+        }
+        bufferPool = null;
+    }
+
+    /**
+     * Returns {@code true} if pooled content was returned to the pool
+     * @return
+     */
+    public boolean isReleased() {
+        return released;
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("Content of " + url + " was released, page should not be kept after it is processed");
+        }
+    }
+
+    /**
+     * Returns {@code true} if content was cut at the downloader's maximum content length
+     * @return
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Sets if content was cut at the downloader's maximum content length
+     * @param truncated
+     */
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
     /**
      * Location URL if request was redirected. Otherwise returns {@code null}
      * @return
@@ -156,16 +257,18 @@ public class Page {
     /**
      * Returns page content using specified page encoding or UTF-8 if nothing specified
      * @return
+     * @throws IllegalStateException If pooled content was released
      */
     public String getContentString() {
+        checkReleased();
         try {
             return Charset.forName(charset).newDecoder().
                     onMalformedInput(CodingErrorAction.REPLACE).
                     onUnmappableCharacter(CodingErrorAction.REPLACE).
-                    decode(ByteBuffer.wrap(content)).toString();
+                    decode(ByteBuffer.wrap(content, 0, contentLength)).toString();
         } catch (Exception ex) {
             // Ignoring error
-            return new String(content);
+            return new String(content, 0, contentLength);
         }
     }
 
@@ -0,0 +1,106 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream returning not more than {@code limit} bytes of the underlying stream. If there are more bytes
+ * left - stream is marked as truncated.
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+    private final long limit;
+    private long count;
+    private boolean truncated;
+
+    /**
+     * Creates an instance of the {@code BoundedInputStream}
+     * @param in Underlying stream
+     * @param limit Maximum count of bytes read, 0 means there's no limit
+     */
+    public BoundedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (isLimitReached()) {
+            return -1;
+        }
+
+        int b = super.read();
+        if (b >= 0) {
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (isLimitReached()) {
+            return -1;
+        }
+
+        int count = super.read(b, off, limit > 0 ? (int) Math.min(len, limit - this.count) : len);
+        if (count > 0) {
+            this.count += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(limit > 0 ? Math.min(n, limit - count) : n);
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Returns count of bytes read
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns {@code true} if stream was cut at the limit
+     * @return
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Marks stream as truncated (e.g. if content decoded from this stream was cut)
+     * @param truncated
+     */
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    /**
+     * Checks if limit is reached. If it is - probes underlying stream for the bytes left.
+     * @return
+     * @throws IOException
+     */
+    private boolean isLimitReached() throws IOException {
+        if (limit <= 0 || count < limit) {
+            return false;
+        }
+        if (!truncated && super.read() >= 0) {
+            truncated = true;
+        }
+        return true;
+    }
+}
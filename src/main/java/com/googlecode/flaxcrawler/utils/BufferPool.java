@@ -0,0 +1,141 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays grouped by size classes (powers of two from {@code minBufferSize} to {@code maxBufferSize}).
+ * Acquired array is at least of the requested size. Arrays bigger than {@code maxBufferSize} are not pooled.
+ * Every class keeps not more than {@code maxBytesPerClass} bytes of free arrays. Is thread-safe and does not take locks.
+ */
+public class BufferPool {
+
+    public final static int DEFAULT_MIN_BUFFER_SIZE = 4096;
+    public final static int DEFAULT_MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    public final static long DEFAULT_MAX_BYTES_PER_CLASS = 16 * 1024 * 1024;
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private final ConcurrentLinkedQueue<byte[]>[] freeBuffers;
+    private final AtomicInteger[] freeCounts;
+    private final int[] maxFreeCounts;
+    private final AtomicLong buffersAllocated = new AtomicLong();
+    private final AtomicLong buffersReused = new AtomicLong();
+
+    /**
+     * Creates pool with default parameters
+     */
+    public BufferPool() {
+        this(DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_BYTES_PER_CLASS);
+    }
+
+    /**
+     * Creates an instance of the {@code BufferPool}
+     * @param minBufferSize Size of the smallest class, is rounded up to a power of two
+     * @param maxBufferSize Size of the biggest class, is rounded up to a power of two
+     * @param maxBytesPerClass Maximum size (bytes) of free arrays of a single class
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minBufferSize, int maxBufferSize, long maxBytesPerClass) {
+        this.minBufferSize = roundUp(minBufferSize);
+        this.maxBufferSize = Math.max(this.minBufferSize, roundUp(maxBufferSize));
+
+        int classesCount = Integer.numberOfTrailingZeros(this.maxBufferSize) - Integer.numberOfTrailingZeros(this.minBufferSize) + 1;
+        this.freeBuffers = new ConcurrentLinkedQueue[classesCount];
+        this.freeCounts = new AtomicInteger[classesCount];
+        this.maxFreeCounts = new int[classesCount];
+
+        for (int i = 0; i < classesCount; i++) {
+            freeBuffers[i] = new ConcurrentLinkedQueue<byte[]>();
+            freeCounts[i] = new AtomicInteger();
+            // At least a couple of arrays of every class are kept
+            maxFreeCounts[i] = (int) Math.max(2, maxBytesPerClass / (this.minBufferSize << i));
+        }
+    }
+
+    /**
+     * Returns size of the biggest pooled array
+     * @return
+     */
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * Returns array of at least {@code size} bytes
+     * @param size
+     * @return
+     */
+    public byte[] acquire(int size) {
+        int index = getClassIndex(size);
+        if (index < 0) {
+            buffersAllocated.incrementAndGet();
+            return new byte[size];
+        }
+
+        byte[] buffer = freeBuffers[index].poll();
+        if (buffer != null) {
+            freeCounts[index].decrementAndGet();
+            buffersReused.incrementAndGet();
+            return buffer;
+        }
+
+        buffersAllocated.incrementAndGet();
+        return new byte[minBufferSize << index];
+    }
+
+    /**
+     * Returns array to the pool. Array should not be used after that.
+     * @param buffer
+     */
+    public void release(byte[] buffer) {
+        int index = getClassIndex(buffer.length);
+        if (index < 0 || (minBufferSize << index) != buffer.length) {
+            // Array was not acquired from the pool
+            return;
+        }
+
+        if (freeCounts[index].incrementAndGet() > maxFreeCounts[index]) {
+            // There are enough free arrays of this class
+            freeCounts[index].decrementAndGet();
+            return;
+        }
+        freeBuffers[index].offer(buffer);
+    }
+
+    /**
+     * Returns count of arrays allocated by the pool
+     * @return
+     */
+    public long getBuffersAllocated() {
+        return buffersAllocated.get();
+    }
+
+    /**
+     * Returns count of arrays taken from the pool
+     * @return
+     */
+    public long getBuffersReused() {
+        return buffersReused.get();
+    }
+
+    /**
+     * Returns index of the smallest class for arrays of {@code size} bytes, or -1 if they are not pooled
+     * @param size
+     * @return
+     */
+    private int getClassIndex(int size) {
+        if (size > maxBufferSize) {
+            return -1;
+        }
+        if (size <= minBufferSize) {
+            return 0;
+        }
+        return Integer.numberOfTrailingZeros(roundUp(size)) - Integer.numberOfTrailingZeros(minBufferSize);
+    }
+
+    private static int roundUp(int size) {
+        int highestOneBit = Integer.highestOneBit(Math.max(1, size));
+        return highestOneBit == size ? size : highestOneBit << 1;
+    }
+}
@@ -0,0 +1,476 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * Set of 64-bit fingerprints (see {@link UrlFingerprint}). New fingerprints are added to the in-memory
+ * open-addressing table, when it is full they are sorted and spilled to the immutable run file.
+ * Runs are looked up with binary search through the sparse in-memory index, so a lookup touches a single page
+ * of every run. Runs of the similar size are merged, count of runs is logarithmic. Run is unmapped before
+ * it is deleted, call {@code dispose} to unmap all runs. Store is not thread-safe.
+ */
+public class FingerprintStore {
+
+    public final static int DEFAULT_MEMORY_CAPACITY = 1 << 20;
+    private final static String RUN_EXTENSION = ".run";
+    /**
+     * Every {@code INDEX_INTERVAL}-th fingerprint of the run is kept in memory
+     */
+    private final static int INDEX_INTERVAL = 512;
+    /**
+     * Runs are merged if the older one is less than {@code MERGE_RATIO} times larger
+     */
+    private final static int MERGE_RATIO = 2;
+    private Logger log = Logger.getLogger(this.getClass());
+    private File directory;
+    private int memoryCapacity;
+    private long[] table;
+    private int tableCount;
+    private boolean containsZero;
+    private List<Run> runs = new ArrayList<Run>();
+    private long nextRunId;
+    private long size;
+    /**
+     * Runs referenced by the last committed checkpoint
+     */
+    private Set<String> committedRuns = new HashSet<String>();
+    /**
+     * Merged runs which cannot be deleted until the next checkpoint is committed
+     */
+    private List<File> obsoleteRuns = new ArrayList<File>();
+
+    /**
+     * Creates an empty store. Run files found in {@code directory} are deleted.
+     * @param directory
+     * @param memoryCapacity Count of fingerprints kept in memory before spilling to disk
+     * @throws IOException
+     */
+    public FingerprintStore(File directory, int memoryCapacity) throws IOException {
+        this(directory, memoryCapacity, new ArrayList<String>());
+    }
+
+    /**
+     * Creates store containing specified runs. Other run files found in {@code directory} are deleted.
+     * @param directory
+     * @param memoryCapacity Count of fingerprints kept in memory before spilling to disk
+     * @param runNames Names of runs returned by {@code spill}
+     * @throws IOException
+     */
+    public FingerprintStore(File directory, int memoryCapacity, Collection<String> runNames) throws IOException {
+        this.directory = directory;
+        this.memoryCapacity = memoryCapacity;
+        // Load factor of the table is at most 0.5
+        this.table = new long[Integer.highestOneBit(Math.max(memoryCapacity, 1) * 2 - 1) * 2];
+        directory.mkdirs();
+
+        File[] files = directory.listFiles();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(RUN_EXTENSION)) {
+                continue;
+            }
+            try {
+                nextRunId = Math.max(nextRunId, Long.parseLong(name.substring(0, name.length() - RUN_EXTENSION.length())) + 1);
+            } catch (NumberFormatException ex) {
+                // Not a run file
+                continue;
+            }
+            if (!runNames.contains(name)) {
+                deleteFile(file);
+            }
+        }
+
+        for (String runName : runNames) {
+            Run run = new Run(new File(directory, runName));
+            runs.add(run);
+            size += run.count;
+        }
+        committedRuns.addAll(runNames);
+
+        log.info("Fingerprint store opened, " + runs.size() + " runs, " + size + " fingerprints");
+    }
+
+    /**
+     * Returns count of fingerprints in the store
+     * @return
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns {@code true} if store contains fingerprint
+     * @param fingerprint
+     * @return
+     */
+    public boolean contains(long fingerprint) {
+        if (containsInMemory(fingerprint)) {
+            return true;
+        }
+
+        // Newer runs are smaller, they are checked first
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            if (runs.get(i).contains(fingerprint)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds fingerprint to the store
+     * @param fingerprint
+     * @return {@code false} if store already contains fingerprint
+     * @throws IOException
+     */
+    public boolean add(long fingerprint) throws IOException {
+        if (contains(fingerprint)) {
+            return false;
+        }
+
+        addNew(fingerprint);
+        return true;
+    }
+
+    /**
+     * Adds fingerprint which is known to be absent (for instance, checked with {@link ScalableBloomFilter})
+     * without looking it up
+     * @param fingerprint
+     * @throws IOException
+     */
+    public void addNew(long fingerprint) throws IOException {
+        if (fingerprint == 0) {
+            containsZero = true;
+        } else {
+            int mask = table.length - 1;
+            int index = mix(fingerprint) & mask;
+            while (table[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            table[index] = fingerprint;
+        }
+
+        tableCount++;
+        size++;
+
+        if (tableCount >= memoryCapacity) {
+            spillTable();
+        }
+    }
+
+    /**
+     * Spills in-memory fingerprints to disk
+     * @return Names of the runs containing all fingerprints of the store
+     * @throws IOException
+     */
+    public List<String> spill() throws IOException {
+        if (tableCount > 0) {
+            spillTable();
+        }
+
+        List<String> runNames = new ArrayList<String>();
+        for (Run run : runs) {
+            runNames.add(run.file.getName());
+        }
+        return runNames;
+    }
+
+    /**
+     * Marks runs as committed (referenced by the checkpoint) and deletes runs merged before
+     * @param runNames Names of runs returned by {@code spill}
+     */
+    public void commit(Collection<String> runNames) {
+        committedRuns.clear();
+        committedRuns.addAll(runNames);
+
+        for (File file : obsoleteRuns) {
+            deleteFile(file);
+        }
+        obsoleteRuns.clear();
+    }
+
+    /**
+     * Unmaps all runs, store should not be used after that. Run files are kept.
+     */
+    public void dispose() {
+        for (Run run : runs) {
+            run.close();
+        }
+        runs.clear();
+    }
+
+    /**
+     * Adds all fingerprints to the filter
+     * @param filter
+     */
+    public void addTo(ScalableBloomFilter filter) {
+        if (containsZero) {
+            filter.add(0);
+        }
+        for (long fingerprint : table) {
+            if (fingerprint != 0) {
+                filter.add(fingerprint);
+            }
+        }
+        for (Run run : runs) {
+            for (long i = 0; i < run.count; i++) {
+                filter.add(run.get(i));
+            }
+        }
+    }
+
+    private boolean containsInMemory(long fingerprint) {
+        if (fingerprint == 0) {
+            return containsZero;
+        }
+
+        int mask = table.length - 1;
+        int index = mix(fingerprint) & mask;
+        long value;
+        while ((value = table[index]) != 0) {
+            if (value == fingerprint) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes sorted in-memory fingerprints to the new run and clears the table
+     * @throws IOException
+     */
+    private void spillTable() throws IOException {
+        long[] fingerprints = new long[tableCount];
+        int count = 0;
+
+        if (containsZero) {
+            fingerprints[count++] = 0;
+        }
+        for (long fingerprint : table) {
+            if (fingerprint != 0) {
+                fingerprints[count++] = fingerprint;
+            }
+        }
+        Arrays.sort(fingerprints);
+
+        File file = newRunFile();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        try {
+            for (long fingerprint : fingerprints) {
+                out.writeLong(fingerprint);
+            }
+        } finally {
+            closeRun(fileOut, out);
+        }
+
+        runs.add(new Run(file));
+        Arrays.fill(table, 0);
+        tableCount = 0;
+        containsZero = false;
+
+        mergeRuns();
+    }
+
+    /**
+     * Merges the newest runs while the older one is less than {@code MERGE_RATIO} times larger than the newer ones
+     * @throws IOException
+     */
+    private void mergeRuns() throws IOException {
+        int first = runs.size() - 1;
+        long count = runs.get(first).count;
+
+        while (first > 0 && runs.get(first - 1).count <= count * MERGE_RATIO) {
+            first--;
+            count += runs.get(first).count;
+        }
+
+        if (first == runs.size() - 1) {
+            return;
+        }
+
+        List<Run> merged = new ArrayList<Run>(runs.subList(first, runs.size()));
+        long[] positions = new long[merged.size()];
+        File file = newRunFile();
+
+        log.debug("Merging " + merged.size() + " runs, " + count + " fingerprints");
+
+        FileOutputStream fileOut = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        try {
+            while (true) {
+                int min = -1;
+                long minValue = 0;
+
+                for (int i = 0; i < merged.size(); i++) {
+                    if (positions[i] < merged.get(i).count) {
+                        long value = merged.get(i).get(positions[i]);
+                        if (min == -1 || value < minValue) {
+                            min = i;
+                            minValue = value;
+                        }
+                    }
+                }
+
+                if (min == -1) {
+                    break;
+                }
+
+                out.writeLong(minValue);
+                positions[min]++;
+            }
+        } finally {
+            closeRun(fileOut, out);
+        }
+
+        runs.subList(first, runs.size()).clear();
+        runs.add(new Run(file));
+
+        for (Run run : merged) {
+            run.close();
+            if (committedRuns.contains(run.file.getName())) {
+                obsoleteRuns.add(run.file);
+            } else {
+                deleteFile(run.file);
+            }
+        }
+    }
+
+    private File newRunFile() {
+        return new File(directory, String.format("%020d", nextRunId++) + RUN_EXTENSION);
+    }
+
+    /**
+     * Closes run and forces it to disk, so it can be referenced by the checkpoint
+     * @param fileOut
+     * @param out
+     * @throws IOException
+     */
+    private void closeRun(FileOutputStream fileOut, DataOutputStream out) throws IOException {
+        try {
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void deleteFile(File file) {
+        if (!file.delete()) {
+            log.warn("Cannot delete fingerprints run " + file);
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Spreads fingerprint bits over the table index
+     * @param fingerprint
+     * @return
+     */
+    private static int mix(long fingerprint) {
+        fingerprint ^= fingerprint >>> 33;
+        fingerprint *= 0xc4ceb9fe1a85ec53L;
+        fingerprint ^= fingerprint >>> 33;
+        return (int) fingerprint;
+    }
+
+    /**
+     * Sorted immutable run mapped to memory
+     */
+    private static class Run {
+
+        /**
+         * Size of the mapped region (fingerprints)
+         */
+        private final static int REGION_BITS = 27;
+        private final File file;
+        private final long count;
+        private final MappedByteBuffer[] regions;
+        private final long[] index;
+
+        public Run(File file) throws IOException {
+            this.file = file;
+
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                count = channel.size() / 8;
+                regions = new MappedByteBuffer[(int) ((count >>> REGION_BITS) + 1)];
+
+                for (int i = 0; i < regions.length; i++) {
+                    long position = ((long) i << REGION_BITS) * 8;
+                    long regionSize = Math.min(channel.size() - position, (1L << REGION_BITS) * 8);
+                    regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+                }
+            } finally {
+                randomAccessFile.close();
+            }
+
+            index = new long[(int) ((count + INDEX_INTERVAL - 1) / INDEX_INTERVAL)];
+            for (int i = 0; i < index.length; i++) {
+                index[i] = get((long) i * INDEX_INTERVAL);
+            }
+        }
+
+        /**
+         * Unmaps run regions, run should not be used after that
+         */
+        public void close() {
+            for (MappedByteBuffer region : regions) {
+                MappedBuffers.unmap(region);
+            }
+        }
+
+        public long get(long position) {
+            return regions[(int) (position >>> REGION_BITS)].getLong((int) (position & ((1 << REGION_BITS) - 1)) * 8);
+        }
+
+        public boolean contains(long fingerprint) {
+            int block = Arrays.binarySearch(index, fingerprint);
+            if (block >= 0) {
+                return true;
+            }
+
+            // Fingerprint can be in the block preceding the insertion point only
+            block = -block - 2;
+            if (block < 0) {
+                return false;
+            }
+
+            long low = (long) block * INDEX_INTERVAL + 1;
+            long high = Math.min(low + INDEX_INTERVAL - 1, count) - 1;
+
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                long value = get(middle);
+
+                if (value < fingerprint) {
+                    low = middle + 1;
+                } else if (value > fingerprint) {
+                    high = middle - 1;
+                } else {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import org.apache.log4j.Logger;
+
+/**
+ * Helper methods for memory mapped files
+ */
+public class MappedBuffers {
+
+    private static Logger log = Logger.getLogger(MappedBuffers.class);
+
+    /**
+     * Releases file mapping, so its memory is freed and file can be deleted right away (not when the buffer
+     * is collected). Buffer and its views should not be used after that. If buffer cannot be unmapped
+     * (JVM does not allow it) - it is released when it is collected.
+     * @param buffer
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and newer
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException ex) {
+                // Java 8 and older
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception ex) {
+            log.debug("Cannot unmap buffer, it is released when it is collected", ex);
+        }
+    }
+}
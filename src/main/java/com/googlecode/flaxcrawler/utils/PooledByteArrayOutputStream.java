@@ -0,0 +1,109 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Output stream writing to arrays taken from a {@link BufferPool}. When buffer is full - it is copied to
+ * a bigger one and returned to the pool. Buffer is not copied when the stream is finished, use
+ * {@code getBuffer} and {@code size} to get the written bytes. Is not thread-safe.
+ */
+public class PooledByteArrayOutputStream extends OutputStream {
+
+    private final BufferPool bufferPool;
+    private byte[] buffer;
+    private int count;
+
+    /**
+     * Creates an instance of the {@code PooledByteArrayOutputStream}
+     * @param bufferPool
+     * @param initialSize Expected count of bytes
+     */
+    public PooledByteArrayOutputStream(BufferPool bufferPool, int initialSize) {
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire(Math.min(initialSize, bufferPool.getMaxBufferSize()));
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * Reads bytes from the stream directly to the buffer. Returns count of bytes read, or -1 if the stream has ended.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public int readFrom(InputStream in) throws IOException {
+        if (count == buffer.length) {
+            // Buffer is grown only if stream has not ended
+            int b = in.read();
+            if (b == -1) {
+                return -1;
+            }
+            write(b);
+            return 1;
+        }
+
+        int read = in.read(buffer, count, buffer.length - count);
+        if (read > 0) {
+            count += read;
+        }
+        return read;
+    }
+
+    /**
+     * Returns buffer with the written bytes. It can be longer than {@code size}.
+     * @return
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns count of the written bytes
+     * @return
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns pool buffer was taken from
+     * @return
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns buffer to the pool. Stream should not be used after that.
+     */
+    public void release() {
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= buffer.length) {
+            return;
+        }
+
+        byte[] newBuffer = bufferPool.acquire(Math.max(capacity, buffer.length * 2));
+        System.arraycopy(buffer, 0, newBuffer, 0, count);
+        bufferPool.release(buffer);
+        buffer = newBuffer;
+    }
+}
@@ -0,0 +1,262 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.log4j.Logger;
+
+/**
+ * Scalable Bloom filter for 64-bit keys (see {@link UrlFingerprint}). Filter consists of stages, new stage
+ * is added when the last one is full. Every next stage has twice the capacity and half the false positive rate
+ * of the previous one, so the total false positive rate stays under the configured value.
+ * When the memory budget is exhausted no more stages are added and the false positive rate grows.
+ * {@code add} and {@code mightContain} do not take locks.
+ */
+public class ScalableBloomFilter {
+
+    public final static int DEFAULT_INITIAL_CAPACITY = 1000000;
+    public final static double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    public final static long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+    private final static int FORMAT_VERSION = 1;
+    private final static double LN2 = Math.log(2);
+    private Logger log = Logger.getLogger(this.getClass());
+    private final double falsePositiveRate;
+    private final long maxMemory;
+    private volatile Stage[] stages;
+    private boolean saturated;
+
+    /**
+     * Creates filter with default parameters
+     */
+    public ScalableBloomFilter() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_FALSE_POSITIVE_RATE, DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Creates an instance of the {@code ScalableBloomFilter}
+     * @param initialCapacity Count of keys in the first stage
+     * @param falsePositiveRate Total false positive rate
+     * @param maxMemory Maximum memory (bytes) used by all stages
+     */
+    public ScalableBloomFilter(int initialCapacity, double falsePositiveRate, long maxMemory) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxMemory = maxMemory;
+        // Rates of all stages sum up to falsePositiveRate
+        Stage first = new Stage(initialCapacity, falsePositiveRate / 2);
+        this.stages = new Stage[]{first};
+    }
+
+    private ScalableBloomFilter(double falsePositiveRate, long maxMemory, Stage[] stages) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxMemory = maxMemory;
+        this.stages = stages;
+    }
+
+    /**
+     * Returns {@code false} if key was definitely not added to the filter
+     * @param key
+     * @return
+     */
+    public boolean mightContain(long key) {
+        Stage[] current = stages;
+
+        for (int i = current.length - 1; i >= 0; i--) {
+            if (current[i].mightContain(key)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds key to the filter
+     * @param key
+     */
+    public void add(long key) {
+        if (mightContain(key)) {
+            return;
+        }
+
+        Stage[] current = stages;
+        Stage last = current[current.length - 1];
+        last.add(key);
+
+        if (last.count.incrementAndGet() == last.capacity) {
+            grow(current);
+        }
+    }
+
+    /**
+     * Returns memory (bytes) used by the filter
+     * @return
+     */
+    public long getMemory() {
+        long memory = 0;
+        for (Stage stage : stages) {
+            memory += stage.getMemory();
+        }
+        return memory;
+    }
+
+    /**
+     * Writes filter
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        Stage[] current = stages;
+
+        out.writeInt(FORMAT_VERSION);
+        out.writeDouble(falsePositiveRate);
+        out.writeLong(maxMemory);
+        out.writeInt(current.length);
+
+        for (Stage stage : current) {
+            out.writeInt(stage.capacity);
+            out.writeInt(stage.count.get());
+            out.writeInt(stage.hashesCount);
+            out.writeInt(stage.bits.length());
+            for (int i = 0; i < stage.bits.length(); i++) {
+                out.writeLong(stage.bits.get(i));
+            }
+        }
+    }
+
+    /**
+     * Reads filter written with {@code write}
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static ScalableBloomFilter read(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown bloom filter format " + version);
+        }
+
+        double falsePositiveRate = in.readDouble();
+        long maxMemory = in.readLong();
+        Stage[] stages = new Stage[in.readInt()];
+
+        for (int i = 0; i < stages.length; i++) {
+            int capacity = in.readInt();
+            int count = in.readInt();
+            int hashesCount = in.readInt();
+            AtomicLongArray bits = new AtomicLongArray(in.readInt());
+            for (int j = 0; j < bits.length(); j++) {
+                bits.set(j, in.readLong());
+            }
+            stages[i] = new Stage(capacity, count, hashesCount, bits);
+        }
+
+        return new ScalableBloomFilter(falsePositiveRate, maxMemory, stages);
+    }
+
+    /**
+     * Adds new stage if memory budget allows
+     * @param current Stages at the moment last stage became full
+     */
+    private synchronized void grow(Stage[] current) {
+        if (current != stages || saturated) {
+            return;
+        }
+
+        Stage last = current[current.length - 1];
+        Stage next = new Stage(last.capacity * 2, last.falsePositiveRate / 2);
+
+        if (getMemory() + next.getMemory() > maxMemory || last.capacity * 2 < 0) {
+            log.warn("Bloom filter memory limit is reached, false positive rate will grow");
+            saturated = true;
+            return;
+        }
+
+        Stage[] grown = new Stage[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = next;
+        stages = grown;
+    }
+
+    /**
+     * Plain Bloom filter
+     */
+    private static class Stage {
+
+        private final int capacity;
+        private final double falsePositiveRate;
+        private final int hashesCount;
+        private final long bitsCount;
+        private final AtomicLongArray bits;
+        private final AtomicInteger count;
+
+        public Stage(int capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+
+            long optimalBits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+            int words = (int) Math.max(1, (optimalBits + 63) / 64);
+
+            this.bits = new AtomicLongArray(words);
+            this.bitsCount = words * 64L;
+            this.hashesCount = Math.max(1, (int) Math.round(bitsCount / (double) capacity * LN2));
+            this.count = new AtomicInteger();
+        }
+
+        public Stage(int capacity, int count, int hashesCount, AtomicLongArray bits) {
+            this.capacity = capacity;
+            this.hashesCount = hashesCount;
+            this.bits = bits;
+            this.bitsCount = bits.length() * 64L;
+            this.falsePositiveRate = Math.pow(1 - Math.exp(-hashesCount * (double) capacity / bitsCount), hashesCount);
+            this.count = new AtomicInteger(count);
+        }
+
+        public boolean mightContain(long key) {
+            long hash1 = key;
+            long hash2 = mix(key);
+
+            for (int i = 0; i < hashesCount; i++) {
+                long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitsCount;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        public void add(long key) {
+            long hash1 = key;
+            long hash2 = mix(key);
+
+            for (int i = 0; i < hashesCount; i++) {
+                long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitsCount;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+
+                long value = bits.get(word);
+                while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask)) {
+                    value = bits.get(word);
+                }
+            }
+        }
+
+        public long getMemory() {
+            return bitsCount / 8;
+        }
+
+        /**
+         * Second hash derived from the key
+         * @param key
+         * @return
+         */
+        private static long mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return key | 1;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for values updated by many threads and read rarely. Every thread updates one of the stripes
+ * (each one on its own cache line), so threads do not contend on a single value. Sum is not an atomic snapshot
+ * if counter is being updated.
+ */
+public class StripedCounter {
+
+    /**
+     * Count of longs between two stripes (64-byte cache line)
+     */
+    private final static int PADDING = 8;
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) * 2;
+        this.cells = new AtomicLongArray(stripes * PADDING);
+        this.mask = stripes - 1;
+    }
+
+    /**
+     * Adds value to the counter
+     * @param value
+     */
+    public void add(long value) {
+        long id = Thread.currentThread().getId();
+        int stripe = (int) (id ^ (id >>> 16)) & mask;
+        cells.addAndGet(stripe * PADDING, value);
+    }
+
+    /**
+     * Increments counter
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Returns sum of all stripes
+     * @return
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Sets counter value. Should not be called while counter is being updated.
+     * @param value
+     */
+    public void set(long value) {
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0);
+        }
+        cells.set(0, value);
+    }
+}
@@ -0,0 +1,118 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Computes 64-bit url fingerprints (lower half of MurmurHash3 x64 128-bit hash of url's UTF-8 bytes).
+ */
+public class UrlFingerprint {
+
+    private final static long C1 = 0x87c37b91114253d5L;
+    private final static long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * Returns fingerprint of the specified url
+     * @param url
+     * @return
+     */
+    public static long fingerprint(String url) {
+        try {
+            return hash(url.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not supported", ex);
+        }
+    }
+
+    /**
+     * Returns partition of the fingerprint. Urls are partitioned the same way by all components.
+     * @param fingerprint
+     * @param partitionsCount
+     * @return Partition from 0 to {@code partitionsCount - 1}
+     */
+    public static int partition(long fingerprint, int partitionsCount) {
+        return (int) ((fingerprint >>> 1) % partitionsCount);
+    }
+
+    /**
+     * Returns 64-bit hash of the specified bytes
+     * @param data
+     * @return
+     */
+    public static long hash(byte[] data) {
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = data.length / 16;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Tail
+        long k1 = 0;
+        long k2 = 0;
+        int offset = blocks * 16;
+        int tail = data.length - offset;
+
+        for (int i = tail - 1; i >= 8; i--) {
+            k2 ^= (long) (data[offset + i] & 0xff) << ((i - 8) * 8);
+        }
+        for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+            k1 ^= (long) (data[offset + i] & 0xff) << (i * 8);
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+
+        // Finalization
+        h1 ^= data.length;
+        h2 ^= data.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+
+        return h1;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
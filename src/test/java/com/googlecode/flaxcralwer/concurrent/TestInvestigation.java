@@ -92,6 +92,7 @@ public class TestInvestigation {
     @Persistent
     public static class TestTask extends BaseTask {
 
+        private final static long serialVersionUID = 1L;
         String value;
 
         public TestTask() {
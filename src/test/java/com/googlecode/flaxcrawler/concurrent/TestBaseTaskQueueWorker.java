@@ -0,0 +1,49 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link BaseTaskQueueWorker}
+ */
+public class TestBaseTaskQueueWorker {
+
+    @Test
+    public void testExecutorWorkers() throws Exception {
+        ExecutorService executor = WorkerExecutors.newVirtualThreadExecutor();
+        final AtomicInteger processed = new AtomicInteger();
+
+        try {
+            SequenceTaskQueue taskQueue = new SequenceTaskQueue();
+            for (int i = 0; i < 50; i++) {
+                taskQueue.addWorker(new BaseTaskQueueWorker(executor) {
+
+                    @Override
+                    public void doWork(Task task) throws Exception {
+                        processed.incrementAndGet();
+                    }
+                });
+            }
+
+            taskQueue.start();
+            for (int i = 0; i < 1000; i++) {
+                taskQueue.enqueue(new BaseTask() {
+                });
+            }
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (processed.get() < 1000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1000, processed.get());
+
+            taskQueue.stop();
+            taskQueue.join(1000);
+            assertEquals(0, taskQueue.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
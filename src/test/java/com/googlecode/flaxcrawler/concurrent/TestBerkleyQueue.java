@@ -0,0 +1,236 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import com.sleepycat.persist.model.Persistent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link BerkleyQueue}
+ */
+public class TestBerkleyQueue {
+
+    private final static String ENVIRONMENT_FILE = "target/test-queue";
+    private BerkleyQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new BerkleyQueue(ENVIRONMENT_FILE);
+        queue.setQueueCapacity(500);
+        queue.setChunkSize(30);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.dispose();
+        FileUtils.deleteDirectory(new File(ENVIRONMENT_FILE));
+    }
+
+    @Test
+    public void testFifoOrder() {
+        for (int i = 0; i < 2000; i++) {
+            queue.add(new TestTask(i));
+        }
+        assertEquals(2000, queue.size());
+
+        for (int i = 0; i < 2000; i++) {
+            TestTask task = (TestTask) pollTask();
+            assertNotNull(task);
+            assertEquals(i, task.getValue());
+        }
+
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDefer() {
+        queue.add(new TestTask(0));
+        queue.defer(new TestTask(1));
+        assertEquals(2, queue.size());
+
+        assertEquals(0, ((TestTask) queue.poll()).getValue());
+        assertEquals(1, ((TestTask) queue.poll()).getValue());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testAddWhileLoading() {
+        queue.setLowWatermark(100);
+        queue.setHighWatermark(200);
+
+        int added = 0;
+        int polled = 0;
+        while (polled < 3000) {
+            // Adding more tasks than polling, so some of them are stored to the berkley db
+            for (int i = 0; i < 3 && added < 3000; i++) {
+                queue.add(new TestTask(added++));
+            }
+
+            for (int i = 0; i < 2 && polled < added; i++) {
+                TestTask task = (TestTask) pollTask();
+                assertNotNull(task);
+                assertEquals(polled++, task.getValue());
+            }
+        }
+
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testListenerNotifiedAboutLostTasks() throws Exception {
+        final AtomicInteger lost = new AtomicInteger();
+        queue.setListener(new QueueListener() {
+
+            public void objectsAvailable() {
+            }
+
+            public void objectsLost(int count) {
+                lost.addAndGet(count);
+            }
+        });
+        queue.setCodec(new SerializableTaskCodec() {
+
+            @Override
+            public byte[] encode(Task task) throws IOException {
+                if (((TestTask) task).getValue() == 1000) {
+                    throw new IOException("Task cannot be encoded");
+                }
+                return super.encode(task);
+            }
+        });
+
+        queue.setMaxPendingChunks(0);
+
+        for (int i = 0; i < 2000; i++) {
+            queue.add(new TestTask(i));
+        }
+        // Waiting for the I/O thread to take all chunks, so they are stored to the berkley db
+        queue.awaitCapacity();
+        for (int i = 0; i < 1999; i++) {
+            assertNotNull(pollTask());
+        }
+
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        assertEquals(1, lost.get());
+    }
+
+    @Test
+    public void testListenerNotifiedAfterPrefetch() throws Exception {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        queue.setListener(new QueueListener() {
+
+            public void objectsAvailable() {
+                loaded.countDown();
+            }
+
+            public void objectsLost(int count) {
+            }
+        });
+        queue.setMaxPendingChunks(0);
+
+        for (int i = 0; i < 2000; i++) {
+            queue.add(new TestTask(i));
+        }
+        // Waiting for the I/O thread to take all chunks, so they are loaded by prefetch
+        queue.awaitCapacity();
+
+        for (int i = 0; i < 450; i++) {
+            assertEquals(i, ((TestTask) pollTask()).getValue());
+        }
+
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        String environmentFile = "target/test-durable-queue";
+        FileUtils.deleteDirectory(new File(environmentFile));
+
+        BerkleyQueue durableQueue = new BerkleyQueue(environmentFile, true);
+        durableQueue.setQueueCapacity(500);
+        durableQueue.setChunkSize(30);
+
+        for (int i = 0; i < 2000; i++) {
+            durableQueue.add(new TestTask(i));
+        }
+
+        // Tasks taken from the queue but not processed yet
+        List<TestTask> pending = new ArrayList<TestTask>();
+        for (int i = 0; i < 100; i++) {
+            pending.add((TestTask) durableQueue.poll());
+        }
+
+        durableQueue.checkpoint(pending).get();
+
+        // Tasks added after the checkpoint are lost
+        for (int i = 2000; i < 2100; i++) {
+            durableQueue.add(new TestTask(i));
+        }
+        durableQueue.dispose();
+
+        durableQueue = new BerkleyQueue(environmentFile, true);
+        try {
+            assertEquals(2000, durableQueue.size());
+
+            for (int i = 0; i < 2000; i++) {
+                long deadline = System.currentTimeMillis() + 5000;
+                TestTask task = (TestTask) durableQueue.poll();
+                while (task == null && System.currentTimeMillis() < deadline) {
+                    Thread.yield();
+                    task = (TestTask) durableQueue.poll();
+                }
+
+                assertNotNull(task);
+                assertEquals(i, task.getValue());
+            }
+        } finally {
+            durableQueue.dispose();
+            FileUtils.deleteDirectory(new File(environmentFile));
+        }
+    }
+
+    /**
+     * Polls the queue until a task is loaded by the I/O thread
+     * @return
+     */
+    private Object pollTask() {
+        long deadline = System.currentTimeMillis() + 5000;
+        Object obj = queue.poll();
+
+        while (obj == null && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+            obj = queue.poll();
+        }
+
+        return obj;
+    }
+
+    @Persistent
+    public static class TestTask extends BaseTask {
+
+        private final static long serialVersionUID = 1L;
+        private int value;
+
+        public TestTask() {
+        }
+
+        public TestTask(int value) {
+            this.value = value;
+        }
+
+        public int getValue() {
+            return value;
+        }
+    }
+}
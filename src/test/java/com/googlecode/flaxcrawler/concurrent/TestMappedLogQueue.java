@@ -0,0 +1,113 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import com.googlecode.flaxcrawler.concurrent.TestBerkleyQueue.TestTask;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link MappedLogQueue}
+ */
+public class TestMappedLogQueue {
+
+    private final static String DIRECTORY = "target/test-log-queue";
+    private MappedLogQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new MappedLogQueue(DIRECTORY, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        queue.dispose();
+    }
+
+    @Test
+    public void testFifoOrder() {
+        for (int i = 0; i < 5000; i++) {
+            queue.add(new TestTask(i));
+        }
+        assertEquals(5000, queue.size());
+
+        for (int i = 0; i < 5000; i++) {
+            TestTask task = (TestTask) queue.poll();
+            assertNotNull(task);
+            assertEquals(i, task.getValue());
+        }
+
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        // Consumed segments are deleted
+        assertEquals(1, new File(DIRECTORY).list().length);
+    }
+
+    @Test
+    public void testSegmentReadError() {
+        for (int i = 0; i < 1000; i++) {
+            queue.add(new TestTask(i));
+        }
+
+        File[] segments = new File(DIRECTORY).listFiles();
+        Arrays.sort(segments);
+        File hidden = new File(DIRECTORY, "hidden");
+        assertTrue(segments[1].renameTo(hidden));
+
+        int polled = 0;
+        while (queue.poll() != null) {
+            polled++;
+        }
+        // Queue stays at the end of the first segment while the next one cannot be read
+        assertNull(queue.poll());
+        assertEquals(1000 - polled, queue.size());
+
+        assertTrue(hidden.renameTo(segments[1]));
+        for (int i = polled; i < 1000; i++) {
+            assertEquals(i, ((TestTask) queue.poll()).getValue());
+        }
+    }
+
+    @Test
+    public void testAddWhilePolling() {
+        int added = 0;
+        int polled = 0;
+
+        while (polled < 5000) {
+            for (int i = 0; i < 3 && added < 5000; i++) {
+                queue.add(new TestTask(added++));
+            }
+
+            for (int i = 0; i < 2 && polled < added; i++) {
+                TestTask task = (TestTask) queue.poll();
+                assertNotNull(task);
+                assertEquals(polled++, task.getValue());
+            }
+        }
+
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testSnapshot() {
+        for (int i = 0; i < 1000; i++) {
+            queue.add(new TestTask(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            queue.poll();
+        }
+
+        // Snapshot spans several segments and does not consume them
+        List<Task> tasks = queue.snapshot();
+        assertEquals(900, tasks.size());
+        for (int i = 0; i < 900; i++) {
+            assertEquals(i + 100, ((TestTask) tasks.get(i)).getValue());
+        }
+
+        assertEquals(900, queue.size());
+        assertEquals(100, ((TestTask) queue.poll()).getValue());
+    }
+}
@@ -0,0 +1,226 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link SequenceTaskQueue}
+ */
+public class TestSequenceTaskQueue {
+
+    @Test
+    public void testMaxParallelProcessingSequences() throws TaskQueueException {
+        SequenceTaskQueue taskQueue = new SequenceTaskQueue();
+        taskQueue.setMaxParallelProcessingSequences(1);
+
+        SequenceTask a1 = new SequenceTask("a");
+        SequenceTask a2 = new SequenceTask("a");
+        SequenceTask b1 = new SequenceTask("b");
+        taskQueue.enqueue(a1);
+        taskQueue.enqueue(a2);
+        taskQueue.enqueue(b1);
+
+        assertSame(a1, taskQueue.dequeue());
+        // a2 is buffered until a1 is processed
+        assertSame(b1, taskQueue.dequeue());
+        assertNull(taskQueue.dequeue());
+        assertEquals(3, taskQueue.size());
+        assertEquals(1, taskQueue.getBufferedTasksCount());
+
+        taskQueue.taskProcessed(a1);
+        assertSame(a2, taskQueue.dequeue());
+        assertNull(taskQueue.dequeue());
+
+        taskQueue.taskProcessed(a2);
+        taskQueue.taskProcessed(b1);
+        assertEquals(0, taskQueue.size());
+    }
+
+    @Test
+    public void testMaxBufferedTasks() throws TaskQueueException {
+        SequenceTaskQueue taskQueue = new SequenceTaskQueue();
+        taskQueue.setMaxParallelProcessingSequences(1);
+        taskQueue.setMaxBufferedTasks(1);
+
+        SequenceTask a1 = new SequenceTask("a");
+        taskQueue.enqueue(a1);
+        taskQueue.enqueue(new SequenceTask("a"));
+        taskQueue.enqueue(new SequenceTask("a"));
+        SequenceTask b1 = new SequenceTask("b");
+        taskQueue.enqueue(b1);
+
+        assertSame(a1, taskQueue.dequeue());
+        // Buffer is full, "b" is not reached
+        assertNull(taskQueue.dequeue());
+        assertEquals(4, taskQueue.size());
+    }
+
+    @Test
+    public void testTake() throws Exception {
+        final SequenceTaskQueue taskQueue = new SequenceTaskQueue();
+        taskQueue.start();
+
+        final SequenceTask task = new SequenceTask("a");
+        Thread producer = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    taskQueue.enqueue(task);
+                } catch (Exception ex) {
+                    // Ignoring
+                }
+            }
+        });
+        producer.start();
+
+        long startTime = System.currentTimeMillis();
+        assertSame(task, taskQueue.take(10000));
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+
+        taskQueue.stop();
+        assertNull(taskQueue.take(10000));
+    }
+
+    @Test
+    public void testDeferWithDelay() throws Exception {
+        SequenceTaskQueue taskQueue = new SequenceTaskQueue();
+        taskQueue.start();
+
+        SequenceTask a1 = new SequenceTask("a");
+        SequenceTask a2 = new SequenceTask("a");
+        SequenceTask b1 = new SequenceTask("b");
+        taskQueue.enqueue(a1);
+        taskQueue.enqueue(a2);
+        taskQueue.enqueue(b1);
+
+        assertSame(a1, taskQueue.dequeue());
+        taskQueue.defer(a1, 300);
+        taskQueue.taskProcessed(a1);
+
+        // Sequence "a" is delayed, a2 is buffered behind a1
+        assertSame(b1, taskQueue.dequeue());
+        assertNull(taskQueue.dequeue());
+        assertEquals(3, taskQueue.size());
+
+        long startTime = System.currentTimeMillis();
+        assertSame(a1, taskQueue.take(5000));
+        assertTrue(System.currentTimeMillis() - startTime >= 250);
+        assertSame(a2, taskQueue.dequeue());
+
+        taskQueue.stop();
+    }
+
+    @Test
+    public void testSequencePolicy() throws Exception {
+        SequenceTaskQueue taskQueue = new SequenceTaskQueue();
+        taskQueue.setSequencePolicy(new SequencePolicy() {
+
+            public int getMaxParallelTasks(String sequenceName) {
+                return sequenceName.equals("cdn") ? 2 : 1;
+            }
+
+            public long getMinDelay(String sequenceName) {
+                return sequenceName.equals("slow") ? 300 : 0;
+            }
+        });
+        taskQueue.start();
+
+        SequenceTask cdn1 = new SequenceTask("cdn");
+        SequenceTask cdn2 = new SequenceTask("cdn");
+        SequenceTask slow1 = new SequenceTask("slow");
+        SequenceTask slow2 = new SequenceTask("slow");
+        taskQueue.enqueue(cdn1);
+        taskQueue.enqueue(cdn2);
+        taskQueue.enqueue(new SequenceTask("cdn"));
+        taskQueue.enqueue(slow1);
+        taskQueue.enqueue(slow2);
+
+        assertSame(cdn1, taskQueue.dequeue());
+        assertSame(cdn2, taskQueue.dequeue());
+        assertSame(slow1, taskQueue.dequeue());
+        // "cdn" limit is hit and "slow" is delayed even after slow1 is processed
+        taskQueue.taskProcessed(slow1);
+        assertNull(taskQueue.dequeue());
+
+        long startTime = System.currentTimeMillis();
+        assertSame(slow2, taskQueue.take(5000));
+        assertTrue(System.currentTimeMillis() - startTime >= 250);
+
+        taskQueue.stop();
+    }
+
+    @Test
+    public void testDelaySequence() throws Exception {
+        SequenceTaskQueue taskQueue = new SequenceTaskQueue();
+        taskQueue.start();
+
+        SequenceTask a1 = new SequenceTask("a");
+        taskQueue.delaySequence("a", 300);
+        taskQueue.enqueue(a1);
+        assertNull(taskQueue.dequeue());
+
+        long startTime = System.currentTimeMillis();
+        assertSame(a1, taskQueue.take(5000));
+        assertTrue(System.currentTimeMillis() - startTime >= 250);
+
+        taskQueue.stop();
+    }
+
+    @Test
+    public void testShorterDelayWakesLeader() throws Exception {
+        final SequenceTaskQueue taskQueue = new SequenceTaskQueue();
+        taskQueue.start();
+
+        taskQueue.delaySequence("a", 3000);
+        taskQueue.enqueue(new SequenceTask("a"));
+
+        final List<Task> taken = Collections.synchronizedList(new ArrayList<Task>());
+        for (int i = 0; i < 3; i++) {
+            Thread worker = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        taken.add(taskQueue.take(5000));
+                    } catch (InterruptedException ex) {
+                        // Ignoring
+                    }
+                }
+            });
+            worker.setDaemon(true);
+            worker.start();
+        }
+        // Workers are waiting, one of them for the delay of "a"
+        Thread.sleep(100);
+
+        SequenceTask b1 = new SequenceTask("b");
+        long startTime = System.currentTimeMillis();
+        taskQueue.defer(b1, 200);
+
+        while (!taken.contains(b1) && System.currentTimeMillis() - startTime < 2000) {
+            Thread.sleep(10);
+        }
+        assertTrue(taken.contains(b1));
+        assertTrue(System.currentTimeMillis() - startTime < 1500);
+
+        taskQueue.stop();
+    }
+
+    private static class SequenceTask extends BaseTask {
+
+        private final static long serialVersionUID = 1L;
+        private String sequenceName;
+
+        public SequenceTask(String sequenceName) {
+            this.sequenceName = sequenceName;
+        }
+
+        @Override
+        public String getSequenceName() {
+            return sequenceName;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.googlecode.flaxcrawler.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link TimerWheel}
+ */
+public class TestTimerWheel {
+
+    @Test
+    public void testAdvance() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 1000);
+        wheel.schedule("a", 1050);
+        wheel.schedule("b", 1100);
+        // More than one wheel round
+        wheel.schedule("c", 1500);
+        assertEquals(3, wheel.size());
+
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(1049, expired);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(1050, expired);
+        assertEquals(1, expired.size());
+        assertEquals("a", expired.get(0));
+
+        expired.clear();
+        wheel.advance(1200, expired);
+        assertEquals(1, expired.size());
+        assertEquals("b", expired.get(0));
+
+        expired.clear();
+        wheel.advance(5000, expired);
+        assertEquals(1, expired.size());
+        assertEquals("c", expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testScheduleInThePast() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 1000);
+        wheel.schedule("a", 500);
+
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(1010, expired);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void testNextExpirationTime() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 1000);
+        assertEquals(Long.MAX_VALUE, wheel.getNextExpirationTime());
+
+        // More than one wheel round
+        wheel.schedule("a", 1500);
+        assertEquals(1500L, wheel.getNextExpirationTime());
+
+        wheel.schedule("b", 1045);
+        assertEquals(1050L, wheel.getNextExpirationTime());
+
+        wheel.advance(1050, new ArrayList<String>());
+        assertEquals(1500L, wheel.getNextExpirationTime());
+    }
+}
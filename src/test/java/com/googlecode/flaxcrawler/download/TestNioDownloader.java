@@ -0,0 +1,392 @@
+package com.googlecode.flaxcrawler.download;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.googlecode.flaxcrawler.DomainConstraints;
+import com.googlecode.flaxcrawler.model.Page;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link NioDownloader} with a local http server
+ */
+public class TestNioDownloader {
+
+    private ServerSocket serverSocket;
+    private NioDownloader downloader;
+    private final List<String> requestMethods = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger maxActiveRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0);
+        Thread serverThread = new Thread(new Runnable() {
+
+            public void run() {
+                serve();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        downloader = new NioDownloader();
+        downloader.setReadTimeout(500);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        downloader.dispose();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        Page page = downloader.download(getUrl("/ok"));
+        assertEquals(200, page.getResponseCode());
+        assertEquals("<html>hello</html>", page.getContentString());
+        assertEquals("windows-1251", page.getCharset());
+
+        page = downloader.download(getUrl("/chunked"));
+        assertEquals(200, page.getResponseCode());
+        assertEquals("<html>hello, world</html>", page.getContentString());
+    }
+
+    @Test
+    public void testResponseCodes() throws Exception {
+        assertEquals(404, downloader.download(getUrl("/missing")).getResponseCode());
+        assertEquals(503, downloader.download(getUrl("/error")).getResponseCode());
+        assertEquals(408, downloader.download(getUrl("/slow")).getResponseCode());
+        assertEquals(301, downloader.download(getUrl("/redirect")).getResponseCode());
+    }
+
+    @Test
+    public void testMalformedChunkSize() throws Exception {
+        assertEquals(503, downloader.download(getUrl("/badchunk")).getResponseCode());
+        // Selector thread is still alive
+        assertEquals(200, downloader.download(getUrl("/ok")).getResponseCode());
+    }
+
+    @Test
+    public void testHeadRequest() throws Exception {
+        downloader.setHeadRequest(true);
+        assertEquals("<html>hello</html>", downloader.download(getUrl("/ok")).getContentString());
+        // Content type is not allowed
+        assertNull(downloader.download(getUrl("/image")));
+    }
+
+    @Test
+    public void testSingleRequest() throws Exception {
+        DefaultDownloader defaultDownloader = new DefaultDownloader();
+        defaultDownloader.setReadTimeout(500);
+
+        for (DefaultDownloader singleRequestDownloader : new DefaultDownloader[]{downloader, defaultDownloader}) {
+            assertEquals("<html>hello</html>", singleRequestDownloader.download(getUrl("/ok")).getContentString());
+            // Content type is not allowed, body is not read
+            assertNull(singleRequestDownloader.download(getUrl("/image")));
+        }
+
+        assertFalse(requestMethods.contains("HEAD"));
+        assertEquals(4, requestMethods.size());
+    }
+
+    @Test
+    public void testBufferReuse() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            Page page = downloader.download(getUrl("/chunked"));
+            assertEquals("<html>hello, world</html>", page.getContentString());
+            assertEquals(25, page.getContentLength());
+            page.release();
+        }
+        assertEquals(1L, downloader.getBufferPool().getBuffersAllocated());
+        assertEquals(4L, downloader.getBufferPool().getBuffersReused());
+    }
+
+    @Test
+    public void testMaxContentLength() throws Exception {
+        DefaultDownloader defaultDownloader = new DefaultDownloader();
+        defaultDownloader.setReadTimeout(500);
+
+        for (DefaultDownloader boundedDownloader : new DefaultDownloader[]{downloader, defaultDownloader}) {
+            boundedDownloader.setMaxContentLength(18);
+            Page page = boundedDownloader.download(getUrl("/ok"));
+            assertEquals("<html>hello</html>", page.getContentString());
+            assertFalse(page.isTruncated());
+
+            page = boundedDownloader.download(getUrl("/chunked"));
+            assertEquals("<html>hello, worl", page.getContentString().substring(0, 17));
+            assertEquals(18, page.getContent().length);
+            assertTrue(page.isTruncated());
+
+            // Small gzipped body, decoded content is bounded too
+            boundedDownloader.setMaxContentLength(1000);
+            page = boundedDownloader.download(getUrl("/gzip"));
+            assertEquals(200, page.getResponseCode());
+            assertEquals(1000, page.getContent().length);
+            assertTrue(page.isTruncated());
+        }
+    }
+
+    @Test
+    public void testDownloadAsync() throws Exception {
+        List<Future<Page>> futures = new ArrayList<Future<Page>>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(downloader.downloadAsync(getUrl(i % 2 == 0 ? "/ok" : "/chunked")));
+        }
+
+        for (Future<Page> future : futures) {
+            assertEquals(200, future.get().getResponseCode());
+        }
+        assertNull(downloader.downloadAsync(getUrl("/image")).get());
+    }
+
+    @Test
+    public void testSplitHeaders() throws Exception {
+        // Interim response and headers end are received in separate reads
+        Page page = downloader.download(getUrl("/split"));
+        assertEquals(200, page.getResponseCode());
+        assertEquals("hello", page.getContentString());
+    }
+
+    @Test
+    public void testDownloadListener() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+        DownloadListener listener = new DownloadListener() {
+
+            public void pageDownloaded(URL url, Page page) {
+                threadNames.add(Thread.currentThread().getName());
+                latch.countDown();
+                throw new IllegalStateException("Listener failure");
+            }
+        };
+
+        downloader.downloadAsync(getUrl("/ok"), listener).get();
+        // Failed listener does not break the downloader
+        downloader.downloadAsync(getUrl("/chunked"), listener).get();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        for (String threadName : threadNames) {
+            assertEquals("NioDownloader-listener", threadName);
+        }
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(200, downloader.download(getUrl(i % 2 == 0 ? "/ok" : "/chunked")).getResponseCode());
+        }
+        assertEquals(1L, downloader.getConnectionsOpened());
+        assertEquals(4L, downloader.getConnectionsReused());
+
+        // Server closes idle connection, the next request uses a new one
+        assertEquals(200, downloader.download(getUrl("/close")).getResponseCode());
+        assertEquals(200, downloader.download(getUrl("/ok")).getResponseCode());
+        assertEquals(2L, downloader.getConnectionsOpened());
+    }
+
+    @Test
+    public void testKeepAliveOff() throws Exception {
+        downloader.setKeepAlive(false);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, downloader.download(getUrl("/ok")).getResponseCode());
+        }
+        assertEquals(3L, downloader.getConnectionsOpened());
+        assertEquals(0L, downloader.getConnectionsReused());
+    }
+
+    @Test
+    public void testMaxConnectionsPerHost() throws Exception {
+        downloader.setMaxConnectionsPerHost(2);
+        downloadParallel(6);
+
+        assertEquals(2, maxActiveRequests.get());
+        assertEquals(2L, downloader.getConnectionsOpened());
+    }
+
+    @Test
+    public void testDomainMaxParallelRequests() throws Exception {
+        DomainConstraints constraints = new DomainConstraints();
+        constraints.setMaxParallelRequests(1);
+        Map<String, DomainConstraints> domainConstraints = new HashMap<String, DomainConstraints>();
+        domainConstraints.put("127.0.0.1", constraints);
+        downloader.setDomainConstraints(domainConstraints);
+        downloadParallel(4);
+
+        assertEquals(1, maxActiveRequests.get());
+        assertEquals(1L, downloader.getConnectionsOpened());
+    }
+
+    @Test
+    public void testDefaultDownloaderMaxConnections() throws Exception {
+        final DefaultDownloader defaultDownloader = new DefaultDownloader();
+        defaultDownloader.setMaxConnectionsPerHost(2);
+        final AtomicInteger okCount = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 6; i++) {
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        if (defaultDownloader.download(getUrl("/wait")).getResponseCode() == 200) {
+                            okCount.incrementAndGet();
+                        }
+                    } catch (Exception ex) {
+                        // Counted as failed
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(6, okCount.get());
+        assertEquals(2, maxActiveRequests.get());
+        assertEquals(6L, defaultDownloader.getConnectionsOpened() + defaultDownloader.getConnectionsReused());
+        // Connections are left in the keep-alive cache
+        assertTrue(defaultDownloader.getConnectionsReused() > 0);
+    }
+
+    /**
+     * Downloads slow page with {@code count} parallel requests
+     */
+    private void downloadParallel(int count) throws Exception {
+        List<Future<Page>> futures = new ArrayList<Future<Page>>();
+        for (int i = 0; i < count; i++) {
+            futures.add(downloader.downloadAsync(getUrl("/wait")));
+        }
+
+        for (Future<Page> future : futures) {
+            assertEquals(200, future.get().getResponseCode());
+        }
+    }
+
+    private URL getUrl(String path) throws Exception {
+        return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + path);
+    }
+
+    private void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                new Thread(new Runnable() {
+
+                    public void run() {
+                        respond(socket);
+                    }
+                }).start();
+            } catch (Exception ex) {
+                // Server is closed
+            }
+        }
+    }
+
+    private void respond(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            String line;
+            while ((line = reader.readLine()) != null && respond(socket, reader, line.split(" "))) {
+                // Connection is kept alive
+            }
+            socket.close();
+        } catch (Exception ex) {
+            // Client has closed connection
+        }
+    }
+
+    /**
+     * Writes response, returns {@code true} if connection should be kept alive
+     */
+    private boolean respond(Socket socket, BufferedReader reader, String[] requestLine) throws Exception {
+        boolean keepAlive = false;
+        String header;
+        while ((header = reader.readLine()).length() > 0) {
+            keepAlive |= header.equalsIgnoreCase("Connection: keep-alive");
+        }
+
+        requestMethods.add(requestLine[0]);
+        boolean head = "HEAD".equals(requestLine[0]);
+        String path = requestLine[1];
+        String response;
+
+        if (path.equals("/ok")) {
+            response = "HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=windows-1251\r\nContent-Length: 18\r\n\r\n"
+                    + (head ? "" : "<html>hello</html>");
+        } else if (path.equals("/chunked")) {
+            response = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + (head ? "" : "d;ext=1\r\n<html>hello, \r\nc\r\nworld</html>\r\n0\r\n\r\n");
+        } else if (path.equals("/image")) {
+            response = "HTTP/1.1 200 OK\r\nContent-Type: image/png\r\nContent-Length: 4\r\n\r\n" + (head ? "" : "abcd");
+        } else if (path.equals("/redirect")) {
+            response = "HTTP/1.1 301 Moved Permanently\r\nLocation: /ok\r\nContent-Length: 0\r\n\r\n";
+        } else if (path.equals("/missing")) {
+            response = "HTTP/1.1 404 Not Found\r\nContent-Length: 9\r\n\r\nnot found";
+        } else if (path.equals("/gzip")) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            GZIPOutputStream gzipStream = new GZIPOutputStream(gzipped);
+            gzipStream.write(new byte[100000]);
+            gzipStream.close();
+            // Body length is unknown until the connection is closed
+            response = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Encoding: gzip\r\n\r\n"
+                    + (head ? "" : new String(gzipped.toByteArray(), "ISO-8859-1"));
+            keepAlive = false;
+        } else if (path.equals("/badchunk")) {
+            response = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + (head ? "" : "-5\r\nhello\r\n0\r\n\r\n");
+            keepAlive = false;
+        } else if (path.equals("/close")) {
+            // Connection is closed without notice after the response
+            response = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: 0\r\n\r\n";
+            keepAlive = false;
+        } else if (path.equals("/wait")) {
+            int active = activeRequests.incrementAndGet();
+            int max = maxActiveRequests.get();
+            while (max < active && !maxActiveRequests.compareAndSet(max, active)) {
+                max = maxActiveRequests.get();
+            }
+            Thread.sleep(100);
+            activeRequests.decrementAndGet();
+            response = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: 2\r\n\r\nok";
+        } else if (path.equals("/split")) {
+            OutputStream out = socket.getOutputStream();
+            out.write("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Type: text/html\r\n".getBytes("ISO-8859-1"));
+            out.flush();
+            Thread.sleep(50);
+            out.write("Content-Length: 5\r\n\r".getBytes("ISO-8859-1"));
+            out.flush();
+            Thread.sleep(50);
+            response = "\nhello";
+        } else if (path.equals("/slow")) {
+            Thread.sleep(2000);
+            response = "";
+        } else {
+            response = "HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n";
+        }
+
+        OutputStream out = socket.getOutputStream();
+        out.write(response.getBytes("ISO-8859-1"));
+        out.flush();
+        return keepAlive && response.length() > 0;
+    }
+}
@@ -0,0 +1,95 @@
+package com.googlecode.flaxcrawler.frontier;
+
+import com.googlecode.flaxcrawler.concurrent.SequencePolicy;
+import com.googlecode.flaxcrawler.model.Page;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link AdaptiveSequencePolicy}
+ */
+public class TestAdaptiveSequencePolicy {
+
+    @Test
+    public void testIncreaseDecrease() throws Exception {
+        AdaptiveSequencePolicy policy = new AdaptiveSequencePolicy(new Limits(4, 200));
+        assertEquals(1, policy.getMaxParallelTasks("google.com"));
+        assertEquals(200L, policy.getMinDelay("google.com"));
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(0L, policy.update("google.com", createPage(200, 100, null)));
+        }
+        // Limits of the base policy are not exceeded
+        assertEquals(4, policy.getMaxParallelTasks("google.com"));
+        assertEquals(200L, policy.getMinDelay("google.com"));
+
+        policy.update("google.com", createPage(503, 100, null));
+        assertEquals(2, policy.getMaxParallelTasks("google.com"));
+        assertEquals(400L, policy.getMinDelay("google.com"));
+
+        // Smoothed response time grows over target
+        for (int i = 0; i < 10; i++) {
+            policy.update("google.com", createPage(200, 10000, null));
+        }
+        assertEquals(1, policy.getMaxParallelTasks("google.com"));
+        assertTrue(policy.getMinDelay("google.com") > 400);
+    }
+
+    @Test
+    public void testRetryAfter() throws Exception {
+        AdaptiveSequencePolicy policy = new AdaptiveSequencePolicy(new Limits(0, 0));
+
+        assertEquals(120000L, policy.update("google.com", createPage(429, 100, "120")));
+        assertEquals(0L, policy.update("google.com", createPage(503, 100, "bad value")));
+        // Retry-After is honoured for throttling responses only
+        assertEquals(0L, policy.update("google.com", createPage(200, 100, "120")));
+    }
+
+    @Test
+    public void testMaxDomains() throws Exception {
+        AdaptiveSequencePolicy policy = new AdaptiveSequencePolicy(new Limits(4, 200));
+        policy.setMaxDomains(2);
+
+        policy.update("google.com", createPage(503, 100, null));
+        policy.update("yahoo.com", createPage(503, 100, null));
+        // google.com is used more recently than yahoo.com
+        assertEquals(400L, policy.getMinDelay("google.com"));
+        policy.update("bing.com", createPage(503, 100, null));
+
+        assertEquals(2, policy.getDomainsCount());
+        assertEquals(400L, policy.getMinDelay("google.com"));
+        assertEquals(400L, policy.getMinDelay("bing.com"));
+        // Limits of the least recently used domain are forgotten
+        assertEquals(200L, policy.getMinDelay("yahoo.com"));
+    }
+
+    private Page createPage(int responseCode, long responseTime, String retryAfter) throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (retryAfter != null) {
+            headers.put("retry-after", retryAfter);
+        }
+        return new Page(new URL("http://google.com/"), headers, responseCode, null, responseTime, null);
+    }
+
+    private static class Limits implements SequencePolicy {
+
+        private int maxParallelTasks;
+        private long minDelay;
+
+        public Limits(int maxParallelTasks, long minDelay) {
+            this.maxParallelTasks = maxParallelTasks;
+            this.minDelay = minDelay;
+        }
+
+        public int getMaxParallelTasks(String sequenceName) {
+            return maxParallelTasks;
+        }
+
+        public long getMinDelay(String sequenceName) {
+            return minDelay;
+        }
+    }
+}
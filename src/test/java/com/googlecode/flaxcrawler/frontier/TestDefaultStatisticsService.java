@@ -2,9 +2,17 @@ package com.googlecode.flaxcrawler.frontier;
 
 import com.googlecode.flaxcrawler.frontier.DefaultStatisticsService;
 import com.sleepycat.je.DatabaseException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
 import org.junit.Ignore;
 import org.junit.Test;
 import com.googlecode.flaxcrawler.model.CrawlerTask;
+import com.googlecode.flaxcrawler.model.Page;
+import java.net.URL;
 import static org.junit.Assert.*;
 
 /**
@@ -34,4 +42,168 @@ public class TestDefaultStatisticsService {
             }
         }
     }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        String environmentFile = "target/test-stats";
+        FileUtils.deleteDirectory(new File(environmentFile));
+
+        DefaultStatisticsService statisticsService = new DefaultStatisticsService(environmentFile, true);
+        statisticsService.afterScheduling(new CrawlerTask("http://google.com/", 0));
+        statisticsService.afterScheduling(new CrawlerTask("http://google.com/1", 1));
+        statisticsService.checkpoint();
+        statisticsService.afterScheduling(new CrawlerTask("http://google.com/2", 1));
+        statisticsService.dispose();
+
+        try {
+            statisticsService = new DefaultStatisticsService(environmentFile, true);
+
+            assertTrue(statisticsService.isCrawled("http://google.com/"));
+            assertTrue(statisticsService.isCrawled("http://google.com/1"));
+            // Url was added after the checkpoint
+            assertFalse(statisticsService.isCrawled("http://google.com/2"));
+            assertEquals(2L, statisticsService.getScheduled());
+            assertEquals(2L, statisticsService.getDomainStatistics("google.com").getScheduled());
+        } finally {
+            statisticsService.dispose();
+            FileUtils.deleteDirectory(new File(environmentFile));
+        }
+    }
+
+    @Test
+    public void testCheckAndSchedule() throws Exception {
+        DefaultStatisticsService statisticsService = new DefaultStatisticsService("target/test-stats");
+
+        try {
+            statisticsService.afterScheduling(new CrawlerTask("http://google.com/", 0));
+
+            CrawlerTask task1 = new CrawlerTask("http://google.com/1", 1);
+            CrawlerTask task2 = new CrawlerTask("http://google.com/2", 1);
+            List<CrawlerTask> tasks = statisticsService.checkAndSchedule(Arrays.asList(
+                    task2, new CrawlerTask("http://google.com/", 1), task1, new CrawlerTask("http://google.com/2", 1)));
+
+            assertEquals(Arrays.asList(task2, task1), tasks);
+            assertTrue(statisticsService.isCrawled("http://google.com/1"));
+            assertTrue(statisticsService.isCrawled("http://google.com/2"));
+            assertEquals(3L, statisticsService.getScheduled());
+            assertEquals(3L, statisticsService.getDomainStatistics("google.com").getScheduled());
+        } finally {
+            statisticsService.dispose();
+            FileUtils.deleteDirectory(new File("target/test-stats"));
+        }
+    }
+
+    @Test
+    public void testCheckAndSchedulePartitioned() throws Exception {
+        DefaultStatisticsService statisticsService = new DefaultStatisticsService("target/test-stats", false, 0.01, 1024 * 1024, 4);
+
+        try {
+            List<CrawlerTask> batch = new ArrayList<CrawlerTask>();
+            List<CrawlerTask> expected = new ArrayList<CrawlerTask>();
+            for (int i = 0; i < 50; i++) {
+                if (i % 2 == 0) {
+                    statisticsService.afterScheduling(new CrawlerTask("http://google.com/" + i, 0));
+                } else {
+                    CrawlerTask task = new CrawlerTask("http://google.com/" + i, 1);
+                    batch.add(task);
+                    expected.add(task);
+                }
+                // Crawled urls and duplicates from all partitions are dropped
+                batch.add(new CrawlerTask("http://google.com/" + i, 1));
+            }
+
+            assertEquals(expected, statisticsService.checkAndSchedule(batch));
+            assertEquals(50L, statisticsService.getScheduled());
+        } finally {
+            statisticsService.dispose();
+            FileUtils.deleteDirectory(new File("target/test-stats"));
+        }
+    }
+
+    @Test
+    public void testPartitions() throws Exception {
+        String environmentFile = "target/test-stats";
+        FileUtils.deleteDirectory(new File(environmentFile));
+
+        DefaultStatisticsService statisticsService = new DefaultStatisticsService(environmentFile, true, 0.01, 1024 * 1024, 4);
+        for (int i = 0; i < 100; i++) {
+            statisticsService.afterScheduling(new CrawlerTask("http://google.com/" + i, 1));
+        }
+        statisticsService.checkpoint();
+        statisticsService.dispose();
+
+        try {
+            // Partitions count is restored from the checkpoint
+            statisticsService = new DefaultStatisticsService(environmentFile, true, 0.01, 1024 * 1024, 1);
+
+            for (int i = 0; i < 100; i++) {
+                assertTrue(statisticsService.isCrawled("http://google.com/" + i));
+            }
+            assertFalse(statisticsService.isCrawled("http://google.com/100"));
+        } finally {
+            statisticsService.dispose();
+            FileUtils.deleteDirectory(new File(environmentFile));
+        }
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final DefaultStatisticsService statisticsService = new DefaultStatisticsService("target/test-stats");
+        final Page page = new Page(new URL("http://google.com/"), null, 404, null, 0, null);
+        Thread[] threads = new Thread[4];
+
+        try {
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+
+                    public void run() {
+                        for (int j = 0; j < 1000; j++) {
+                            CrawlerTask task = new CrawlerTask("http://google.com/", 1);
+                            statisticsService.afterDownloading(task, page);
+                            statisticsService.afterParsing(task, page);
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            DomainStatistics domainStatistics = statisticsService.getDomainStatistics("google.com");
+            assertEquals(4000L, statisticsService.getErrors());
+            assertEquals(4000L, statisticsService.getParsed());
+            assertEquals(4000L, domainStatistics.getErrors());
+            assertEquals(4000L, domainStatistics.getHttpErrors(404));
+            assertEquals(Long.valueOf(4000), domainStatistics.getHttpErrors().get(404));
+        } finally {
+            statisticsService.dispose();
+            FileUtils.deleteDirectory(new File("target/test-stats"));
+        }
+    }
+
+    @Test
+    public void testReserveFetchSlot() throws Exception {
+        final DomainStatistics domainStatistics = new DomainStatistics("google.com");
+        final AtomicInteger reserved = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+
+                public void run() {
+                    if (domainStatistics.reserveFetchSlot(60000) == 0) {
+                        reserved.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, reserved.get());
+        assertTrue(domainStatistics.reserveFetchSlot(60000) > 0);
+    }
 }
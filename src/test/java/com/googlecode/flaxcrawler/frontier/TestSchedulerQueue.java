@@ -0,0 +1,116 @@
+package com.googlecode.flaxcrawler.frontier;
+
+import com.googlecode.flaxcrawler.model.CrawlerTask;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link SchedulerQueue}
+ */
+public class TestSchedulerQueue {
+
+    @Test
+    public void testBlock() throws Exception {
+        final SchedulerQueue queue = new SchedulerQueue(2, BackpressurePolicy.BLOCK, null);
+        queue.add(new CrawlerTask("http://google.com/1", 1));
+        queue.add(new CrawlerTask("http://google.com/2", 1));
+
+        Thread producer = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    queue.add(new CrawlerTask("http://google.com/3", 1));
+                } catch (InterruptedException ex) {
+                    // Test fails
+                }
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        List<CrawlerTask> batch = new ArrayList<CrawlerTask>();
+        assertEquals(2, queue.drainTo(batch, 10));
+        producer.join();
+
+        assertEquals(1, queue.size());
+        assertTrue(queue.getBackpressureTime() > 0);
+    }
+
+    @Test
+    public void testDropLowestPriority() throws Exception {
+        SchedulerQueue queue = new SchedulerQueue(2, BackpressurePolicy.DROP_LOWEST_PRIORITY, null);
+        queue.add(new CrawlerTask("http://google.com/1", 1));
+        queue.add(new CrawlerTask("http://google.com/2", 3));
+        // Deeper than all queued tasks
+        queue.add(new CrawlerTask("http://google.com/3", 4));
+        // Replaces the deepest queued task
+        queue.add(new CrawlerTask("http://google.com/4", 2));
+
+        List<CrawlerTask> batch = new ArrayList<CrawlerTask>();
+        queue.drainTo(batch, 10);
+
+        assertEquals(2, batch.size());
+        assertEquals("http://google.com/1", batch.get(0).getUrl());
+        assertEquals("http://google.com/4", batch.get(1).getUrl());
+        assertEquals(2L, queue.getDroppedCount());
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        String spillDirectory = "target/test-scheduler-spill";
+        SchedulerQueue queue = new SchedulerQueue(10, BackpressurePolicy.SPILL, spillDirectory);
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                queue.add(new CrawlerTask("http://google.com/" + i, 1));
+            }
+            assertEquals(100, queue.size());
+            assertEquals(90L, queue.getSpilledCount());
+
+            List<CrawlerTask> batch = new ArrayList<CrawlerTask>();
+            queue.drainTo(batch, 20);
+            assertEquals(80, queue.size());
+            List<CrawlerTask> tasks = queue.getTasks();
+            assertEquals(80, tasks.size());
+            assertEquals("http://google.com/20", tasks.get(0).getUrl());
+            assertEquals("http://google.com/99", tasks.get(79).getUrl());
+            // Spilled tasks stay on disk
+            assertEquals(80, queue.size());
+            queue.drainTo(batch, 100);
+
+            assertEquals(100, batch.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals("http://google.com/" + i, batch.get(i).getUrl());
+            }
+        } finally {
+            FileUtils.deleteDirectory(new File(spillDirectory));
+        }
+    }
+
+    @Test
+    public void testDispose() throws Exception {
+        String spillDirectory = "target/test-scheduler-dispose";
+        SchedulerQueue queue = new SchedulerQueue(10, BackpressurePolicy.SPILL, spillDirectory);
+
+        try {
+            for (int i = 0; i < 20; i++) {
+                queue.add(new CrawlerTask("http://google.com/" + i, 1));
+            }
+            assertTrue(new File(spillDirectory).exists());
+
+            queue.dispose();
+            assertEquals(0, queue.size());
+            // Spilled tasks are deleted
+            assertFalse(new File(spillDirectory).exists());
+            List<CrawlerTask> batch = new ArrayList<CrawlerTask>();
+            assertEquals(0, queue.drainTo(batch, 100));
+        } finally {
+            FileUtils.deleteDirectory(new File(spillDirectory));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.googlecode.flaxcrawler.model;
+
+import com.googlecode.flaxcrawler.concurrent.SerializableTaskCodec;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link CrawlerTaskCodec}
+ */
+public class TestCrawlerTaskCodec {
+
+    @Test
+    public void testEncodeDecode() throws Exception {
+        CrawlerTaskCodec codec = new CrawlerTaskCodec();
+
+        CrawlerTask task = new CrawlerTask("http://google.com/search?q=test", 3);
+        task.setTimeDownloaded(new Date(1234567890123L));
+        task.setCustomData("custom");
+
+        byte[] data = codec.encode(task);
+        assertTrue(data.length < new SerializableTaskCodec().encode(task).length);
+
+        CrawlerTask decoded = (CrawlerTask) codec.decode(data);
+        assertEquals(task.getUrl(), decoded.getUrl());
+        assertEquals(task.getDomain(), decoded.getDomain());
+        assertEquals(task.getSequenceName(), decoded.getSequenceName());
+        assertEquals(3, decoded.getLevel());
+        assertEquals(task.getTimeAdded(), decoded.getTimeAdded());
+        assertEquals(task.getTimeDownloaded(), decoded.getTimeDownloaded());
+        assertNull(decoded.getTimeParsed());
+        assertEquals("custom", decoded.getCustomData());
+    }
+
+    @Test
+    public void testCustomDataSerializer() throws Exception {
+        CrawlerTaskCodec codec = new CrawlerTaskCodec();
+        codec.addSerializer(new CustomDataSerializer() {
+
+            public boolean canSerialize(Object customData) {
+                return customData instanceof Integer;
+            }
+
+            public void write(Object customData, DataOutput out) throws IOException {
+                out.writeInt((Integer) customData);
+            }
+
+            public Object read(DataInput in) throws IOException {
+                return in.readInt();
+            }
+        });
+
+        CrawlerTask task = new CrawlerTask("http://google.com/", 0);
+        task.setCustomData(42);
+        assertEquals(42, ((CrawlerTask) codec.decode(codec.encode(task))).getCustomData());
+
+        // Serializable custom data is supported by default
+        task.setCustomData(new Date(1000));
+        assertEquals(new Date(1000), ((CrawlerTask) codec.decode(codec.encode(task))).getCustomData());
+    }
+}
@@ -0,0 +1,29 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.io.ByteArrayInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link BoundedInputStream}
+ */
+public class TestBoundedInputStream {
+
+    @Test
+    public void testLimit() throws Exception {
+        BoundedInputStream inputStream = new BoundedInputStream(new ByteArrayInputStream(new byte[100]), 10);
+        assertEquals(10, IOUtils.toByteArray(inputStream).length);
+        assertEquals(10L, inputStream.getCount());
+        assertTrue(inputStream.isTruncated());
+
+        // Stream ending exactly at the limit is not truncated
+        inputStream = new BoundedInputStream(new ByteArrayInputStream(new byte[10]), 10);
+        assertEquals(10, IOUtils.toByteArray(inputStream).length);
+        assertFalse(inputStream.isTruncated());
+
+        inputStream = new BoundedInputStream(new ByteArrayInputStream(new byte[100]), 0);
+        assertEquals(100, IOUtils.toByteArray(inputStream).length);
+        assertFalse(inputStream.isTruncated());
+    }
+}
@@ -0,0 +1,110 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import com.googlecode.flaxcrawler.model.Page;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link BufferPool}
+ */
+public class TestBufferPool {
+
+    @Test
+    public void testAcquireRelease() throws Exception {
+        BufferPool pool = new BufferPool(1000, 5000, 16384);
+        assertEquals(8192, pool.getMaxBufferSize());
+
+        byte[] buffer = pool.acquire(10);
+        assertEquals(1024, buffer.length);
+        assertEquals(4096, pool.acquire(2049).length);
+        // Too big to be pooled
+        assertEquals(10000, pool.acquire(10000).length);
+
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(1024));
+        assertEquals(1L, pool.getBuffersReused());
+
+        // Only 2 free arrays of 8192 bytes are kept
+        for (int i = 0; i < 3; i++) {
+            pool.release(new byte[8192]);
+        }
+        pool.acquire(8192);
+        pool.acquire(8192);
+        pool.acquire(8192);
+        assertEquals(3L, pool.getBuffersReused());
+    }
+
+    @Test
+    public void testPooledOutputStream() throws Exception {
+        BufferPool pool = new BufferPool(16, 1024, 16384);
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(pool, 16);
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        while (out.readFrom(in) != -1) {
+            // Reading all data
+        }
+        assertEquals(100, out.size());
+        assertEquals(128, out.getBuffer().length);
+        assertEquals((byte) 99, out.getBuffer()[99]);
+
+        // Smaller buffers were returned to the pool while growing
+        out.release();
+        for (int size = 16; size <= 128; size *= 2) {
+            assertEquals(size, pool.acquire(size).length);
+        }
+        assertEquals(4L, pool.getBuffersReused());
+        assertEquals(4L, pool.getBuffersAllocated());
+    }
+
+    @Test
+    public void testPageContent() throws Exception {
+        BufferPool pool = new BufferPool(16, 1024, 16384);
+        byte[] buffer = pool.acquire(16);
+        buffer[0] = 1;
+        Page page = new Page(null, null, 200, null, 0, buffer, 1, pool);
+
+        ByteBuffer contentBuffer = page.getContentBuffer();
+        byte[] content = page.getContent();
+        assertEquals(1, content.length);
+        assertNotSame(buffer, content);
+
+        // Pooled buffer is not returned to the pool, earlier content buffer stays valid
+        page.release();
+        assertNotSame(buffer, pool.acquire(16));
+        assertEquals((byte) 1, contentBuffer.get(0));
+        assertSame(content, page.getContent());
+    }
+
+    @Test
+    public void testReleasedPageContent() throws Exception {
+        BufferPool pool = new BufferPool(16, 1024, 16384);
+        Page page = new Page(null, null, 200, null, 0, pool.acquire(16), 1, pool);
+
+        page.release();
+        assertTrue(page.isReleased());
+        try {
+            page.getContentString();
+            fail("Released content should not be available");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+        try {
+            page.getContent();
+            fail("Released content should not be available");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+
+        // Not pooled content stays available
+        Page notPooled = new Page(null, null, 200, "UTF-8", 0, new byte[]{'a'});
+        notPooled.release();
+        assertFalse(notPooled.isReleased());
+        assertEquals("a", notPooled.getContentString());
+    }
+}
@@ -0,0 +1,80 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link FingerprintStore}
+ */
+public class TestFingerprintStore {
+
+    @Test
+    public void testAddContains() throws Exception {
+        File directory = new File("target/test-fingerprints");
+        FileUtils.deleteDirectory(directory);
+
+        try {
+            FingerprintStore store = new FingerprintStore(directory, 1000);
+            Random random = new Random(1);
+            long[] fingerprints = new long[20000];
+
+            for (int i = 0; i < fingerprints.length; i++) {
+                fingerprints[i] = random.nextLong();
+                assertTrue(store.add(fingerprints[i]));
+            }
+            assertTrue(store.add(0));
+            assertFalse(store.add(0));
+            assertFalse(store.add(fingerprints[123]));
+            assertEquals(20001L, store.size());
+
+            for (long fingerprint : fingerprints) {
+                assertTrue(store.contains(fingerprint));
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertFalse(store.contains(random.nextLong()));
+            }
+
+            // Runs are merged
+            assertTrue(directory.listFiles().length < 10);
+            store.dispose();
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testSpillRestore() throws Exception {
+        File directory = new File("target/test-fingerprints");
+        FileUtils.deleteDirectory(directory);
+
+        try {
+            FingerprintStore store = new FingerprintStore(directory, 100);
+            for (long i = 1; i <= 1000; i++) {
+                store.add(i);
+            }
+            List<String> runs = store.spill();
+            store.commit(runs);
+
+            // Fingerprints added after the checkpoint
+            for (long i = 1001; i <= 2000; i++) {
+                store.add(i);
+            }
+
+            store.dispose();
+
+            store = new FingerprintStore(directory, 100, runs);
+            assertEquals(1000L, store.size());
+            assertTrue(store.contains(1));
+            assertTrue(store.contains(1000));
+            assertFalse(store.contains(1001));
+            assertFalse(store.contains(2000));
+            store.dispose();
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+}
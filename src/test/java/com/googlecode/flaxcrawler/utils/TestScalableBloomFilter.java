@@ -0,0 +1,82 @@
+package com.googlecode.flaxcrawler.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ScalableBloomFilter}
+ */
+public class TestScalableBloomFilter {
+
+    @Test
+    public void testAddAndGrow() throws Exception {
+        ScalableBloomFilter filter = new ScalableBloomFilter(1000, 0.01, 1024 * 1024);
+        long initialMemory = filter.getMemory();
+
+        for (int i = 0; i < 10000; i++) {
+            filter.add(UrlFingerprint.fingerprint("http://example.com/" + i));
+        }
+
+        // Filter has no false negatives
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(UrlFingerprint.fingerprint("http://example.com/" + i)));
+        }
+        assertTrue(filter.getMemory() > initialMemory);
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(UrlFingerprint.fingerprint("http://example.org/" + i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 200);
+    }
+
+    @Test
+    public void testMaxMemory() throws Exception {
+        ScalableBloomFilter filter = new ScalableBloomFilter(1000, 0.01, 4096);
+
+        for (int i = 0; i < 10000; i++) {
+            filter.add(UrlFingerprint.fingerprint("http://example.com/" + i));
+        }
+
+        assertTrue(filter.getMemory() <= 4096);
+        assertTrue(filter.mightContain(UrlFingerprint.fingerprint("http://example.com/9999")));
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01, 1024 * 1024);
+
+        for (int i = 0; i < 1000; i++) {
+            filter.add(UrlFingerprint.fingerprint("http://example.com/" + i));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(bytes));
+        ScalableBloomFilter restored = ScalableBloomFilter.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(filter.getMemory(), restored.getMemory());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(restored.mightContain(UrlFingerprint.fingerprint("http://example.com/" + i)));
+        }
+
+        // Restored filter keeps growing
+        for (int i = 1000; i < 5000; i++) {
+            restored.add(UrlFingerprint.fingerprint("http://example.com/" + i));
+        }
+        assertTrue(restored.getMemory() > filter.getMemory());
+    }
+
+    @Test
+    public void testFingerprint() {
+        // Reference MurmurHash3_x64_128 values (lower 64 bits)
+        assertEquals(0L, UrlFingerprint.hash(new byte[0]));
+        assertEquals(0xcbd8a7b341bd9b02L, UrlFingerprint.fingerprint("hello"));
+        assertFalse(UrlFingerprint.fingerprint("http://example.com/a") == UrlFingerprint.fingerprint("http://example.com/b"));
+    }
+}